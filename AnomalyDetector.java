@@ -0,0 +1,273 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Flags expenses as they are committed: the same charge twice within a few
+// days, a description that has started to recur at a steady interval (a new
+// subscription), and an amount far above its category's usual. Each expense
+// costs O(1) and the state has a fixed size however many expenses and
+// distinct descriptions arrive:
+//
+//   duplicates   ring buffer of the last RECENT (fingerprint, day) pairs
+//   recurrence   count-min sketch of description counts, halved every
+//                DECAY_EVERY expenses; descriptions seen at least twice get a
+//                slot in a fixed table (interval EMA, last day and amount),
+//                replacing the stalest slot of their probe window when full.
+//                A payee is flagged once, after MIN_OCCURRENCES charges of a
+//                similar amount at a steady weekly-to-monthly interval
+//   large        per-category EMA of the amount and of its squared
+//                deviation, for at most MAX_CATEGORIES categories
+//
+// Descriptions are compared by a hash of their letters, case-folded, so
+// "NETFLIX.COM 4411" and "Netflix.com 9034" are the same payee. Days are the
+// transactions' own dates, so imported history is judged as it happened.
+//
+// Called by TransactionManager under its writer lock; alerts() may be read
+// from any thread.
+public class AnomalyDetector {
+    public enum Kind { DUPLICATE, RECURRING, LARGE }
+
+    public static final class Alert {
+        public final long id;
+        public final Kind kind;
+        public final int epochDay;
+        public final String description;
+        public final String category;
+        public final long amountCents;
+        public final String detail;
+
+        Alert(long id, Kind kind, Expense expense, int epochDay, String detail) {
+            this.id = id;
+            this.kind = kind;
+            this.epochDay = epochDay;
+            this.description = expense.getDescription() == null ? "" : expense.getDescription();
+            this.category = expense.getCategory();
+            this.amountCents = expense.getAmountMinor();
+            this.detail = detail;
+        }
+    }
+
+    private static final int RECENT = 128;
+    private static final int DUPLICATE_DAYS = 2;
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int DECAY_EVERY = 1 << 16;
+    private static final int PAYEES = 4096;
+    private static final int PROBE = 8;
+    private static final int MIN_OCCURRENCES = 3;
+    private static final int MIN_INTERVAL_DAYS = 6;
+    private static final int MAX_INTERVAL_DAYS = 35;
+    private static final double INTERVAL_TOLERANCE = 0.2;
+    private static final double AMOUNT_TOLERANCE = 0.1;
+
+    private static final int MAX_CATEGORIES = 256;
+    private static final double ALPHA = 0.05;
+    private static final int WARMUP = 20;
+    private static final double LARGE_DEVIATIONS = 4;
+    private static final double LARGE_RATIO = 2;
+
+    private static final int MAX_ALERTS = 1000;
+
+    private final long[] recentPrints = new long[RECENT];
+    private final int[] recentDays = new int[RECENT];
+    private int recentCount;
+    private int recentNext;
+
+    private final int[] sketch = new int[SKETCH_DEPTH * SKETCH_WIDTH];
+    private int sinceDecay;
+
+    // Payee table; key 0 marks an empty slot
+    private final long[] payeeKeys = new long[PAYEES];
+    private final int[] payeeLastDay = new int[PAYEES];
+    private final long[] payeeLastAmount = new long[PAYEES];
+    private final double[] payeeInterval = new double[PAYEES];
+    private final int[] payeeSteady = new int[PAYEES];
+    private final boolean[] payeeFlagged = new boolean[PAYEES];
+
+    private static final class CategoryStats {
+        int count;
+        double mean;
+        double variance;
+    }
+
+    private final Map<String, CategoryStats> categories = new HashMap<>();
+    private final CategoryStats otherCategories = new CategoryStats();
+
+    private final Alert[] alerts = new Alert[MAX_ALERTS];
+    private long nextAlertId = 1;
+    private long observed;
+
+    public void observe(Expense expense) {
+        observed++;
+        int day = ColumnarLedger.toEpochDay(expense.getDate());
+        long amount = expense.getAmountMinor();
+        long payee = payeeHash(expense.getDescription());
+        long print = mix(payee ^ amount * 0x9E3779B97F4A7C15L);
+
+        checkDuplicate(expense, print, day);
+        checkRecurring(expense, payee, amount, day);
+        checkLarge(expense, amount, day);
+    }
+
+    private void checkDuplicate(Expense expense, long print, int day) {
+        for (int i = 0; i < recentCount; i++) {
+            if (recentPrints[i] == print && Math.abs(day - recentDays[i]) <= DUPLICATE_DAYS) {
+                raise(Kind.DUPLICATE, expense, day, "same description and amount "
+                        + (day == recentDays[i] ? "the same day" : Math.abs(day - recentDays[i]) + " day(s) apart"));
+                break;
+            }
+        }
+        recentPrints[recentNext] = print;
+        recentDays[recentNext] = day;
+        recentNext = (recentNext + 1) % RECENT;
+        recentCount = Math.min(recentCount + 1, RECENT);
+    }
+
+    private void checkRecurring(Expense expense, long payee, long amount, int day) {
+        if (countAndEstimate(payee) < 2) return;
+        int slot = payeeSlot(payee);
+        if (payeeKeys[slot] != payee) {
+            payeeKeys[slot] = payee;
+            payeeLastDay[slot] = day;
+            payeeLastAmount[slot] = amount;
+            payeeInterval[slot] = 0;
+            payeeSteady[slot] = 1;
+            payeeFlagged[slot] = false;
+            return;
+        }
+        int interval = day - payeeLastDay[slot];
+        if (interval <= 0) return;
+        long lastAmount = payeeLastAmount[slot];
+        boolean sameAmount = Math.abs(amount - lastAmount) <= AMOUNT_TOLERANCE * Math.abs(lastAmount);
+        double expected = payeeInterval[slot];
+        boolean steady = expected == 0 || Math.abs(interval - expected) <= INTERVAL_TOLERANCE * expected;
+        if (sameAmount && steady && interval >= MIN_INTERVAL_DAYS && interval <= MAX_INTERVAL_DAYS) {
+            payeeSteady[slot]++;
+            payeeInterval[slot] = expected == 0 ? interval : expected + 0.5 * (interval - expected);
+        } else {
+            payeeSteady[slot] = 1;
+            payeeInterval[slot] = interval;
+        }
+        payeeLastDay[slot] = day;
+        payeeLastAmount[slot] = amount;
+        if (payeeSteady[slot] >= MIN_OCCURRENCES && !payeeFlagged[slot]) {
+            payeeFlagged[slot] = true;
+            raise(Kind.RECURRING, expense, day, String.format("charged about every %.0f days",
+                    payeeInterval[slot]));
+        }
+    }
+
+    // Adds one to the payee's count and returns the new estimate, which is
+    // never below the true count since the last decay.
+    private int countAndEstimate(long payee) {
+        if (++sinceDecay >= DECAY_EVERY) {
+            sinceDecay = 0;
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>>= 1;
+            }
+        }
+        int estimate = Integer.MAX_VALUE;
+        long hash = payee;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            hash = mix(hash + row);
+            int index = row * SKETCH_WIDTH + (int) (hash & (SKETCH_WIDTH - 1));
+            estimate = Math.min(estimate, ++sketch[index]);
+        }
+        return estimate;
+    }
+
+    // The payee's slot, or the one it should take: an empty slot or the
+    // stalest in its probe window.
+    private int payeeSlot(long payee) {
+        int start = (int) (payee & (PAYEES - 1));
+        int stalest = start;
+        for (int i = 0; i < PROBE; i++) {
+            int slot = (start + i) & (PAYEES - 1);
+            if (payeeKeys[slot] == payee || payeeKeys[slot] == 0) return slot;
+            if (payeeLastDay[slot] < payeeLastDay[stalest]) stalest = slot;
+        }
+        return stalest;
+    }
+
+    private void checkLarge(Expense expense, long amount, int day) {
+        CategoryStats stats = categories.get(expense.getCategory());
+        if (stats == null) {
+            if (categories.size() < MAX_CATEGORIES) {
+                stats = new CategoryStats();
+                categories.put(expense.getCategory(), stats);
+            } else {
+                stats = otherCategories;
+            }
+        }
+        double value = amount;
+        if (stats.count >= WARMUP) {
+            double deviation = Math.sqrt(stats.variance);
+            if (value > stats.mean + LARGE_DEVIATIONS * deviation && value > LARGE_RATIO * stats.mean) {
+                raise(Kind.LARGE, expense, day, String.format("%.1fx the usual %s for %s",
+                        value / stats.mean, Money.format(Math.round(stats.mean)), expense.getCategory()));
+            }
+        }
+        // Exponentially weighted mean and variance; the first WARMUP values
+        // use a plain running mean so the start is not dominated by one row
+        double weight = stats.count < WARMUP ? 1.0 / (stats.count + 1) : ALPHA;
+        double difference = value - stats.mean;
+        stats.mean += weight * difference;
+        stats.variance = (1 - weight) * (stats.variance + weight * difference * difference);
+        stats.count++;
+    }
+
+    private void raise(Kind kind, Expense expense, int day, String detail) {
+        Alert alert = new Alert(nextAlertId, kind, expense, day, detail);
+        synchronized (alerts) {
+            alerts[(int) (nextAlertId % MAX_ALERTS)] = alert;
+            nextAlertId++;
+        }
+    }
+
+    // Alerts with an id above since, oldest first, at most limit of them;
+    // only the last MAX_ALERTS are kept.
+    public List<Alert> alerts(long since, int limit) {
+        List<Alert> result = new ArrayList<>();
+        synchronized (alerts) {
+            long first = Math.max(since + 1, Math.max(1, nextAlertId - MAX_ALERTS));
+            for (long id = first; id < nextAlertId && result.size() < limit; id++) {
+                result.add(alerts[(int) (id % MAX_ALERTS)]);
+            }
+        }
+        return result;
+    }
+
+    public long lastAlertId() {
+        synchronized (alerts) {
+            return nextAlertId - 1;
+        }
+    }
+
+    public long observedCount() {
+        return observed;
+    }
+
+    // Hash of the letters only, lower-cased; never 0, which marks an empty
+    // payee slot.
+    static long payeeHash(String description) {
+        long hash = 0xcbf29ce484222325L;
+        if (description != null) {
+            for (int i = 0; i < description.length(); i++) {
+                char c = description.charAt(i);
+                if (Character.isLetter(c)) {
+                    hash = (hash ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                }
+            }
+        }
+        hash = mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
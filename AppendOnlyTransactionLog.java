@@ -0,0 +1,445 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Binary write-ahead log for transactions. Every add appends one record to
+// <base>.log, so the cost of an add does not depend on the ledger size.
+//
+// File header:  int magic, short version, long generation
+// Record:       int payloadLength
+//               byte type (3 = expense, 4 = income)
+//               long date (epoch millis)
+//               long amount (minor units, see Money)
+//               short textLength, text bytes (description or source, UTF-8)
+//               short labelLength, label bytes (category, empty for income)
+//               int crc32 of the payload
+//
+// Version 1 files hold types 1 and 2, whose amount is the IEEE-754 bits of
+// the major amount; a double cannot hold every long of minor units, so those
+// records are still read but no longer written. Each record names its type,
+// so a version 1 log reopened for appends only has its version raised.
+//
+// Once the log grows past the compaction threshold it is rotated to
+// <base>.segment and a background thread merges that segment into
+// <base>.snapshot, a mapped LedgerSnapshot. The snapshot header remembers the
+// last merged generation, so a crash at any point of the merge never replays
+// a record twice. Startup maps the snapshot and replays only the segment and
+// the log, which the compaction threshold keeps small.
+public class AppendOnlyTransactionLog implements TransactionStore {
+    private static final int MAGIC = 0x45544C47; // "ETLG"
+    private static final short VERSION = 2;
+    private static final short DOUBLE_AMOUNT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 4 + 2 + 8;
+    private static final int FIXED_PAYLOAD_SIZE = 1 + 8 + 8 + 2 + 2;
+    // The longest description, category or source a record holds, in UTF-8
+    static final int MAX_TEXT_BYTES = 0xFFFF;
+    private static final byte TYPE_DOUBLE_EXPENSE = 1;
+    private static final byte TYPE_DOUBLE_INCOME = 2;
+    private static final byte TYPE_EXPENSE = 3;
+    private static final byte TYPE_INCOME = 4;
+
+    private static final Metrics.Histogram WRITE_TIME = Metrics.histogram("expensetracker_log_write_seconds",
+            "Time to write one batch of records to the log, excluding fsync");
+    private static final Metrics.Histogram FSYNC_TIME = Metrics.histogram("expensetracker_log_fsync_seconds",
+            "Time to force the log to disk");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("expensetracker_log_bytes_written_total",
+            "Bytes appended to the log");
+    private static final Metrics.Counter RECORDS_WRITTEN = Metrics.counter("expensetracker_log_records_written_total",
+            "Records appended to the log");
+    private static final Metrics.Counter COMPACTIONS = Metrics.counter("expensetracker_log_compactions_total",
+            "Log segments merged into the snapshot");
+
+    private final Path logPath;
+    private final Path segmentPath;
+    private final Path snapshotPath;
+    private final Path snapshotTempPath;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final long compactionThreshold;
+    private final ScheduledExecutorService background;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel log;
+    private long generation;
+    private long lastForceNanos;
+    private boolean dirty;
+    private boolean compacting;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(256);
+
+    public AppendOnlyTransactionLog(String baseName, FsyncPolicy fsyncPolicy,
+                                    long fsyncIntervalMillis, long compactionThreshold) throws IOException {
+        this.logPath = Paths.get(baseName + ".log");
+        this.segmentPath = Paths.get(baseName + ".segment");
+        this.snapshotPath = Paths.get(baseName + ".snapshot");
+        this.snapshotTempPath = Paths.get(baseName + ".snapshot.tmp");
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.compactionThreshold = compactionThreshold;
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transaction-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (Files.exists(snapshotPath) && !LedgerSnapshot.isSnapshot(snapshotPath)) {
+            rewriteRecordSnapshot();
+        }
+        long snapshotGeneration = Files.exists(snapshotPath) ? LedgerSnapshot.open(snapshotPath).generation() : 0;
+        if (Files.exists(segmentPath) && readGeneration(segmentPath) <= snapshotGeneration) {
+            // The merge finished but the segment was not removed yet
+            Files.delete(segmentPath);
+        }
+        long segmentGeneration = Files.exists(segmentPath) ? readGeneration(segmentPath) : 0;
+
+        if (Files.exists(logPath) && Files.size(logPath) >= FILE_HEADER_SIZE) {
+            log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            generation = readGeneration(logPath);
+            if (readVersion(logPath) == DOUBLE_AMOUNT_VERSION) {
+                log.write(ByteBuffer.allocate(2).putShort(0, VERSION), 4);
+                log.force(true);
+            }
+        } else {
+            generation = Math.max(snapshotGeneration, segmentGeneration) + 1;
+            log = createFile(logPath, generation);
+        }
+        log.position(log.size());
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            background.scheduleWithFixedDelay(this::flushQuietly,
+                    fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void replay(RecordHandler handler) throws IOException {
+        synchronized (lock) {
+            if (Files.exists(snapshotPath)) {
+                handler.onSnapshot(LedgerSnapshot.open(snapshotPath));
+            }
+            if (Files.exists(segmentPath)) {
+                readRecords(segmentPath, handler, false);
+            }
+            long validEnd = readRecords(logPath, handler, true);
+            if (validEnd < log.size()) {
+                System.out.println("Discarding incomplete record at end of " + logPath);
+                log.truncate(validEnd);
+                log.force(true);
+            }
+            log.position(validEnd);
+            if (Files.exists(segmentPath)) {
+                // A previous run stopped before merging its last segment
+                compacting = true;
+                background.execute(this::mergeSegmentQuietly);
+            }
+        }
+    }
+
+    @Override
+    public void appendExpense(Expense expense) throws IOException {
+        appendBatch(Collections.singletonList(expense), Collections.emptyList());
+    }
+
+    @Override
+    public void appendIncome(Income income) throws IOException {
+        appendBatch(Collections.emptyList(), Collections.singletonList(income));
+    }
+
+    // A durable batch is forced under every policy but NEVER, which opts out
+    // of fsync altogether.
+    @Override
+    public void appendBatch(List<Expense> expenses, List<Income> incomes, boolean durable) throws IOException {
+        synchronized (lock) {
+            ByteBuffer buffer = writeBuffer;
+            buffer.clear();
+            for (Expense expense : expenses) {
+                buffer = encode(buffer, TYPE_EXPENSE, expense.getDate(), expense.getAmountMinor(),
+                        expense.getDescription(), expense.getCategory());
+            }
+            for (Income income : incomes) {
+                buffer = encode(buffer, TYPE_INCOME, income.getDate(), income.getAmountMinor(),
+                        income.getSource(), "");
+            }
+            buffer.flip();
+
+            long start = log.position();
+            long startNanos = System.nanoTime();
+            try {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+            } catch (IOException e) {
+                // Never leave a torn record in front of the next append
+                log.truncate(start);
+                log.position(start);
+                throw e;
+            }
+            WRITE_TIME.recordNanos(System.nanoTime() - startNanos);
+            BYTES_WRITTEN.add(buffer.limit());
+            RECORDS_WRITTEN.add(expenses.size() + incomes.size());
+            dirty = true;
+            afterAppend(durable);
+        }
+    }
+
+    // Appends one framed record to the buffer, growing it when needed.
+    private ByteBuffer encode(ByteBuffer buffer, byte type, Date date, long amount,
+                              String text, String label) {
+        byte[] textBytes = encode(text);
+        byte[] labelBytes = encode(label);
+        int payloadLength = FIXED_PAYLOAD_SIZE + textBytes.length + labelBytes.length;
+        if (buffer.remaining() < 4 + payloadLength + 4) {
+            buffer = growWriteBuffer(buffer, 4 + payloadLength + 4);
+        }
+        int payloadStart = buffer.position() + 4;
+        buffer.putInt(payloadLength);
+        buffer.put(type);
+        buffer.putLong(date.getTime());
+        buffer.putLong(amount);
+        buffer.putShort((short) textBytes.length).put(textBytes);
+        buffer.putShort((short) labelBytes.length).put(labelBytes);
+        crc.reset();
+        crc.update(buffer.array(), payloadStart, payloadLength);
+        buffer.putInt((int) crc.getValue());
+        return buffer;
+    }
+
+    private void afterAppend(boolean durable) throws IOException {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS || (durable && fsyncPolicy != FsyncPolicy.NEVER)) {
+            force();
+        } else if (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForceNanos >= fsyncIntervalNanos) {
+            force();
+        }
+        if (log.position() >= compactionThreshold && !compacting) {
+            compacting = true;
+            background.execute(this::compactQuietly);
+        }
+    }
+
+    private void force() throws IOException {
+        long start = System.nanoTime();
+        log.force(false);
+        lastForceNanos = System.nanoTime();
+        FSYNC_TIME.recordNanos(lastForceNanos - start);
+        dirty = false;
+    }
+
+    private void flushQuietly() {
+        synchronized (lock) {
+            if (!dirty || !log.isOpen()) return;
+            try {
+                force();
+            } catch (IOException e) {
+                System.err.println("Error flushing transaction log: " + e.getMessage());
+            }
+        }
+    }
+
+    // Moves the current log aside and merges it into the snapshot.
+    private void compactQuietly() {
+        try {
+            synchronized (lock) {
+                if (!log.isOpen()) return;
+                force();
+                log.close();
+                Files.move(logPath, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+                generation++;
+                log = createFile(logPath, generation);
+            }
+            mergeSegment();
+        } catch (IOException e) {
+            System.err.println("Error compacting transaction log: " + e.getMessage());
+        } finally {
+            synchronized (lock) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void mergeSegmentQuietly() {
+        try {
+            mergeSegment();
+        } catch (IOException e) {
+            System.err.println("Error compacting transaction log: " + e.getMessage());
+        } finally {
+            synchronized (lock) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void mergeSegment() throws IOException {
+        long segmentGeneration = readGeneration(segmentPath);
+        LedgerSnapshot base = Files.exists(snapshotPath) ? LedgerSnapshot.open(snapshotPath) : null;
+        LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(base);
+        readRecords(segmentPath, writer, false);
+        writer.write(snapshotPath, snapshotTempPath, segmentGeneration);
+        Files.delete(segmentPath);
+        COMPACTIONS.increment();
+    }
+
+    // Snapshots written before the mapped format are record files like the
+    // log; convert one in place on first start.
+    private void rewriteRecordSnapshot() throws IOException {
+        LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(null);
+        long snapshotGeneration = readGeneration(snapshotPath);
+        readRecords(snapshotPath, writer, false);
+        writer.write(snapshotPath, snapshotTempPath, snapshotGeneration);
+        System.out.println("Converted " + snapshotPath + " to the mapped snapshot format");
+    }
+
+    // Returns the offset just past the last intact record. A damaged record in
+    // the live log is an interrupted append; anywhere else it is corruption.
+    private long readRecords(Path path, RecordHandler handler, boolean tolerateTornTail) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            checkHeader(in, path);
+            long offset = FILE_HEADER_SIZE;
+            byte[] payload = new byte[256];
+            CRC32 check = new CRC32();
+            while (true) {
+                int payloadLength;
+                try {
+                    payloadLength = in.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                try {
+                    if (payloadLength < FIXED_PAYLOAD_SIZE || payloadLength > FIXED_PAYLOAD_SIZE + 2 * MAX_TEXT_BYTES) {
+                        throw new IOException("Invalid record length " + payloadLength);
+                    }
+                    if (payload.length < payloadLength) {
+                        payload = new byte[Math.max(payloadLength, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, payloadLength);
+                    int storedCrc = in.readInt();
+                    check.reset();
+                    check.update(payload, 0, payloadLength);
+                    if ((int) check.getValue() != storedCrc) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                } catch (IOException e) {
+                    if (tolerateTornTail) {
+                        return offset;
+                    }
+                    throw new IOException("Corrupt record in " + path + " at offset " + offset + ": " + e.getMessage());
+                }
+                decode(ByteBuffer.wrap(payload, 0, payloadLength), handler);
+                offset += 4 + payloadLength + 4;
+            }
+        }
+    }
+
+    private static void decode(ByteBuffer payload, RecordHandler handler) throws IOException {
+        byte type = payload.get();
+        Date date = new Date(payload.getLong());
+        long amount = payload.getLong();
+        String text = readString(payload);
+        String label = readString(payload);
+        if (type == TYPE_EXPENSE) {
+            handler.onExpense(Expense.ofMinor(text, amount, date, label));
+        } else if (type == TYPE_INCOME) {
+            handler.onIncome(Income.ofMinor(text, amount, date));
+        } else if (type == TYPE_DOUBLE_EXPENSE) {
+            handler.onExpense(new Expense(text, Double.longBitsToDouble(amount), date, label));
+        } else if (type == TYPE_DOUBLE_INCOME) {
+            handler.onIncome(new Income(text, Double.longBitsToDouble(amount), date));
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    // Whether a record can hold value; only long strings are encoded to tell.
+    static boolean fitsRecord(String value) {
+        return value == null || value.length() <= MAX_TEXT_BYTES / 3
+                || value.getBytes(StandardCharsets.UTF_8).length <= MAX_TEXT_BYTES;
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TEXT_BYTES) {
+            throw new IllegalArgumentException("Text longer than " + MAX_TEXT_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    private ByteBuffer growWriteBuffer(ByteBuffer buffer, int needed) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        grown.put(buffer);
+        writeBuffer = grown;
+        return grown;
+    }
+
+    private static FileChannel createFile(Path path, long generation) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        return channel;
+    }
+
+    private static long readGeneration(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return checkHeader(in, path);
+        }
+    }
+
+    // Of a file whose header readGeneration already checked
+    private static short readVersion(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            in.readInt();
+            return in.readShort();
+        }
+    }
+
+    private static long checkHeader(DataInputStream in, Path path) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(path + " is not a transaction log");
+        }
+        short version = in.readShort();
+        if (version != VERSION && version != DOUBLE_AMOUNT_VERSION) {
+            throw new IOException("Unsupported log version " + version + " in " + path);
+        }
+        return in.readLong();
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (log.isOpen()) {
+                log.force(true);
+                log.close();
+            }
+        }
+    }
+}
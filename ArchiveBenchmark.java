@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Compares a LedgerArchive with the uncompressed LedgerSnapshot of the same
+// rows: file size, rows per second decoding the whole file into Expense and
+// Income objects, and the time to decode one month.
+//
+//   java -Xmx3g ArchiveBenchmark [rows ...]        (default 1000000 10000000)
+//
+// Each size is run twice: on SyntheticLedger's rows, whose descriptions are
+// all different ("Coffee #1234"), and on the same rows without the numbers,
+// where descriptions repeat as they do in real ledgers. The snapshot has no
+// month index, so its month is found by scanning the day column and only the
+// matching rows are built. Times are the best of bench.iterations (default 3)
+// on a warm page cache.
+public class ArchiveBenchmark {
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 3);
+    private static final YearMonth MONTH = YearMonth.of(2022, 6);
+
+    public static void main(String[] args) throws IOException {
+        long[] sizes = args.length == 0 ? new long[]{1_000_000, 10_000_000} : new long[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Long.parseLong(args[i]);
+        }
+        System.out.printf("%-10s %10s %12s %12s %7s %15s %15s %14s %14s%n", "rows", "count", "snapshot MB",
+                "archive MB", "ratio", "snapshot Mrow/s", "archive Mrow/s", "snapshot month", "archive month");
+        for (long size : sizes) {
+            run((int) size, false);
+            run((int) size, true);
+        }
+    }
+
+    private static void run(int rows, boolean repeating) throws IOException {
+        Path directory = Files.createTempDirectory("archive-benchmark");
+        try {
+            String base = directory.resolve("ledger").toString();
+            Path snapshotPath = Path.of(base + ".snapshot");
+            Path archivePath = directory.resolve("ledger.archive");
+            LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(null);
+            new SyntheticLedger(SyntheticLedger.DEFAULT_SEED).feed(rows, repeating ? withoutNumbers(writer) : writer);
+            writer.write(snapshotPath, Path.of(base + ".snapshot.tmp"), 0);
+            TransactionManager manager = new TransactionManager(
+                    new AppendOnlyTransactionLog(base, FsyncPolicy.NEVER, 100, Long.MAX_VALUE));
+            try {
+                LedgerArchive.write(manager.version(), archivePath, directory.resolve("ledger.archive.tmp"));
+            } finally {
+                manager.close();
+            }
+
+            LedgerSnapshot snapshot = LedgerSnapshot.open(snapshotPath);
+            LedgerArchive archive = LedgerArchive.open(archivePath);
+            Counter counter = new Counter();
+            long snapshotFull = best(() -> snapshot.replay(counter));
+            long archiveFull = best(() -> archive.replay(counter));
+            int fromDay = (int) MONTH.atDay(1).toEpochDay();
+            int toDay = (int) MONTH.plusMonths(1).atDay(1).toEpochDay();
+            long snapshotMonth = best(() -> snapshotMonth(snapshot, fromDay, toDay, counter));
+            long archiveMonth = best(() -> archive.read(MONTH, counter));
+            if (counter.checksum == 42) System.out.println();
+
+            long snapshotBytes = Files.size(snapshotPath);
+            long archiveBytes = Files.size(archivePath);
+            System.out.printf("%-10s %10d %12.1f %12.1f %6.2fx %15.2f %15.2f %11.2f ms %11.2f ms%n",
+                    repeating ? "repeating" : "numbered", rows, snapshotBytes / 1e6, archiveBytes / 1e6,
+                    (double) snapshotBytes / archiveBytes, rows * 1e3 / snapshotFull, rows * 1e3 / archiveFull,
+                    snapshotMonth / 1e6, archiveMonth / 1e6);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static long best(Task task) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // Builds the snapshot rows dated within [fromDay, toDay).
+    private static void snapshotMonth(LedgerSnapshot snapshot, int fromDay, int toDay,
+                                      TransactionStore.RecordHandler handler) {
+        ByteBuffer rows = snapshot.expenseRows();
+        ByteBuffer text = snapshot.expenseText();
+        List<String> categories = snapshot.categories();
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < snapshot.expenseCount(); i++) {
+            int offset = i * LedgerSnapshot.EXPENSE_ROW_SIZE;
+            int day = rows.getInt(offset + 8);
+            if (day < fromDay || day >= toDay) continue;
+            int start = i == 0 ? 0 : rows.getInt(offset - 4);
+            int length = rows.getInt(offset + 16) - start;
+            if (bytes.length < length) bytes = new byte[length];
+            text.get(start, bytes, 0, length);
+            handler.onExpense(Expense.ofMinor(new String(bytes, 0, length, StandardCharsets.UTF_8),
+                    rows.getLong(offset), ColumnarLedger.toDate(day), categories.get(rows.getInt(offset + 12))));
+        }
+        ByteBuffer incomeRows = snapshot.incomeRows();
+        List<String> sources = snapshot.sources();
+        for (int i = 0; i < snapshot.incomeCount(); i++) {
+            int offset = i * LedgerSnapshot.INCOME_ROW_SIZE;
+            int day = incomeRows.getInt(offset + 8);
+            if (day < fromDay || day >= toDay) continue;
+            handler.onIncome(Income.ofMinor(sources.get(incomeRows.getInt(offset + 12)),
+                    incomeRows.getLong(offset), ColumnarLedger.toDate(day)));
+        }
+    }
+
+    // "Coffee #1234" becomes "Coffee".
+    private static TransactionStore.RecordHandler withoutNumbers(TransactionStore.RecordHandler target) {
+        return new TransactionStore.RecordHandler() {
+            @Override
+            public void onExpense(Expense expense) {
+                String description = expense.getDescription();
+                int mark = description.indexOf(" #");
+                target.onExpense(Expense.ofMinor(mark < 0 ? description : description.substring(0, mark),
+                        expense.getAmountMinor(), expense.getDate(), expense.getCategory()));
+            }
+
+            @Override
+            public void onIncome(Income income) {
+                target.onIncome(income);
+            }
+        };
+    }
+
+    private static final class Counter implements TransactionStore.RecordHandler {
+        long checksum;
+
+        @Override
+        public void onExpense(Expense expense) {
+            checksum += expense.getAmountMinor() + expense.getDescription().length() + expense.getDate().getTime();
+        }
+
+        @Override
+        public void onIncome(Income income) {
+            checksum += income.getAmountMinor() + income.getSource().length();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+// The measured operations behind both benchmark harnesses: the JMH
+// benchmarks in jmh/, which give the reference numbers, and the
+// dependency-free Benchmarks main class. JMH cannot generate code for
+// benchmarks in the default package and a named package cannot see these
+// classes, so the JMH side reaches them through open(), which needs only
+// JDK types.
+//
+// Each workload is a LongSupplier whose result depends on the work done,
+// so the JIT cannot drop it. Ledgers come from SyntheticLedger with a fixed
+// seed, so runs are comparable across commits.
+public final class BenchmarkWorkloads {
+    // The workloads run against a ledger of a given number of rows
+    static final List<String> LEDGER = List.of("calculateTotalExpenses", "calculateMonthlyExpenses",
+            "calculateExpensesBetween", "getMonthlySummary", "report", "reportByMonthlySummaries",
+            "handleGetTransactions", "sumLong", "sumDouble", "minMaxLong", "minMaxDouble", "sumCentsLedger");
+    // And the ones that bring their own state
+    static final List<String> STANDALONE = List.of("addExpense", "readTransactions1", "readTransactions100",
+            "anomalyDetector");
+
+    private BenchmarkWorkloads() {
+    }
+
+    // The named workload, given "rows" for the ledger workloads and "fsync"
+    // for addExpense. The result is also Closeable; closing it deletes
+    // whatever files it wrote.
+    public static LongSupplier open(String name, Map<String, String> parameters) throws IOException {
+        if (LEDGER.contains(name)) {
+            Ledger ledger = new Ledger(Integer.parseInt(parameters.get("rows")));
+            return new Closing(ledger.workload(name), ledger);
+        }
+        switch (name) {
+            case "addExpense":
+                return addExpense(FsyncPolicy.fromProperty(parameters.get("fsync")));
+            case "readTransactions1":
+                return new Closing(readTransactions(1), () -> { });
+            case "readTransactions100":
+                return new Closing(readTransactions(100), () -> { });
+            case "anomalyDetector":
+                return new Closing(anomalyDetector(), () -> { });
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    // A workload that releases what it runs against when closed.
+    static final class Closing implements LongSupplier, Closeable {
+        private final LongSupplier operation;
+        private final Closeable resource;
+
+        Closing(LongSupplier operation, Closeable resource) {
+            this.operation = operation;
+            this.resource = resource;
+        }
+
+        @Override
+        public long getAsLong() {
+            return operation.getAsLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            resource.close();
+        }
+    }
+
+    // Persisted adds to an empty ledger under the given fsync policy.
+    static Closing addExpense(FsyncPolicy fsync) throws IOException {
+        Path directory = Files.createTempDirectory("benchmarks");
+        TransactionManager manager = new TransactionManager(new AppendOnlyTransactionLog(
+                directory.resolve("add").toString(), fsync, 100, 64L << 20));
+        // Pre-generate so the measurement covers the add, not the generator
+        Expense[] expenses = expenses();
+        int[] next = new int[1];
+        return new Closing(() -> {
+            manager.addExpense(expenses[next[0]++ & (expenses.length - 1)]);
+            return next[0];
+        }, () -> {
+            manager.close();
+            delete(directory);
+        });
+    }
+
+    // The POST /api/transactions body reader on an array of the given
+    // number of transactions (a bare object for one); ops are bodies.
+    static LongSupplier readTransactions(int count) {
+        String one = "{\"type\":\"expense\",\"description\":\"Groceries #17\",\"amount\":42.5,"
+                + "\"date\":\"2024-03-01\",\"category\":\"Food\"}";
+        StringBuilder body = new StringBuilder(count == 1 ? "" : "[");
+        for (int i = 0; i < count; i++) {
+            body.append(i == 0 ? "" : ",").append(one);
+        }
+        byte[] bytes = body.append(count == 1 ? "" : "]").toString().getBytes(StandardCharsets.UTF_8);
+        TransactionJsonReader reader = new TransactionJsonReader();
+        long[] sum = new long[1];
+        TransactionJsonReader.Handler handler = record -> sum[0] += record.toExpense().getAmountMinor();
+        return () -> reader.read(bytes, handler) + sum[0];
+    }
+
+    // AnomalyDetector.observe, which runs inside every add.
+    static LongSupplier anomalyDetector() {
+        Expense[] expenses = expenses();
+        AnomalyDetector detector = new AnomalyDetector();
+        int[] next = new int[1];
+        return () -> {
+            detector.observe(expenses[next[0]++ & (expenses.length - 1)]);
+            return next[0];
+        };
+    }
+
+    private static Expense[] expenses() {
+        SyntheticLedger ledger = new SyntheticLedger(SyntheticLedger.DEFAULT_SEED);
+        Expense[] expenses = new Expense[1 << 16];
+        for (int i = 0; i < expenses.length; i++) {
+            expenses[i] = ledger.nextExpense();
+        }
+        return expenses;
+    }
+
+    // A TransactionManager opened on a synthetic snapshot in a temporary
+    // directory, which close() deletes.
+    static final class Ledger implements Closeable {
+        final int rows;
+        final TransactionManager manager;
+        private final Path directory;
+        private int month;
+
+        Ledger(int rows) throws IOException {
+            this.rows = rows;
+            this.directory = Files.createTempDirectory("benchmarks");
+            String baseName = directory.resolve("ledger").toString();
+            SyntheticLedger.writeSnapshot(baseName, rows, SyntheticLedger.DEFAULT_SEED);
+            this.manager = new TransactionManager(
+                    new AppendOnlyTransactionLog(baseName, FsyncPolicy.NEVER, 100, Long.MAX_VALUE));
+        }
+
+        LongSupplier workload(String name) {
+            switch (name) {
+                case "calculateTotalExpenses":
+                    return () -> (long) manager.calculateTotalExpenses();
+                case "calculateMonthlyExpenses":
+                    return () -> {
+                        int m = month++ % 60;
+                        return (long) manager.calculateMonthlyExpenses(m % 12, 2020 + m / 12);
+                    };
+                case "calculateExpensesBetween":
+                    // Ranges of 1 to 1000 days starting anywhere in 2020-2024
+                    LocalDate start = LocalDate.of(2020, 1, 1);
+                    return () -> {
+                        int m = month++;
+                        LocalDate from = start.plusDays(m * 37 % 1826);
+                        return (long) manager.calculateExpensesBetween(from, from.plusDays(1 + m * 101 % 1000));
+                    };
+                case "getMonthlySummary":
+                    return () -> {
+                        int m = month++ % 60;
+                        return manager.getMonthlySummary(m % 12, 2020 + m / 12).length();
+                    };
+                case "report":
+                    // Five years by month in one pass...
+                    SummaryPeriod years = SummaryPeriod.between(LocalDate.of(2020, 1, 1), LocalDate.of(2025, 1, 1));
+                    return () -> manager.report(years, ReportEngine.GroupBy.MONTH).rows;
+                case "reportByMonthlySummaries":
+                    // ...against the old way of asking for each month's summary
+                    return () -> {
+                        long length = 0;
+                        for (int m = 0; m < 60; m++) {
+                            length += manager.getMonthlySummary(m % 12, 2020 + m / 12).length();
+                        }
+                        return length;
+                    };
+                case "handleGetTransactions":
+                    CountingOutputStream out = new CountingOutputStream();
+                    return () -> {
+                        try {
+                            TransactionJsonEncoder.writeTransactions(manager, out);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return out.count;
+                    };
+                case "sumCentsLedger":
+                    ColumnarLedger.Version expenses = manager.version().expenses();
+                    return expenses::sumCents;
+                default:
+                    return kernel(name);
+            }
+        }
+
+        // The exact long kernels against the double loops they replaced, over
+        // the expense amounts copied into flat arrays.
+        private LongSupplier kernel(String name) {
+            ColumnarLedger.Version expenses = manager.version().expenses();
+            int size = expenses.size();
+            long[] cents = new long[size];
+            double[] amounts = new double[size];
+            for (int i = 0; i < size; i++) {
+                cents[i] = expenses.centsAt(i);
+                amounts[i] = Money.toMajor(cents[i]);
+            }
+            switch (name) {
+                case "sumLong":
+                    return () -> Money.sum(cents, 0, size);
+                case "sumDouble":
+                    return () -> {
+                        double total = 0;
+                        for (double amount : amounts) {
+                            total += amount;
+                        }
+                        return (long) total;
+                    };
+                case "minMaxLong":
+                    return () -> Money.min(cents, 0, size) + Money.max(cents, 0, size);
+                case "minMaxDouble":
+                    return () -> {
+                        double min = Double.POSITIVE_INFINITY;
+                        double max = Double.NEGATIVE_INFINITY;
+                        for (double amount : amounts) {
+                            min = Math.min(min, amount);
+                            max = Math.max(max, amount);
+                        }
+                        return (long) (min + max);
+                    };
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark " + name);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            manager.close();
+            delete(directory);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
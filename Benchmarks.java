@@ -0,0 +1,145 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+// A quick, dependency-free run of the benchmarks in BenchmarkWorkloads; the
+// JMH module in jmh/ (gradle :jmh:jmh) is the reference. Each benchmark
+// runs warmup iterations, then measured iterations of a fixed duration, and
+// reports throughput together with the bytes allocated per operation and
+// the collections that happened while measuring.
+//
+//   java -Xmx4g Benchmarks [name filter]
+//
+// System properties: bench.rows (default 10000,1000000,10000000),
+// bench.warmup (default 3 iterations), bench.iterations (default 5),
+// bench.seconds (default 1 per iteration), bench.fsync (default interval).
+public class Benchmarks {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.seconds", 1) * 1_000_000_000L;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Keeps results alive so the JIT cannot drop the measured work
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : System.getProperty("bench.rows", "10000,1000000,10000000").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        System.out.printf("%-26s %10s %14s %12s %12s %12s %9s %8s%n", "Benchmark", "(rows)",
+                "ops/s", "error", "ns/op", "B/op", "gc count", "gc ms");
+        if ("addExpense".contains(filter)) {
+            FsyncPolicy fsync = FsyncPolicy.fromProperty(System.getProperty("bench.fsync"));
+            try (BenchmarkWorkloads.Closing workload = BenchmarkWorkloads.addExpense(fsync)) {
+                measure("addExpense[" + fsync.name().toLowerCase() + "]", "-", workload);
+            }
+        }
+        for (String name : List.of("readTransactions1", "readTransactions100")) {
+            if (name.contains(filter)) {
+                measure(name, "-", BenchmarkWorkloads.readTransactions(name.equals("readTransactions1") ? 1 : 100));
+            }
+        }
+        if ("anomalyDetector".contains(filter)) {
+            benchmarkAnomalyDetector();
+        }
+        for (int rows : sizes) {
+            if (BenchmarkWorkloads.LEDGER.stream().noneMatch(name -> name.contains(filter))) break;
+            try (BenchmarkWorkloads.Ledger ledger = new BenchmarkWorkloads.Ledger(rows)) {
+                for (String name : BenchmarkWorkloads.LEDGER) {
+                    if (name.contains(filter)) {
+                        measure(name, String.valueOf(rows), ledger.workload(name));
+                    }
+                }
+            }
+        }
+    }
+
+    // The detector runs inside every add, so it has a budget: the mean cost
+    // per expense must stay under bench.detectorBudgetNanos (default 1000).
+    private static void benchmarkAnomalyDetector() {
+        long budget = Long.getLong("bench.detectorBudgetNanos", 1000);
+        double nanos = measure("anomalyDetector", "-", BenchmarkWorkloads.anomalyDetector());
+        System.out.printf("%-26s %10s %14s%n", "  budget " + budget + " ns/op", "-",
+                nanos <= budget ? "within" : "EXCEEDED");
+    }
+
+    // Runs the operation for the warmup and measured iterations and prints
+    // one result line; returns the mean ns/op.
+    static double measure(String name, String param, LongSupplier operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(operation);
+        }
+        double[] rates = new double[ITERATIONS];
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long[] result = iteration(operation);
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            operations += result[0];
+            nanos += result[1];
+            rates[i] = result[0] * 1e9 / result[1];
+        }
+        gcCount = gcCount() - gcCount;
+        gcMillis = gcMillis() - gcMillis;
+
+        double mean = operations * 1e9 / nanos;
+        double deviation = 0;
+        for (double rate : rates) {
+            deviation += (rate - mean) * (rate - mean);
+        }
+        deviation = ITERATIONS > 1 ? Math.sqrt(deviation / (ITERATIONS - 1)) : 0;
+        System.out.printf("%-26s %10s %14.1f %12s %12.1f %12.1f %9d %8d%n", name, param, mean,
+                "+- " + String.format("%.1f", deviation), (double) nanos / operations,
+                (double) allocated / operations, gcCount, gcMillis);
+        return (double) nanos / operations;
+    }
+
+    // One timed iteration; returns {operations, nanos}.
+    private static long[] iteration(LongSupplier operation) {
+        long operations = 0;
+        long result = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed = 0;
+        do {
+            // Grow the batch between clock reads for fast operations only, so
+            // slow ones still stop on time
+            for (int i = 0; i < batch; i++) {
+                result += operation.getAsLong();
+            }
+            operations += batch;
+            long now = System.nanoTime() - start;
+            if (now - elapsed < 100_000 && batch < 1 << 16) {
+                batch *= 2;
+            }
+            elapsed = now;
+        } while (elapsed < ITERATION_NANOS);
+        sink = result;
+        return new long[]{operations, elapsed};
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,39 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Fixed-size direct buffers reused across connections. Used only from the
+// selector thread, so it needs no locking.
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // Buffers that did not come from this pool are left to the GC.
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize && free.size() < maxPooled) {
+            free.push(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,177 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Spending per category and month: count, sum, min, max and a QuantileSketch
+// of the amounts. Like the query indexes, the rollups are built from the
+// published expense rows on first use and extended with the new rows on each
+// later use, so adds stay cheap and a mapped snapshot is not scanned at
+// startup. A summary merges the rollups of the requested months, so its cost
+// grows with categories x months, never with the number of rows.
+//
+// Not thread-safe; TransactionManager calls it under a lock of its own, not
+// the writer lock, so the first summary of a large ledger does not stall
+// commits while it rolls up every row.
+public class CategoryRollups {
+    static final int DEFAULT_TOP = 10;
+    static final int MAX_TOP = 1000;
+
+    // Aggregates of a set of expense amounts, in cents.
+    public static final class Rollup {
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        final QuantileSketch amounts = new QuantileSketch();
+
+        void add(long cents) {
+            count++;
+            sum = Math.addExact(sum, cents);
+            min = Math.min(min, cents);
+            max = Math.max(max, cents);
+            amounts.add(cents);
+        }
+
+        void merge(Rollup other) {
+            count += other.count;
+            sum = Math.addExact(sum, other.sum);
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            amounts.merge(other.amounts);
+        }
+
+        // Sketch estimate clamped to the exact min and max.
+        long quantile(double q) {
+            return count == 0 ? 0 : Math.max(min, Math.min(max, amounts.quantile(q)));
+        }
+    }
+
+    public static final class Category {
+        final String name;
+        final Rollup rollup;
+
+        Category(String name, Rollup rollup) {
+            this.name = name;
+            this.rollup = rollup;
+        }
+    }
+
+    // All categories merged, plus the top categories by total spend.
+    public static final class Summary {
+        final Rollup total = new Rollup();
+        final List<Category> top = new ArrayList<>();
+        int categoryCount;
+    }
+
+    // from and to are months (yyyy-MM, to exclusive); top is the number of
+    // categories returned.
+    public static final class Query {
+        int fromMonth = Integer.MIN_VALUE;
+        int toMonth = Integer.MAX_VALUE;
+        int top = DEFAULT_TOP;
+
+        public static Query parse(String queryString) {
+            Query query = new Query();
+            for (String pair : queryString.split("&")) {
+                if (pair.isEmpty()) continue;
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                switch (name) {
+                    case "from":
+                        query.fromMonth = parseMonth(value);
+                        break;
+                    case "to":
+                        query.toMonth = parseMonth(value);
+                        break;
+                    case "top":
+                        query.top = Integer.parseInt(value);
+                        if (query.top < 1 || query.top > MAX_TOP) {
+                            throw new IllegalArgumentException("top must be between 1 and " + MAX_TOP);
+                        }
+                        break;
+                    default:
+                        // Unknown parameters are ignored, as for transaction queries
+                }
+            }
+            return query;
+        }
+
+        private static int parseMonth(String value) {
+            try {
+                YearMonth month = YearMonth.parse(value);
+                return monthIndex(month.getYear(), month.getMonthValue() - 1);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid month " + value + ", expected yyyy-MM");
+            }
+        }
+    }
+
+    // Rollups by category id, then by month index
+    private final List<Map<Integer, Rollup>> byCategory = new ArrayList<>();
+    private int rolledUpRows;
+    private int lastDay = Integer.MIN_VALUE;
+    private int lastMonth;
+
+    static int monthIndex(int year, int month) {
+        return year * 12 + month;
+    }
+
+    // Adds the rows published since the last call.
+    void catchUp(ColumnarLedger.Version expenses) {
+        for (; rolledUpRows < expenses.size(); rolledUpRows++) {
+            int category = expenses.labelIdAt(rolledUpRows);
+            while (byCategory.size() <= category) {
+                byCategory.add(new HashMap<>());
+            }
+            byCategory.get(category)
+                    .computeIfAbsent(monthOf(expenses.epochDayAt(rolledUpRows)), month -> new Rollup())
+                    .add(expenses.centsAt(rolledUpRows));
+        }
+    }
+
+    private int monthOf(int epochDay) {
+        // Rows mostly arrive in date order, so the last day usually repeats
+        if (epochDay != lastDay) {
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            lastDay = epochDay;
+            lastMonth = monthIndex(date.getYear(), date.getMonthValue() - 1);
+        }
+        return lastMonth;
+    }
+
+    Summary summarize(Query query, ColumnarLedger.Version expenses) {
+        Summary summary = new Summary();
+        List<Category> categories = new ArrayList<>();
+        long months = (long) query.toMonth - query.fromMonth;
+        for (int id = 0; id < byCategory.size(); id++) {
+            Map<Integer, Rollup> rollups = byCategory.get(id);
+            Rollup merged = new Rollup();
+            if (months < rollups.size()) {
+                for (int month = query.fromMonth; month < query.toMonth; month++) {
+                    Rollup rollup = rollups.get(month);
+                    if (rollup != null) merged.merge(rollup);
+                }
+            } else {
+                for (Map.Entry<Integer, Rollup> entry : rollups.entrySet()) {
+                    int month = entry.getKey();
+                    if (month >= query.fromMonth && month < query.toMonth) merged.merge(entry.getValue());
+                }
+            }
+            if (merged.count > 0) {
+                categories.add(new Category(expenses.label(id), merged));
+                summary.total.merge(merged);
+            }
+        }
+        categories.sort((a, b) -> Long.compare(b.rollup.sum, a.rollup.sum));
+        summary.categoryCount = categories.size();
+        summary.top.addAll(categories.subList(0, Math.min(query.top, categories.size())));
+        return summary;
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// HTTP/1.1 chunked transfer coding. Every write becomes one chunk, so callers
+// should write in reasonably large blocks.
+public class ChunkedOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return;
+        out.write(Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(bytes, offset, length);
+        out.write(CRLF);
+    }
+
+    // Ends the body. The underlying stream stays open for the next response.
+    public void finish() throws IOException {
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,636 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+
+// Column-oriented storage for one kind of transaction. Each row is an amount
+// in cents (minor units, see Money), an epoch day, a dictionary id for the category or source and,
+// for expenses, a description kept in a shared UTF-8 byte arena.
+//
+// Bytes per record on a 64-bit JVM with compressed oops:
+//
+//   List<Expense>   4 list slot + 32 Expense + 24 Date
+//                   + 40 description String + 40 category String
+//                   = ~140 bytes + description and category text
+//   List<Income>    4 list slot + 32 Income + 24 Date + 40 source String
+//                   = ~100 bytes + source text
+//
+//   columnar expense  8 cents + 4 epoch day + 4 category id + 4 text end
+//                     = 20 bytes + description bytes
+//   columnar income   8 cents + 4 epoch day + 4 source id = 16 bytes
+//
+// The three query indexes (date, amount, date per category or source) add
+// 12 bytes each per row; they are built on first use. Categories and sources
+// cost one dictionary entry per distinct value.
+// Dates are kept at day granularity, which is all the tracker records.
+//
+// Rows loaded from a LedgerSnapshot stay in its mapping and are read from
+// there; only rows added afterwards live in the arrays.
+//
+// Rows added afterwards form a hot tier of on-heap chunks and a cold tier of
+// sealed ones: a full chunk can be copied into a direct buffer (a Segment,
+// with its sum, min, max and date range precomputed) and its arrays dropped,
+// so old history stops counting towards the heap. Chunks are sealed in row
+// order, which lets the text arena drop their descriptions too. Readers go
+// through the same accessors whichever tier a row is in.
+//
+// One writer appends rows and then publishes an immutable Version. Columns
+// are split into fixed-size chunks that a version references directly; it
+// reads only rows below its own size, and the writer only writes past the
+// last published row, so all versions share the same chunks and readers
+// neither lock nor copy.
+public class ColumnarLedger {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // Reusable holder for one row's raw column values.
+    public static class Row {
+        public long cents;
+        public int epochDay;
+        public byte[] label;
+        public byte[] text = new byte[64];
+        public int textLength;
+    }
+
+    private final boolean hasText;
+    private final StringDictionary labels = new StringDictionary();
+    private long[][] cents = new long[16][];
+    private int[][] epochDays = new int[16][];
+    private int[][] labelIds = new int[16][];
+    private int[][] textEnds;
+    private byte[] textArena;
+    private int textSize;       // text offsets run on from the snapshot's
+    private int arenaBase;      // text offset of textArena[0]
+    private int size;
+
+    // Sealed chunks by number, null while a chunk is on-heap. Chunks
+    // [0, sealedChunks) are sealed and their arrays are null.
+    private Segment[] sealed = new Segment[16];
+    private int sealedChunks;
+
+    // Labels by id, grown by copying so published versions keep their array
+    private String[] labelValues = new String[16];
+    private byte[][] labelBytes = new byte[16][];
+    private int labelCount;
+
+    // Rows [0, baseSize) come from a mapped snapshot
+    private ByteBuffer baseRows;
+    private ByteBuffer baseText;
+    private int baseRowSize;
+    private int baseSize;
+
+    private Version published;
+
+    // Sorted indexes for paged queries. They are extended from published
+    // versions, outside this object's lock, so building them over a large
+    // snapshot never holds up appends.
+    private final SortedRowIndex byDate = new SortedRowIndex();
+    private final SortedRowIndex byAmount = new SortedRowIndex();
+    private final List<SortedRowIndex> byLabelDate = new ArrayList<>();
+    private int indexedRows;
+
+    public ColumnarLedger(boolean hasText) {
+        this.hasText = hasText;
+        if (hasText) {
+            textEnds = new int[16][];
+            textArena = new byte[CHUNK_SIZE * 16];
+        }
+        published = new Version(this);
+    }
+
+    // Uses snapshot rows as the first rows of this ledger. Label ids in the
+    // rows refer to the given labels, in order.
+    synchronized void attachSnapshot(ByteBuffer rows, int rowSize, ByteBuffer text, int count, List<String> values) {
+        if (size != 0) {
+            throw new IllegalStateException("Snapshot must be attached to an empty ledger");
+        }
+        for (String label : values) {
+            labelId(label);
+        }
+        baseRows = rows;
+        baseRowSize = rowSize;
+        baseText = text;
+        baseSize = count;
+        size = count;
+    }
+
+    public synchronized void append(long amountCents, Date date, String label, String text) {
+        int local = size - baseSize;
+        int chunk = local >>> CHUNK_SHIFT;
+        int offset = local & CHUNK_MASK;
+        if (offset == 0) {
+            addChunk(chunk);
+        }
+        cents[chunk][offset] = amountCents;
+        epochDays[chunk][offset] = toEpochDay(date);
+        labelIds[chunk][offset] = labelId(label);
+        if (hasText) {
+            byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+            int used = textSize - arenaBase;
+            if (used + bytes.length > textArena.length) {
+                // Published versions keep the old arena, whose contents never change
+                textArena = Arrays.copyOf(textArena, Math.max(textArena.length * 2, used + bytes.length));
+            }
+            System.arraycopy(bytes, 0, textArena, used, bytes.length);
+            textSize += bytes.length;
+            textEnds[chunk][offset] = textSize;
+        }
+        size++;
+    }
+
+    private void addChunk(int chunk) {
+        if (chunk == cents.length) {
+            int capacity = chunk * 2;
+            cents = Arrays.copyOf(cents, capacity);
+            epochDays = Arrays.copyOf(epochDays, capacity);
+            labelIds = Arrays.copyOf(labelIds, capacity);
+            sealed = Arrays.copyOf(sealed, capacity);
+            if (hasText) {
+                textEnds = Arrays.copyOf(textEnds, capacity);
+            }
+        }
+        cents[chunk] = new long[CHUNK_SIZE];
+        epochDays[chunk] = new int[CHUNK_SIZE];
+        labelIds[chunk] = new int[CHUNK_SIZE];
+        if (hasText) {
+            textEnds[chunk] = new int[CHUNK_SIZE];
+        }
+    }
+
+    private int labelId(String label) {
+        int id = labels.idOf(label);
+        if (id == labelCount) {
+            if (id == labelValues.length) {
+                labelValues = Arrays.copyOf(labelValues, id * 2);
+                labelBytes = Arrays.copyOf(labelBytes, id * 2);
+            }
+            labelValues[id] = labels.valueOf(id);
+            labelBytes[id] = labels.bytesOf(id);
+            labelCount++;
+        }
+        return id;
+    }
+
+    // Makes every appended row visible through the returned version. Callers
+    // hand it to readers through a volatile or atomic reference.
+    public synchronized Version publish() {
+        published = new Version(this);
+        return published;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Chunks filled since the snapshot, sealed or not.
+    synchronized int fullChunks() {
+        return (size - baseSize) >>> CHUNK_SHIFT;
+    }
+
+    synchronized long sealedRows() {
+        return (long) sealedChunks << CHUNK_SHIFT;
+    }
+
+    synchronized long sealedBytes() {
+        long bytes = 0;
+        for (int chunk = 0; chunk < sealedChunks; chunk++) {
+            bytes += sealed[chunk].data.capacity();
+        }
+        return bytes;
+    }
+
+    // One full chunk copied into a direct buffer: cents, epoch days, label
+    // ids and, with text, text ends and the text itself, with the aggregates
+    // that let whole-chunk questions skip the rows.
+    static final class Segment {
+        private static final int DAYS = CHUNK_SIZE * 8;
+        private static final int LABELS = DAYS + CHUNK_SIZE * 4;
+        private static final int TEXT_ENDS = LABELS + CHUNK_SIZE * 4;
+        private static final int TEXT = TEXT_ENDS + CHUNK_SIZE * 4;
+
+        final int chunk;
+        final ByteBuffer data;
+        final int textBase;     // text offset of the chunk's first byte
+        final long sumCents;
+        final long minCents;
+        final long maxCents;
+        final int minDay;
+        final int maxDay;
+
+        private Segment(int chunk, long[] cents, int[] days, int[] labels, int[] textEnds, byte[] arena,
+                        int arenaBase, int textBase) {
+            this.chunk = chunk;
+            this.textBase = textBase;
+            int textBytes = textEnds == null ? 0 : textEnds[CHUNK_MASK] - textBase;
+            data = ByteBuffer.allocateDirect((textEnds == null ? TEXT_ENDS : TEXT) + textBytes);
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            int firstDay = Integer.MAX_VALUE;
+            int lastDay = Integer.MIN_VALUE;
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                data.putLong(i << 3, cents[i]);
+                data.putInt(DAYS + (i << 2), days[i]);
+                data.putInt(LABELS + (i << 2), labels[i]);
+                sum = Math.addExact(sum, cents[i]);
+                min = Math.min(min, cents[i]);
+                max = Math.max(max, cents[i]);
+                firstDay = Math.min(firstDay, days[i]);
+                lastDay = Math.max(lastDay, days[i]);
+            }
+            if (textEnds != null) {
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    data.putInt(TEXT_ENDS + (i << 2), textEnds[i]);
+                }
+                data.put(TEXT, arena, textBase - arenaBase, textBytes);
+            }
+            sumCents = sum;
+            minCents = min;
+            maxCents = max;
+            minDay = firstDay;
+            maxDay = lastDay;
+        }
+
+        long centsAt(int offset) {
+            return data.getLong(offset << 3);
+        }
+
+        int epochDayAt(int offset) {
+            return data.getInt(DAYS + (offset << 2));
+        }
+
+        int labelIdAt(int offset) {
+            return data.getInt(LABELS + (offset << 2));
+        }
+
+        int textEndAt(int offset) {
+            return data.getInt(TEXT_ENDS + (offset << 2));
+        }
+
+        void getText(int start, byte[] into, int length) {
+            data.get(TEXT + start - textBase, into, 0, length);
+        }
+    }
+
+    // Copies the full on-heap chunks of a published version that have no row
+    // on or after cutoffDay into segments, oldest first, stopping at the
+    // first chunk that has one. Full chunks never change, so this needs no
+    // lock; install() swaps the segments in.
+    List<Segment> seal(Version rows, int cutoffDay) {
+        List<Segment> segments = new ArrayList<>();
+        int full = (rows.size - rows.baseSize) >>> CHUNK_SHIFT;
+        for (int chunk = rows.sealedChunks; chunk < full; chunk++) {
+            int[] days = rows.epochDays[chunk];
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                if (days[i] >= cutoffDay) return segments;
+            }
+            int textBase = !hasText || chunk == 0 ? 0 : rows.textEndOfChunk(chunk - 1);
+            segments.add(new Segment(chunk, rows.cents[chunk], days, rows.labelIds[chunk],
+                    hasText ? rows.textEnds[chunk] : null, rows.textArena, rows.arenaBase, textBase));
+        }
+        return segments;
+    }
+
+    // Replaces the sealed chunks' arrays with their segments and drops their
+    // text from the arena. Versions already published keep the arrays they
+    // reference; the next publish() shows the segments.
+    synchronized void install(List<Segment> segments) {
+        if (segments.isEmpty() || segments.get(0).chunk != sealedChunks) return;
+        cents = Arrays.copyOf(cents, cents.length);
+        epochDays = Arrays.copyOf(epochDays, epochDays.length);
+        labelIds = Arrays.copyOf(labelIds, labelIds.length);
+        sealed = Arrays.copyOf(sealed, sealed.length);
+        int newBase = arenaBase;
+        if (hasText) {
+            textEnds = Arrays.copyOf(textEnds, textEnds.length);
+            newBase = textEnds[segments.get(segments.size() - 1).chunk][CHUNK_MASK];
+        }
+        for (Segment segment : segments) {
+            cents[segment.chunk] = null;
+            epochDays[segment.chunk] = null;
+            labelIds[segment.chunk] = null;
+            if (hasText) {
+                textEnds[segment.chunk] = null;
+            }
+            sealed[segment.chunk] = segment;
+            sealedChunks++;
+        }
+        if (hasText) {
+            int used = textSize - newBase;
+            byte[] arena = new byte[Math.max(CHUNK_SIZE * 16, used * 2)];
+            System.arraycopy(textArena, newBase - arenaBase, arena, 0, used);
+            textArena = arena;
+            arenaBase = newBase;
+        }
+    }
+
+    // Dictionary id of a category or source, or -1 if no row uses it.
+    public synchronized int findLabel(String label) {
+        return labels.find(label);
+    }
+
+    // The index objects catch up with the given version whenever they are
+    // handed out. Callers serialize every use of them on one lock of their
+    // own (TransactionManager's query lock) and pass versions that never go
+    // backwards.
+    SortedRowIndex dateIndex(Version rows) {
+        catchUpIndexes(rows);
+        return byDate;
+    }
+
+    SortedRowIndex amountIndex(Version rows) {
+        catchUpIndexes(rows);
+        return byAmount;
+    }
+
+    // A label newer than the version has an empty index so far
+    SortedRowIndex labelDateIndex(Version rows, int labelId) {
+        catchUpIndexes(rows);
+        while (byLabelDate.size() <= labelId) {
+            byLabelDate.add(new SortedRowIndex());
+        }
+        return byLabelDate.get(labelId);
+    }
+
+    private void catchUpIndexes(Version rows) {
+        for (; indexedRows < rows.size; indexedRows++) {
+            int day = rows.epochDayAt(indexedRows);
+            int label = rows.labelIdAt(indexedRows);
+            while (byLabelDate.size() <= label) {
+                byLabelDate.add(new SortedRowIndex());
+            }
+            byDate.insert(day, indexedRows);
+            byAmount.insert(rows.centsAt(indexedRows), indexedRows);
+            byLabelDate.get(label).insert(day, indexedRows);
+        }
+    }
+
+    // Immutable view of the rows present when it was published; safe to read
+    // from any thread without locking.
+    public static final class Version {
+        private final int size;
+        private final int baseSize;
+        private final int baseRowSize;
+        private final ByteBuffer baseRows;
+        private final ByteBuffer baseText;
+        private final long[][] cents;
+        private final int[][] epochDays;
+        private final int[][] labelIds;
+        private final int[][] textEnds;
+        private final byte[] textArena;
+        private final int arenaBase;
+        private final Segment[] sealed;
+        private final int sealedChunks;
+        private final String[] labelValues;
+        private final byte[][] labelBytes;
+        private final int labelCount;
+
+        private Version(ColumnarLedger ledger) {
+            size = ledger.size;
+            baseSize = ledger.baseSize;
+            baseRowSize = ledger.baseRowSize;
+            baseRows = ledger.baseRows;
+            baseText = ledger.baseText;
+            cents = ledger.cents;
+            epochDays = ledger.epochDays;
+            labelIds = ledger.labelIds;
+            textEnds = ledger.textEnds;
+            textArena = ledger.textArena;
+            arenaBase = ledger.arenaBase;
+            sealed = ledger.sealed;
+            sealedChunks = ledger.sealedChunks;
+            labelValues = ledger.labelValues;
+            labelBytes = ledger.labelBytes;
+            labelCount = ledger.labelCount;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long centsAt(int index) {
+            if (index < baseSize) return baseRows.getLong(index * baseRowSize);
+            int local = index - baseSize;
+            long[] chunk = cents[local >>> CHUNK_SHIFT];
+            if (chunk == null) return sealed[local >>> CHUNK_SHIFT].centsAt(local & CHUNK_MASK);
+            return chunk[local & CHUNK_MASK];
+        }
+
+        public int epochDayAt(int index) {
+            if (index < baseSize) return baseRows.getInt(index * baseRowSize + 8);
+            int local = index - baseSize;
+            int[] chunk = epochDays[local >>> CHUNK_SHIFT];
+            if (chunk == null) return sealed[local >>> CHUNK_SHIFT].epochDayAt(local & CHUNK_MASK);
+            return chunk[local & CHUNK_MASK];
+        }
+
+        public int labelIdAt(int index) {
+            if (index < baseSize) return baseRows.getInt(index * baseRowSize + 12);
+            int local = index - baseSize;
+            int[] chunk = labelIds[local >>> CHUNK_SHIFT];
+            if (chunk == null) return sealed[local >>> CHUNK_SHIFT].labelIdAt(local & CHUNK_MASK);
+            return chunk[local & CHUNK_MASK];
+        }
+
+        // End of the run of rows that index shares a tier and chunk with:
+        // the snapshot's rows, or one chunk.
+        public int segmentEnd(int index) {
+            if (index < baseSize) return baseSize;
+            return Math.min(size, baseSize + ((((index - baseSize) >>> CHUNK_SHIFT) + 1) << CHUNK_SHIFT));
+        }
+
+        // False only when index is in a sealed chunk with no row dated in
+        // [fromDay, toDay), so the whole chunk can be skipped.
+        public boolean segmentMayHaveDays(int index, int fromDay, int toDay) {
+            if (index < baseSize) return true;
+            Segment segment = sealed[(index - baseSize) >>> CHUNK_SHIFT];
+            return segment == null || (segment.maxDay >= fromDay && segment.minDay < toDay);
+        }
+
+        public String labelAt(int index) {
+            return label(labelIdAt(index));
+        }
+
+        // Number of distinct categories or sources; ids run from 0 to this.
+        public int labelCount() {
+            return labelCount;
+        }
+
+        // Category or source with the given dictionary id.
+        public String label(int id) {
+            return labelValues[id];
+        }
+
+        public String textAt(int index) {
+            int start = textStart(index);
+            int length = textEnd(index) - start;
+            if (index < baseSize) {
+                byte[] bytes = new byte[length];
+                baseText.get(start, bytes, 0, length);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            Segment segment = sealed[(index - baseSize) >>> CHUNK_SHIFT];
+            if (segment != null) {
+                byte[] bytes = new byte[length];
+                segment.getText(start, bytes, length);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new String(textArena, start - arenaBase, length, StandardCharsets.UTF_8);
+        }
+
+        // Offsets into the mapped text for snapshot rows; for the others an
+        // offset into all the text added since, wherever it is kept.
+        private int textStart(int index) {
+            if (index == 0 || index == baseSize) return 0;
+            return textEnd(index - 1);
+        }
+
+        private int textEnd(int index) {
+            if (index < baseSize) return baseRows.getInt(index * baseRowSize + 16);
+            int local = index - baseSize;
+            int[] chunk = textEnds[local >>> CHUNK_SHIFT];
+            if (chunk == null) return sealed[local >>> CHUNK_SHIFT].textEndAt(local & CHUNK_MASK);
+            return chunk[local & CHUNK_MASK];
+        }
+
+        private int textEndOfChunk(int chunk) {
+            return textEnd(baseSize + (chunk << CHUNK_SHIFT) + CHUNK_MASK);
+        }
+
+        // Exact aggregates of the amount column: snapshot rows are read from
+        // the mapping, the rest chunk by chunk with the Money kernels.
+        // Overflow throws ArithmeticException.
+        public long sumCents() {
+            long total = 0;
+            for (int i = 0; i < baseSize; i++) {
+                total = Math.addExact(total, baseRows.getLong(i * baseRowSize));
+            }
+            for (int chunk = 0; chunk < chunkCount(); chunk++) {
+                total = Math.addExact(total, cents[chunk] == null ? sealed[chunk].sumCents
+                        : Money.sum(cents[chunk], 0, chunkRows(chunk)));
+            }
+            return total;
+        }
+
+        // Long.MAX_VALUE for an empty version.
+        public long minCents() {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < baseSize; i++) {
+                min = Math.min(min, baseRows.getLong(i * baseRowSize));
+            }
+            for (int chunk = 0; chunk < chunkCount(); chunk++) {
+                min = Math.min(min, cents[chunk] == null ? sealed[chunk].minCents
+                        : Money.min(cents[chunk], 0, chunkRows(chunk)));
+            }
+            return min;
+        }
+
+        // Long.MIN_VALUE for an empty version.
+        public long maxCents() {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < baseSize; i++) {
+                max = Math.max(max, baseRows.getLong(i * baseRowSize));
+            }
+            for (int chunk = 0; chunk < chunkCount(); chunk++) {
+                max = Math.max(max, cents[chunk] == null ? sealed[chunk].maxCents
+                        : Money.max(cents[chunk], 0, chunkRows(chunk)));
+            }
+            return max;
+        }
+
+        private int chunkCount() {
+            return (size - baseSize + CHUNK_MASK) >>> CHUNK_SHIFT;
+        }
+
+        private int chunkRows(int chunk) {
+            return Math.min(CHUNK_SIZE, size - baseSize - (chunk << CHUNK_SHIFT));
+        }
+
+        public long averageCents() {
+            return Money.average(sumCents(), size);
+        }
+
+        // Copies one row into the holder without allocating, apart from
+        // growing the holder's text buffer for an unusually long description.
+        public void readRow(int index, Row row) {
+            row.cents = centsAt(index);
+            row.epochDay = epochDayAt(index);
+            row.label = labelBytes[labelIdAt(index)];
+            if (textEnds != null) {
+                int start = textStart(index);
+                int length = textEnd(index) - start;
+                if (row.text.length < length) {
+                    row.text = new byte[Math.max(length, row.text.length * 2)];
+                }
+                if (index < baseSize) {
+                    baseText.get(start, row.text, 0, length);
+                } else if (sealed[(index - baseSize) >>> CHUNK_SHIFT] != null) {
+                    sealed[(index - baseSize) >>> CHUNK_SHIFT].getText(start, row.text, length);
+                } else {
+                    System.arraycopy(textArena, start - arenaBase, row.text, 0, length);
+                }
+                row.textLength = length;
+            } else {
+                row.textLength = 0;
+            }
+        }
+
+        // Lazy views; rows are materialized as Expense / Income objects only
+        // when read.
+        public List<Expense> expenseView() {
+            return new View<Expense>(size) {
+                @Override
+                public Expense get(int index) {
+                    checkIndex(index);
+                    return Expense.ofMinor(textAt(index), centsAt(index),
+                            toDate(epochDayAt(index)), labelAt(index));
+                }
+            };
+        }
+
+        public List<Income> incomeView() {
+            return new View<Income>(size) {
+                @Override
+                public Income get(int index) {
+                    checkIndex(index);
+                    return Income.ofMinor(labelAt(index), centsAt(index), toDate(epochDayAt(index)));
+                }
+            };
+        }
+    }
+
+    private abstract static class View<T> extends AbstractList<T> implements RandomAccess {
+        private final int rows;
+
+        View(int rows) {
+            this.rows = rows;
+        }
+
+        void checkIndex(int index) {
+            if (index < 0 || index >= rows) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rows);
+            }
+        }
+
+        @Override
+        public int size() {
+            return rows;
+        }
+    }
+
+    static int toEpochDay(Date date) {
+        return (int) date.toInstant().atZone(ZONE).toLocalDate().toEpochDay();
+    }
+
+    static Date toDate(int epochDay) {
+        return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE).toInstant());
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.TreeMap;
+
+// Expense and income totals per epoch day in two Fenwick trees, so the sum
+// over any [fromDay, toDay) costs O(log D) for D days spanned, whatever the
+// number of transactions, and a day's totals are updated in O(log D) however
+// out of order the days arrive. The trees cover a window of days that
+// doubles, re-centred on the data, when a day falls outside it; a ledger
+// spanning a few years needs a few thousand slots. Only days from
+// TransactionManager.FIRST_DATE to LAST_DATE enter the trees, which caps
+// them at 2^17 slots (4 MB); the rare day outside, which input refuses but
+// an old log may hold, is kept in a sorted map instead.
+//
+// Amounts are exact cents. Synchronized: MonthlyAggregates is written by one
+// thread and read by any, and a tree update touches several slots.
+public class DayRangeSums {
+    private static final int INITIAL_DAYS = 1024;
+    private static final int FIRST_DAY = (int) TransactionManager.FIRST_DATE.toEpochDay();
+    private static final int LAST_DAY = (int) TransactionManager.LAST_DATE.toEpochDay();
+
+    private int origin;
+    private long[] expenses = new long[0];
+    private long[] incomes = new long[0];
+    // Plain per-day values, kept to rebuild the trees when the window grows
+    private long[] dayExpenses = new long[0];
+    private long[] dayIncomes = new long[0];
+    // Expense and income cents of each day outside the window
+    private final TreeMap<Integer, long[]> outliers = new TreeMap<>();
+
+    public synchronized void add(int epochDay, long expenseCents, long incomeCents) {
+        if (epochDay < FIRST_DAY || epochDay > LAST_DAY) {
+            long[] totals = outliers.computeIfAbsent(epochDay, day -> new long[2]);
+            totals[0] = Math.addExact(totals[0], expenseCents);
+            totals[1] = Math.addExact(totals[1], incomeCents);
+            return;
+        }
+        if (dayExpenses.length == 0) {
+            resize(epochDay - INITIAL_DAYS / 2, INITIAL_DAYS);
+        } else if (epochDay < origin || epochDay >= origin + dayExpenses.length) {
+            int low = Math.min(origin, epochDay);
+            int high = Math.max(origin + dayExpenses.length, epochDay + 1);
+            int capacity = dayExpenses.length;
+            while (capacity < high - low) {
+                capacity *= 2;
+            }
+            // Leave room on both sides, since imports run backwards as often
+            // as forwards
+            resize(low - (capacity - (high - low)) / 2, capacity);
+        }
+        int index = epochDay - origin;
+        dayExpenses[index] = Math.addExact(dayExpenses[index], expenseCents);
+        dayIncomes[index] = Math.addExact(dayIncomes[index], incomeCents);
+        for (int i = index + 1; i <= expenses.length; i += i & -i) {
+            expenses[i - 1] += expenseCents;
+            incomes[i - 1] += incomeCents;
+        }
+    }
+
+    // Moves the values into a window of the given size starting at
+    // newOrigin and rebuilds both trees in O(capacity).
+    private void resize(int newOrigin, int capacity) {
+        long[] newExpenses = new long[capacity];
+        long[] newIncomes = new long[capacity];
+        for (int i = 0; i < dayExpenses.length; i++) {
+            newExpenses[origin + i - newOrigin] = dayExpenses[i];
+            newIncomes[origin + i - newOrigin] = dayIncomes[i];
+        }
+        origin = newOrigin;
+        dayExpenses = newExpenses;
+        dayIncomes = newIncomes;
+        expenses = build(newExpenses);
+        incomes = build(newIncomes);
+    }
+
+    private static long[] build(long[] values) {
+        long[] tree = Arrays.copyOf(values, values.length);
+        for (int i = 1; i <= tree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent <= tree.length) {
+                tree[parent - 1] += tree[i - 1];
+            }
+        }
+        return tree;
+    }
+
+    // Expenses and income of the days in [fromDay, toDay), read together.
+    public synchronized MonthlyAggregates.Totals between(int fromDay, int toDay) {
+        if (toDay <= fromDay) return MonthlyAggregates.Totals.EMPTY;
+        long expenseCents = prefix(expenses, toDay) - prefix(expenses, fromDay);
+        long incomeCents = prefix(incomes, toDay) - prefix(incomes, fromDay);
+        for (long[] totals : outliers.subMap(fromDay, toDay).values()) {
+            expenseCents += totals[0];
+            incomeCents += totals[1];
+        }
+        return new MonthlyAggregates.Totals(expenseCents, incomeCents);
+    }
+
+    // Sum of the days before the given one.
+    private long prefix(long[] tree, int day) {
+        int count = Math.max(0, Math.min(day - origin, tree.length));
+        long sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i - 1];
+        }
+        return sum;
+    }
+}
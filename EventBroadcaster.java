@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fans server-sent events out to every /api/stream subscriber. An event is
+// encoded once and the same bytes are queued for every subscriber. Each
+// subscriber may have at most MAX_BUFFERED_BYTES waiting; one that falls
+// further behind is evicted, its connection closed, rather than slowing the
+// publisher or growing without bound. Evicted browsers reconnect and reload.
+// A comment line every HEARTBEAT_SECONDS keeps idle streams open through
+// proxies and finds clients that went away; one thread sends it for every
+// broadcaster, since each account's ledger has its own.
+public class EventBroadcaster {
+    static final int MAX_BUFFERED_BYTES = Integer.getInteger("expensetracker.streamBufferBytes", 256 * 1024);
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // One encoded event, as SSE text and as the same text framed as one
+    // HTTP chunk for servers that write the wire format themselves.
+    public static final class Event {
+        final byte[] data;
+        final byte[] chunk;
+
+        Event(String text) {
+            data = text.getBytes(StandardCharsets.UTF_8);
+            byte[] size = (Integer.toHexString(data.length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            chunk = new byte[size.length + data.length + CRLF.length];
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(data, 0, chunk, size.length, data.length);
+            System.arraycopy(CRLF, 0, chunk, size.length + data.length, CRLF.length);
+        }
+    }
+
+    public interface Subscriber {
+        // Queues the event without blocking; false if the subscriber is
+        // closed or would exceed MAX_BUFFERED_BYTES.
+        boolean offer(Event event);
+
+        // Ends the subscription; called once the subscriber is evicted.
+        void close();
+    }
+
+    private static final ScheduledExecutorService HEARTBEAT = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "event-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> heartbeat;
+    private final Event ping = new Event(": ping\n\n");
+    // First bytes of every stream: how long browsers wait before reconnecting
+    final Event hello = new Event("retry: 3000\n\n");
+
+    private static final Metrics.Counter PUBLISHED_TOTAL = Metrics.counter("expensetracker_stream_events_total",
+            "Events published to /api/stream");
+    private static final Metrics.Counter EVICTIONS_TOTAL = Metrics.counter("expensetracker_stream_evictions_total",
+            "Stream subscribers dropped for falling behind");
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong subscriptions = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public EventBroadcaster() {
+        heartbeat = HEARTBEAT.scheduleAtFixedRate(() -> broadcast(ping), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+        subscriptions.incrementAndGet();
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    // Sends "event: <type>", "id: <id>" and one data line; json must not
+    // contain raw line breaks, which JsonWriter never writes.
+    public void publish(String type, long id, String json) {
+        published.incrementAndGet();
+        PUBLISHED_TOTAL.increment();
+        broadcast(new Event("event: " + type + "\nid: " + id + "\ndata: " + json + "\n\n"));
+    }
+
+    private void broadcast(Event event) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.offer(event)) {
+                evict(subscriber);
+            }
+        }
+    }
+
+    // Drops a subscriber that cannot keep up and closes it.
+    void evict(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            evictions.incrementAndGet();
+            EVICTIONS_TOTAL.increment();
+            subscriber.close();
+        }
+    }
+
+    // Streams events to a blocking output stream until the subscriber is
+    // evicted or a write fails; used by the thread-per-connection server.
+    public void streamTo(OutputStream out) throws IOException {
+        QueueSubscriber subscriber = new QueueSubscriber();
+        subscribe(subscriber);
+        try {
+            out.write(hello.data);
+            out.flush();
+            Event event;
+            while ((event = subscriber.take()) != null) {
+                out.write(event.data);
+                out.flush();
+            }
+        } finally {
+            unsubscribe(subscriber);
+        }
+    }
+
+    private static final class QueueSubscriber implements Subscriber {
+        private final LinkedBlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+        private volatile boolean closed;
+
+        @Override
+        public boolean offer(Event event) {
+            if (closed || queuedBytes.addAndGet(event.data.length) > MAX_BUFFERED_BYTES) {
+                return false;
+            }
+            queue.add(event);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        // Next event, or null once closed.
+        Event take() throws IOException {
+            try {
+                while (!closed) {
+                    Event event = queue.poll(1, TimeUnit.SECONDS);
+                    if (event != null) {
+                        queuedBytes.addAndGet(-event.data.length);
+                        return event;
+                    }
+                }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for events");
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    public long publishedCount() {
+        return published.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public String statsJson() {
+        return String.format("{\"subscribers\":%d,\"subscriptions\":%d,\"events\":%d,\"evictions\":%d}",
+                subscribers.size(), subscriptions.get(), published.get(), evictions.get());
+    }
+
+    public void close() {
+        heartbeat.cancel(false);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        subscribers.clear();
+    }
+}
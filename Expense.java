@@ -2,22 +2,35 @@ import java.util.Date;
 
 public class Expense {
     private String description;
-    private double amount;
+    // In minor units, see Money
+    private long amount;
     private Date date;
     private String category;
 
     public Expense(String description, double amount, Date date, String category) {
+        this(Money.toMinor(amount), description, date, category);
+    }
+
+    private Expense(long amount, String description, Date date, String category) {
         this.description = description;
         this.amount = amount;
         this.date = date;
         this.category = category;
     }
 
+    public static Expense ofMinor(String description, long amount, Date date, String category) {
+        return new Expense(amount, description, date, category);
+    }
+
     public String getDescription() {
         return description;
     }
 
     public double getAmount() {
+        return Money.toMajor(amount);
+    }
+
+    public long getAmountMinor() {
         return amount;
     }
 
@@ -33,7 +46,7 @@ public class Expense {
     public String toString() {
         return "Expense{" +
                 "description='" + description + '\'' +
-                ", amount=" + amount +
+                ", amount=" + Money.format(amount) +
                 ", date=" + date +
                 ", category='" + category + '\'' +
                 '}';
@@ -1,13 +1,24 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 
 public class ExpenseTracker {
     private static TransactionManager transactionManager;
     private static Scanner scanner;
+    // Imports and reports run here, under the same limits as the server's handlers
+    private static RequestExecutor executor;
 
     public static void main(String[] args) {
         transactionManager = new TransactionManager();
+        executor = RequestExecutor.fromProperties();
         scanner = new Scanner(System.in);
         
         System.out.println("Welcome to the Expense Tracker!");
@@ -49,6 +60,12 @@ public class ExpenseTracker {
                     viewAllTransactions();
                     break;
                 case 6:
+                    importTransactions();
+                    break;
+                case 7:
+                    viewReport();
+                    break;
+                case 8:
                     running = false;
                     System.out.println("Thank you for using Expense Tracker!");
                     break;
@@ -57,6 +74,8 @@ public class ExpenseTracker {
             }
         }
         scanner.close();
+        executor.close();
+        transactionManager.close();
     }
 
     private static void displayMenu() {
@@ -66,7 +85,9 @@ public class ExpenseTracker {
         System.out.println("3. View Monthly Summary");
         System.out.println("4. View Total Savings");
         System.out.println("5. View All Transactions");
-        System.out.println("6. Exit");
+        System.out.println("6. Import Transactions from File");
+        System.out.println("7. View Report");
+        System.out.println("8. Exit");
         System.out.println("============================");
     }
 
@@ -78,8 +99,14 @@ public class ExpenseTracker {
         String category = getStringInput("Category: ");
 
         Expense expense = new Expense(description, amount, date, category);
-        transactionManager.addExpense(expense);
-        System.out.println("Expense added successfully!");
+        try {
+            transactionManager.addExpense(expense);
+            System.out.println("Expense added successfully!");
+        } catch (UncheckedIOException e) {
+            System.out.println(e.getMessage() + ": " + e.getCause().getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
     private static void addIncome() {
@@ -89,8 +116,14 @@ public class ExpenseTracker {
         Date date = getDateInput("Date (yyyy-MM-dd): ");
 
         Income income = new Income(source, amount, date);
-        transactionManager.addIncome(income);
-        System.out.println("Income added successfully!");
+        try {
+            transactionManager.addIncome(income);
+            System.out.println("Income added successfully!");
+        } catch (UncheckedIOException e) {
+            System.out.println(e.getMessage() + ": " + e.getCause().getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
     private static void viewMonthlySummary() {
@@ -102,6 +135,26 @@ public class ExpenseTracker {
         System.out.println(summary);
     }
 
+    private static void viewReport() {
+        System.out.println("\n--- Report ---");
+        int fromYear = getIntInput("From year (e.g., 2020): ");
+        int toYear = getIntInput("To year, inclusive (e.g., 2024): ");
+        String groupBy = getStringInput("Group by (month, quarter, year): ");
+        if (toYear < fromYear) {
+            System.out.println("The last year must not be before the first.");
+            return;
+        }
+        try {
+            SummaryPeriod period = SummaryPeriod.between(LocalDate.of(fromYear, 1, 1), LocalDate.of(toYear + 1, 1, 1));
+            ReportEngine.GroupBy grouping = ReportEngine.parseGroupBy(groupBy);
+            System.out.println(executor.call(() -> transactionManager.report(period, grouping)));
+        } catch (IllegalArgumentException | DateTimeException | ExecutionException | TimeoutException e) {
+            System.out.println("Error building report: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void viewSavings() {
         System.out.println("\n--- Total Savings ---");
         double totalIncome = transactionManager.calculateTotalIncome();
@@ -146,6 +199,25 @@ public class ExpenseTracker {
         }
     }
 
+    private static void importTransactions() {
+        System.out.println("\n--- Import Transactions ---");
+        String file = getStringInput("CSV or OFX file: ");
+        try {
+            Path path = Paths.get(file);
+            TransactionImporter.Format format = TransactionImporter.formatOf(path);
+            System.out.println(executor.call(() -> TransactionImporter.importFile(transactionManager, path, format)));
+        } catch (ExecutionException e) {
+            System.out.println("Error importing transactions: " + e.getCause().getMessage());
+        } catch (IllegalArgumentException | TimeoutException e) {
+            // A timed-out import keeps running; its rows are committed when it ends
+            System.out.println("Error importing transactions: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println(e.getMessage() + ": " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static String getStringInput(String prompt) {
         System.out.print(prompt);
         return scanner.nextLine().trim();
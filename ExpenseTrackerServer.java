@@ -1,192 +1,612 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ExpenseTrackerServer {
-    private static final int PORT = 8080;
-    private static TransactionManager transactionManager;
+    private static final int PORT = Integer.getInteger("expensetracker.port", 8080);
+    private static final int IDLE_TIMEOUT_MILLIS = 30_000;
+    // Larger commits (bulk imports) are announced without their rows
+    private static final int MAX_EVENT_ROWS = 100;
+    private static TenantLedgers tenants;
+    private static NioHttpServer nioServer;
+    private static RequestExecutor executor;
+    private static final ThreadLocal<TransactionJsonReader> JSON_READERS =
+            ThreadLocal.withInitial(TransactionJsonReader::new);
+    private static final ResponseCache responseCache =
+            new ResponseCache(Long.getLong("expensetracker.cacheBytes", 32L << 20));
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+
+    // Handler latency per route; paths outside the tables share "other"
+    private static final String REQUEST_SECONDS = "expensetracker_http_request_seconds";
+    private static final String REQUEST_HELP = "Time spent in the route handler (to the first byte for streams)";
+    private static final Map<String, Metrics.Histogram> GET_LATENCY = new HashMap<>();
+    private static final Map<String, Metrics.Histogram> POST_LATENCY = new HashMap<>();
+    private static final Metrics.Histogram OTHER_LATENCY =
+            Metrics.histogram(REQUEST_SECONDS, REQUEST_HELP, "method", "any", "route", "other");
+    private static final Metrics.Counter[] RESPONSES = new Metrics.Counter[6];
+    // Paths served from one account's ledger
+    private static final Set<String> ACCOUNT_ROUTES = Set.of("/api/transactions", "/api/import", "/api/summary",
+            "/api/summary/categories", "/api/summary/period", "/api/report", "/api/stream", "/api/stream/stats",
+            "/api/ingest", "/api/alerts", "/api/backups");
+
+    static {
+        for (String route : new String[]{"/", "/index.html", "/api/transactions", "/api/summary",
+                "/api/summary/categories", "/api/summary/period", "/api/report", "/api/stream", "/api/stream/stats",
+                "/api/ingest", "/api/server",
+                "/api/cache", "/api/tenants", "/api/alerts", "/api/backups", "/metrics"}) {
+            GET_LATENCY.put(route, Metrics.histogram(REQUEST_SECONDS, REQUEST_HELP, "method", "GET", "route", route));
+        }
+        for (String route : new String[]{"/api/transactions", "/api/import", "/api/backups"}) {
+            POST_LATENCY.put(route, Metrics.histogram(REQUEST_SECONDS, REQUEST_HELP, "method", "POST", "route", route));
+        }
+        String[] codes = {"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+        for (int i = 0; i < codes.length; i++) {
+            RESPONSES[i] = Metrics.counter("expensetracker_http_responses_total", "Responses by status class",
+                    "code", codes[i]);
+        }
+    }
 
     public static void main(String[] args) {
-        transactionManager = new TransactionManager();
-        
+        executor = RequestExecutor.fromProperties();
+        tenants = new TenantLedgers(Integer.getInteger("expensetracker.shards", 16),
+                TenantLedgers.defaultDirectory(),
+                Long.getLong("expensetracker.tenantIdleMillis", 300_000),
+                ExpenseTrackerServer::opened,
+                tenant -> responseCache.invalidate(tenant.cacheOwner()));
+        registerMetrics();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (nioServer != null) nioServer.stop();
+            tenants.close();
+        }));
+
+        String mode = System.getProperty("expensetracker.server", "nio");
+        try {
+            if (mode.equals("thread")) {
+                runThreadPerConnection();
+            } else {
+                nioServer = new NioHttpServer(PORT,
+                        Integer.getInteger("expensetracker.backlog", 1024),
+                        executor,
+                        ExpenseTrackerServer::route);
+                printBanner(mode);
+                nioServer.run();
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
+
+    // Wires a freshly loaded ledger to its event stream and the cache.
+    private static void opened(TenantLedgers.Tenant tenant) {
+        EventBroadcaster events = tenant.events();
+        String owner = tenant.cacheOwner();
+        tenant.manager().addCommitListener(
+                (expenses, incomes, version) -> publishCommit(events, expenses, incomes, version));
+        tenant.manager().addCommitListener((expenses, incomes, version) -> responseCache.invalidate(owner));
+        AnomalyDetector anomalies = tenant.manager().anomalies();
+        long[] published = {anomalies.lastAlertId()};
+        tenant.manager().addCommitListener((expenses, incomes, version) -> {
+            if (anomalies.lastAlertId() > published[0]) {
+                published[0] = publishAlerts(events, anomalies, published[0]);
+            }
+        });
+    }
+
+    // Gauges over the server's components, read when /metrics is scraped.
+    // Ledger figures are summed over the loaded accounts.
+    private static void registerMetrics() {
+        Metrics.gauge("expensetracker_ledger_rows", "Rows in the loaded ledgers",
+                () -> tenants.sum(t -> t.manager().version().expenses().size()), "kind", "expense");
+        Metrics.gauge("expensetracker_ledger_rows", "Rows in the loaded ledgers",
+                () -> tenants.sum(t -> t.manager().version().incomes().size()), "kind", "income");
+        Metrics.gauge("expensetracker_ledger_sealed_rows", "Rows sealed off-heap in the loaded ledgers",
+                () -> tenants.sum(t -> t.manager().sealedRows()));
+        Metrics.gauge("expensetracker_ledger_sealed_bytes", "Direct-buffer bytes of sealed rows",
+                () -> tenants.sum(t -> t.manager().sealedBytes()));
+        Metrics.gauge("expensetracker_ledgers_loaded", "Account ledgers in memory", tenants::loadedCount);
+        Metrics.counter("expensetracker_ledger_loads_total", "Account ledgers opened", tenants::loadCount);
+        Metrics.counter("expensetracker_ledger_evictions_total", "Account ledgers closed for being idle",
+                tenants::evictionCount);
+        Metrics.gauge("expensetracker_ingest_queue_depth", "Transactions waiting for group commit",
+                () -> tenants.sum(t -> t.ingest().getQueueDepth()));
+        Metrics.gauge("expensetracker_http_connections", "Open client connections",
+                () -> nioServer != null ? nioServer.activeConnections() : activeConnections.get());
+        Metrics.gauge("expensetracker_http_worker_queue_depth", "Requests waiting for a thread", executor::queued);
+        Metrics.gauge("expensetracker_http_active_workers", "Threads running a handler", executor::running);
+        Metrics.gauge("expensetracker_http_in_flight", "Requests holding an admission permit", executor::inFlight);
+        Metrics.counter("expensetracker_http_rejected_total", "Requests refused because every permit was taken",
+                executor::rejectedCount);
+        Metrics.counter("expensetracker_http_timeouts_total", "Requests answered 503 for passing their deadline",
+                executor::timedOutCount);
+        Metrics.gauge("expensetracker_stream_subscribers", "Open /api/stream connections",
+                () -> tenants.sum(t -> t.events().subscriberCount()));
+        Metrics.counter("expensetracker_cache_hits_total", "Read responses served from the cache",
+                responseCache::hits);
+        Metrics.counter("expensetracker_cache_misses_total", "Read responses built because the cache had none",
+                responseCache::misses);
+        Metrics.counter("expensetracker_cache_not_modified_total", "Read requests answered 304",
+                responseCache::notModifiedCount);
+        Metrics.counter("expensetracker_cache_evictions_total", "Cache entries evicted for space",
+                responseCache::evictionCount);
+        Metrics.gauge("expensetracker_cache_bytes", "Bytes of cached response bodies", responseCache::bytes);
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        java.lang.management.MemoryMXBean memory = java.lang.management.ManagementFactory.getMemoryMXBean();
+        Metrics.gauge("expensetracker_jvm_threads", "Live JVM threads", threads::getThreadCount);
+        Metrics.gauge("expensetracker_jvm_heap_used_bytes", "Heap in use",
+                () -> memory.getHeapMemoryUsage().getUsed());
+    }
+
+    private static void printBanner(String mode) {
+        System.out.println("Expense Tracker Server started on port " + PORT + " (" + mode + " mode, "
+                + executor.mode().name().toLowerCase() + " execution)");
+        System.out.println("Open http://localhost:" + PORT + " in your browser");
+    }
+
+    private static void runThreadPerConnection() throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Expense Tracker Server started on port " + PORT);
-            System.out.println("Open http://localhost:" + PORT + " in your browser");
-            
+            printBanner("thread");
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
+                executor.startConnection(() -> handleClient(clientSocket));
             }
-        } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
         }
     }
 
     private static void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-            
-            String request = in.readLine();
-            if (request == null) return;
-
-            if (request.startsWith("GET / ")) {
-                serveFile(out, "index.html", "text/html");
-            } else if (request.startsWith("GET /api/transactions")) {
-                handleGetTransactions(out);
-            } else if (request.startsWith("POST /api/transactions")) {
-                handlePostTransaction(in, out);
-            } else if (request.startsWith("GET /api/summary")) {
-                handleGetSummary(out);
-            } else {
-                sendNotFound(out);
+        activeConnections.incrementAndGet();
+        try (Socket socket = clientSocket;
+             InputStream in = socket.getInputStream();
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            ByteBuffer buffer = ByteBuffer.allocate(16 * 1024).flip();
+            while (true) {
+                HttpRequest request;
+                try {
+                    while ((request = HttpRequestParser.parse(buffer)) == null) {
+                        buffer = fill(in, buffer);
+                        if (buffer == null) return;
+                    }
+                } catch (HttpException e) {
+                    e.toResponse().writeTo(out, false);
+                    out.flush();
+                    return;
+                }
+
+                HttpResponse response = execute(request);
+                // An event stream ends only when the connection does
+                boolean keepAlive = request.isKeepAlive() && response.getEvents() == null;
+                response.writeTo(out, keepAlive);
+                out.flush();
+                if (!keepAlive) return;
             }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection
         } catch (IOException e) {
             System.err.println("Client handling error: " + e.getMessage());
+        } finally {
+            activeConnections.decrementAndGet();
         }
     }
 
-    private static void serveFile(PrintWriter out, String filename, String contentType) {
+    // Runs the handler on the executor, which bounds it by the in-flight
+    // permits and the request deadline, while the connection's thread waits.
+    private static HttpResponse execute(HttpRequest request) {
         try {
-            File file = new File(filename);
-            if (!file.exists()) {
-                sendNotFound(out);
-                return;
+            return executor.call(() -> route(request));
+        } catch (RejectedExecutionException e) {
+            return HttpResponse.text(503, "Server busy");
+        } catch (TimeoutException e) {
+            return HttpResponse.text(503, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return HttpResponse.text(503, "Server shutting down");
+        } catch (ExecutionException | RuntimeException e) {
+            return HttpResponse.text(500, "Internal error: " + e.getMessage());
+        }
+    }
+
+    // Reads more bytes after whatever is still unparsed; null at end of stream.
+    private static ByteBuffer fill(InputStream in, ByteBuffer buffer) throws IOException, HttpException {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= HttpRequestParser.maxRequestBytes()) {
+                throw new HttpException(413, "Request too large");
             }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, HttpRequestParser.maxRequestBytes()));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read < 0) return null;
+        buffer.position(buffer.position() + read);
+        return buffer.flip();
+    }
+
+    // Every request goes through here so its handler time and status are
+    // recorded.
+    static HttpResponse route(HttpRequest request) {
+        long start = System.nanoTime();
+        HttpResponse response = handle(request);
+        String method = request.getMethod();
+        Map<String, Metrics.Histogram> routes = method.equals("GET") ? GET_LATENCY
+                : method.equals("POST") ? POST_LATENCY : Map.of();
+        routes.getOrDefault(request.getPath(), OTHER_LATENCY).recordNanos(System.nanoTime() - start);
+        int statusClass = response.getStatus() / 100;
+        RESPONSES[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        return response;
+    }
+
+    private static HttpResponse handle(HttpRequest request) {
+        String method = request.getMethod();
+        String path = request.getPath();
+
+        if (method.equals("GET") && (path.equals("/") || path.equals("/index.html"))) {
+            return serveFile("index.html", "text/html");
+        } else if (method.equals("GET") && path.equals("/metrics")) {
+            return new HttpResponse(200, "text/plain; version=0.0.4; charset=utf-8",
+                    Metrics.prometheus().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        } else if (method.equals("GET") && path.equals("/api/cache")) {
+            return HttpResponse.json(responseCache.statsJson());
+        } else if (method.equals("GET") && path.equals("/api/tenants")) {
+            return HttpResponse.json(tenants.statsJson());
+        } else if (method.equals("GET") && path.equals("/api/server")) {
+            return HttpResponse.json(nioServer != null ? nioServer.statsJson()
+                    : "{\"mode\":\"thread\",\"activeConnections\":" + activeConnections.get()
+                    + ",\"executor\":" + executor.statsJson() + "}");
+        } else if (!ACCOUNT_ROUTES.contains(path)) {
+            return HttpResponse.notFound();
+        }
+
+        String account;
+        try {
+            account = TenantLedgers.normalize(accountOf(request));
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        }
+        TenantLedgers.Tenant tenant;
+        try {
+            tenant = tenants.acquire(account);
+        } catch (RuntimeException e) {
+            return HttpResponse.text(500, "Error opening ledger: " + e.getMessage());
+        }
+        try {
+            return handle(request, tenant);
+        } finally {
+            tenants.release(tenant);
+        }
+    }
 
-            String content = new String(java.nio.file.Files.readAllBytes(file.toPath()));
-            
-            out.println("HTTP/1.1 200 OK");
-            out.println("Content-Type: " + contentType);
-            out.println("Content-Length: " + content.length());
-            out.println("Access-Control-Allow-Origin: *");
-            out.println();
-            out.println(content);
+    // The account from the X-Account-Id header, else from the "account"
+    // query parameter (which EventSource can send); null means the default.
+    private static String accountOf(HttpRequest request) {
+        String header = request.getHeader("X-Account-Id");
+        if (header != null) return header.trim();
+        for (String parameter : request.getQuery().split("&")) {
+            if (parameter.startsWith("account=")) {
+                return URLDecoder.decode(parameter.substring("account=".length()),
+                        java.nio.charset.StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static HttpResponse handle(HttpRequest request, TenantLedgers.Tenant tenant) {
+        String method = request.getMethod();
+        String path = request.getPath();
+        TransactionManager manager = tenant.manager();
+
+        if (method.equals("GET") && path.equals("/api/transactions")) {
+            return cached(request, tenant, () -> request.getQuery().isEmpty()
+                    ? handleGetTransactions(manager) : handleQueryTransactions(manager, request.getQuery()));
+        } else if (method.equals("POST") && path.equals("/api/transactions")) {
+            return handlePostTransaction(tenant.ingest(), request.getBody());
+        } else if (method.equals("POST") && path.equals("/api/import")) {
+            return handleImport(manager, request);
+        } else if (method.equals("GET") && path.equals("/api/summary")) {
+            return cached(request, tenant, () -> handleGetSummary(manager));
+        } else if (method.equals("GET") && path.equals("/api/summary/categories")) {
+            return cached(request, tenant, () -> handleGetCategorySummary(manager, request.getQuery()));
+        } else if (method.equals("GET") && path.equals("/api/summary/period")) {
+            return cachedPeriod(request, tenant, period -> handleGetPeriodSummary(manager, period));
+        } else if (method.equals("GET") && path.equals("/api/report")) {
+            return cachedPeriod(request, tenant, period -> handleGetReport(manager, period, request.getQuery()));
+        } else if (method.equals("GET") && path.equals("/api/stream")) {
+            return HttpResponse.events(tenant.events());
+        } else if (method.equals("GET") && path.equals("/api/stream/stats")) {
+            return HttpResponse.json(tenant.events().statsJson());
+        } else if (method.equals("GET") && path.equals("/api/ingest")) {
+            return HttpResponse.json(tenant.ingest().statsJson());
+        } else if (method.equals("GET") && path.equals("/api/alerts")) {
+            return handleGetAlerts(manager, request.getQuery());
+        } else if (method.equals("POST") && path.equals("/api/backups")) {
+            return handleBackup(tenant.backups());
+        } else if (method.equals("GET") && path.equals("/api/backups")) {
+            return handleListBackups(tenant.backups());
+        } else {
+            return HttpResponse.notFound();
+        }
+    }
+
+    // Read endpoints depend only on the account, the path, the query and the
+    // ledger version. A client holding the current version gets a 304; otherwise
+    // the response comes from the cache or is built and cached. Streamed
+    // responses are not cached but still carry the ETag.
+    private static HttpResponse cached(HttpRequest request, TenantLedgers.Tenant tenant,
+                                       java.util.function.Supplier<HttpResponse> handler) {
+        return cached(request, tenant, "", handler);
+    }
+
+    // A period given without a date resolves against today, so the range it
+    // resolved to is part of the cache key and the ETag: both change at
+    // midnight even if the ledger does not. The handler gets the same period.
+    private static HttpResponse cachedPeriod(HttpRequest request, TenantLedgers.Tenant tenant,
+                                             java.util.function.Function<SummaryPeriod, HttpResponse> handler) {
+        SummaryPeriod period;
+        try {
+            period = SummaryPeriod.parse(request.getQuery());
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        }
+        return cached(request, tenant, period.getFrom() + ".." + period.getTo(), () -> handler.apply(period));
+    }
+
+    // variant names whatever else the response depends on; it is added to
+    // the cache key and the ETag.
+    private static HttpResponse cached(HttpRequest request, TenantLedgers.Tenant tenant, String variant,
+                                       java.util.function.Supplier<HttpResponse> handler) {
+        long version = tenant.manager().version().getNumber();
+        String owner = tenant.cacheOwner();
+        String tagged = variant.isEmpty() ? owner : owner + "-" + variant;
+        String etag = responseCache.etag(tagged, version);
+        if (responseCache.notModified(request.getHeader("If-None-Match"), tagged, version)) {
+            return HttpResponse.notModified(etag);
+        }
+        String key = request.getPath() + '?' + request.getQuery() + (variant.isEmpty() ? "" : '#' + variant);
+        HttpResponse response = responseCache.get(owner, key, version);
+        if (response != null) {
+            return response;
+        }
+        response = handler.get();
+        if (response.getStatus() == 200) {
+            // Built from this version or a newer one; the older tag only costs
+            // the client one more download
+            response.header("ETag", etag).header("Cache-Control", "no-cache");
+            responseCache.put(owner, key, version, response);
+        }
+        return response;
+    }
+
+    // Pushes each commit to the /api/stream subscribers as a "commit" event.
+    private static void publishCommit(EventBroadcaster events, List<Expense> expenses, List<Income> incomes,
+                                      TransactionManager.Version version) {
+        if (events.subscriberCount() == 0) return;
+        try {
+            ByteArrayOutputStream json = new ByteArrayOutputStream(512);
+            TransactionJsonEncoder.writeCommit(expenses, incomes, version, MAX_EVENT_ROWS, json);
+            events.publish("commit", version.getNumber(), json.toString(java.nio.charset.StandardCharsets.UTF_8));
         } catch (IOException e) {
-            sendError(out, "Error reading file: " + e.getMessage());
-        }
-    }
-
-    private static void handleGetTransactions(PrintWriter out) {
-        try {
-            List<Expense> expenses = transactionManager.getExpenses();
-            List<Income> incomes = transactionManager.getIncomes();
-            
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-            
-            StringBuilder json = new StringBuilder();
-            json.append("{\"expenses\":[");
-            for (int i = 0; i < expenses.size(); i++) {
-                Expense expense = expenses.get(i);
-                json.append(String.format(
-                    "{\"description\":\"%s\",\"amount\":%.2f,\"date\":\"%s\",\"category\":\"%s\"}",
-                    expense.getDescription().replace("\"", "\\\""),
-                    expense.getAmount(),
-                    dateFormat.format(expense.getDate()),
-                    expense.getCategory().replace("\"", "\\\"")
-                ));
-                if (i < expenses.size() - 1) json.append(",");
+            System.err.println("Error publishing commit: " + e.getMessage());
+        }
+    }
+
+    // Sends the alerts raised after the given id as "alert" events and
+    // returns the newest id sent; runs under the writer lock like commits.
+    private static long publishAlerts(EventBroadcaster events, AnomalyDetector anomalies, long after) {
+        List<AnomalyDetector.Alert> alerts = anomalies.alerts(after, MAX_EVENT_ROWS);
+        if (events.subscriberCount() > 0) {
+            try {
+                for (AnomalyDetector.Alert alert : alerts) {
+                    ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+                    JsonWriter writer = new JsonWriter(json);
+                    TransactionJsonEncoder.writeAlert(alert, writer);
+                    writer.flush();
+                    events.publish("alert", alert.id, json.toString(java.nio.charset.StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                System.err.println("Error publishing alerts: " + e.getMessage());
             }
-            
-            json.append("],\"incomes\":[");
-            for (int i = 0; i < incomes.size(); i++) {
-                Income income = incomes.get(i);
-                json.append(String.format(
-                    "{\"source\":\"%s\",\"amount\":%.2f,\"date\":\"%s\"}",
-                    income.getSource().replace("\"", "\\\""),
-                    income.getAmount(),
-                    dateFormat.format(income.getDate())
-                ));
-                if (i < incomes.size() - 1) json.append(",");
+        }
+        return anomalies.lastAlertId();
+    }
+
+    private static HttpResponse serveFile(String filename, String contentType) {
+        try {
+            File file = new File(filename);
+            if (!file.exists()) {
+                return HttpResponse.notFound();
             }
-            json.append("]}");
-            
-            sendJsonResponse(out, json.toString());
+            byte[] content = java.nio.file.Files.readAllBytes(file.toPath());
+            return new HttpResponse(200, contentType + "; charset=UTF-8", content);
+        } catch (IOException e) {
+            return HttpResponse.text(500, "Error reading file: " + e.getMessage());
+        }
+    }
+
+    private static HttpResponse handleGetTransactions(TransactionManager transactionManager) {
+        return HttpResponse.stream("application/json",
+                out -> TransactionJsonEncoder.writeTransactions(transactionManager, out));
+    }
+
+    private static HttpResponse handleQueryTransactions(TransactionManager transactionManager, String queryString) {
+        TransactionQuery query;
+        try {
+            query = TransactionQuery.parse(queryString);
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        }
+        try {
+            TransactionQuery.Page page = transactionManager.query(query);
+            ByteArrayOutputStream json = new ByteArrayOutputStream(256 + page.size() * 128);
+            TransactionJsonEncoder.writePage(transactionManager, page, json);
+            return new HttpResponse(200, "application/json", json.toByteArray());
         } catch (Exception e) {
-            sendError(out, "Error getting transactions: " + e.getMessage());
+            return HttpResponse.text(500, "Error querying transactions: " + e.getMessage());
         }
     }
 
-    private static void handlePostTransaction(BufferedReader in, PrintWriter out) {
+    // POST /api/transactions: one transaction object or an array of them,
+    // committed together once every element has been read and checked.
+    private static HttpResponse handlePostTransaction(IngestPipeline ingestPipeline, byte[] body) {
+        List<Expense> expenses = new ArrayList<>();
+        List<Income> incomes = new ArrayList<>();
+        int count;
+        try {
+            count = JSON_READERS.get().read(body, record -> {
+                if (record.isExpense()) {
+                    expenses.add(record.toExpense());
+                } else {
+                    incomes.add(record.toIncome());
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        }
         try {
-            // Read the request body
-            StringBuilder body = new StringBuilder();
-            while (in.ready()) {
-                body.append((char) in.read());
+            if (count > 0) {
+                ingestPipeline.submitAll(expenses, incomes).get();
             }
+            return HttpResponse.json("{\"status\":\"success\",\"count\":" + count + "}");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                return HttpResponse.text(400, e.getCause().getMessage());
+            }
+            return HttpResponse.text(500, "Error processing transaction: " + e.getCause().getMessage());
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error processing transaction: " + e.getMessage());
+        }
+    }
 
-            // Simple JSON parsing (in a real application, use a JSON library)
-            String bodyStr = body.toString();
-            if (bodyStr.contains("\"type\":\"expense\"")) {
-                // Parse expense
-                String description = extractValue(bodyStr, "description");
-                double amount = Double.parseDouble(extractValue(bodyStr, "amount"));
-                Date date = new SimpleDateFormat("yyyy-MM-dd").parse(extractValue(bodyStr, "date"));
-                String category = extractValue(bodyStr, "category");
-                
-                Expense expense = new Expense(description, amount, date, category);
-                transactionManager.addExpense(expense);
-            } else if (bodyStr.contains("\"type\":\"income\"")) {
-                // Parse income
-                String source = extractValue(bodyStr, "source");
-                double amount = Double.parseDouble(extractValue(bodyStr, "amount"));
-                Date date = new SimpleDateFormat("yyyy-MM-dd").parse(extractValue(bodyStr, "date"));
-                
-                Income income = new Income(source, amount, date);
-                transactionManager.addIncome(income);
+    // POST /api/import?format=csv|ofx with the bank export as the body.
+    private static HttpResponse handleImport(TransactionManager transactionManager, HttpRequest request) {
+        TransactionImporter.Format format = TransactionImporter.Format.CSV;
+        try {
+            for (String parameter : request.getQuery().split("&")) {
+                if (parameter.startsWith("format=")) {
+                    format = TransactionImporter.parseFormat(parameter.substring("format=".length()));
+                }
             }
-            
-            sendJsonResponse(out, "{\"status\":\"success\"}");
+            TransactionImporter.Report report = TransactionImporter.importBytes(
+                    transactionManager, ByteBuffer.wrap(request.getBody()), format);
+            return HttpResponse.json(report.toJson());
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
         } catch (Exception e) {
-            sendError(out, "Error processing transaction: " + e.getMessage());
+            return HttpResponse.text(500, "Error importing transactions: " + e.getMessage());
         }
     }
 
-    private static void handleGetSummary(PrintWriter out) {
+    private static HttpResponse handleGetCategorySummary(TransactionManager transactionManager, String queryString) {
+        CategoryRollups.Query query;
         try {
-            double totalIncome = transactionManager.calculateTotalIncome();
-            double totalExpenses = transactionManager.calculateTotalExpenses();
-            double savings = transactionManager.calculateSavings();
-            
-            String json = String.format(
-                "{\"totalIncome\":%.2f,\"totalExpenses\":%.2f,\"savings\":%.2f}",
-                totalIncome, totalExpenses, savings
-            );
-            
-            sendJsonResponse(out, json);
+            query = CategoryRollups.Query.parse(queryString);
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        }
+        try {
+            ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+            TransactionJsonEncoder.writeCategorySummary(transactionManager.categorySummary(query), json);
+            return new HttpResponse(200, "application/json", json.toByteArray());
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error getting category summary: " + e.getMessage());
+        }
+    }
+
+    // GET /api/summary/period?from=&to= or ?period=week|month|quarter|year|fiscal-year&date=
+    private static HttpResponse handleGetPeriodSummary(TransactionManager transactionManager, SummaryPeriod period) {
+        try {
+            ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+            TransactionJsonEncoder.writePeriodSummary(period, transactionManager.periodTotals(period), json);
+            return new HttpResponse(200, "application/json", json.toByteArray());
         } catch (Exception e) {
-            sendError(out, "Error getting summary: " + e.getMessage());
+            return HttpResponse.text(500, "Error getting period summary: " + e.getMessage());
         }
     }
 
-    private static String extractValue(String json, String key) {
-        int start = json.indexOf("\"" + key + "\":") + key.length() + 3;
-        int end = json.indexOf("\"", start);
-        if (end == -1) end = json.indexOf(",", start);
-        if (end == -1) end = json.indexOf("}", start);
-        return json.substring(start, end).replace("\"", "");
+    // GET /api/report?from=&to=&groupBy=month|quarter|year; the range is given
+    // like /api/summary/period's.
+    private static HttpResponse handleGetReport(TransactionManager transactionManager, SummaryPeriod period,
+                                                String queryString) {
+        try {
+            ReportEngine.Report report = transactionManager.report(period, ReportEngine.groupByOf(queryString));
+            ByteArrayOutputStream json = new ByteArrayOutputStream(4096);
+            TransactionJsonEncoder.writeReport(report, json);
+            return new HttpResponse(200, "application/json", json.toByteArray());
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.text(400, e.getMessage());
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error building report: " + e.getMessage());
+        }
     }
 
-    private static void sendJsonResponse(PrintWriter out, String json) {
-        out.println("HTTP/1.1 200 OK");
-        out.println("Content-Type: application/json");
-        out.println("Access-Control-Allow-Origin: *");
-        out.println("Content-Length: " + json.length());
-        out.println();
-        out.println(json);
+    // POST /api/backups: backs up the account's ledger as it is now, while
+    // commits go on, writing only the months that changed.
+    private static HttpResponse handleBackup(LedgerBackup backups) {
+        try {
+            return HttpResponse.json(backups.backup().toJson());
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error backing up ledger: " + e.getMessage());
+        }
     }
 
-    private static void sendError(PrintWriter out, String message) {
-        out.println("HTTP/1.1 500 Internal Server Error");
-        out.println("Content-Type: text/plain");
-        out.println();
-        out.println(message);
+    private static HttpResponse handleListBackups(LedgerBackup backups) {
+        try {
+            return HttpResponse.json(LedgerBackup.listJson(backups.directory()));
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error listing backups: " + e.getMessage());
+        }
     }
 
-    private static void sendNotFound(PrintWriter out) {
-        out.println("HTTP/1.1 404 Not Found");
-        out.println("Content-Type: text/plain");
-        out.println();
-        out.println("404 Not Found");
+    // GET /api/alerts?since=<id>&limit=<n>: alerts newer than since, oldest
+    // first.
+    private static HttpResponse handleGetAlerts(TransactionManager transactionManager, String queryString) {
+        long since = 0;
+        int limit = 100;
+        try {
+            for (String parameter : queryString.split("&")) {
+                if (parameter.startsWith("since=")) {
+                    since = Long.parseLong(parameter.substring("since=".length()));
+                } else if (parameter.startsWith("limit=")) {
+                    limit = Math.max(1, Math.min(1000, Integer.parseInt(parameter.substring("limit=".length()))));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return HttpResponse.text(400, "Invalid number in '" + queryString + "'");
+        }
+        try {
+            AnomalyDetector anomalies = transactionManager.anomalies();
+            List<AnomalyDetector.Alert> alerts = anomalies.alerts(since, limit);
+            // Where the next request continues: after the last one returned
+            long lastId = alerts.isEmpty() ? Math.max(since, anomalies.lastAlertId())
+                    : alerts.get(alerts.size() - 1).id;
+            ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+            TransactionJsonEncoder.writeAlerts(alerts, lastId, json);
+            return new HttpResponse(200, "application/json", json.toByteArray());
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error getting alerts: " + e.getMessage());
+        }
+    }
+
+    private static HttpResponse handleGetSummary(TransactionManager transactionManager) {
+        try {
+            // All three figures from one version
+            TransactionManager.Version version = transactionManager.version();
+            String totalIncome = Money.format(version.getTotalIncomeCents());
+            String totalExpenses = Money.format(version.getTotalExpenseCents());
+            String savings = Money.format(version.getSavingsCents());
+
+            String json = String.format(
+                "{\"version\":%d,\"totalIncome\":%s,\"totalExpenses\":%s,\"savings\":%s}",
+                version.getNumber(), totalIncome, totalExpenses, savings
+            );
+
+            return HttpResponse.json(json);
+        } catch (Exception e) {
+            return HttpResponse.text(500, "Error getting summary: " + e.getMessage());
+        }
     }
 }
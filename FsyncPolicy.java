@@ -0,0 +1,13 @@
+// When the transaction log forces appended records to disk.
+public enum FsyncPolicy {
+    ALWAYS,     // force after every append
+    INTERVAL,   // force at most once per interval, plus a background flush
+    NEVER;      // leave it to the operating system
+
+    public static FsyncPolicy fromProperty(String value) {
+        if (value == null || value.isEmpty()) {
+            return INTERVAL;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// Measures what sealing cold rows off-heap does to the heap and to GC pauses
+// on a large ledger. The ledger is replayed from a log that is never
+// compacted, so every row starts on-heap; it is measured once with sealing
+// off (expensetracker.hotMonths=-1) and once after the background sealer has moved everything older than
+// three months into direct buffers.
+//
+//   java -Xmx3g HeapBenchmark [rows]        (default 10000000)
+//
+// Per state: heap in use after a full GC, direct-buffer bytes, and over
+// bench.seconds (default 10) of a mixed workload (commits of recent
+// expenses, reports and pages) the young pauses and one explicit full GC.
+public class HeapBenchmark {
+    private static final long SECONDS = Long.getLong("bench.seconds", 10);
+
+    private static final List<Long> youngPauses = new ArrayList<>();
+    private static final List<Long> fullPauses = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        System.setProperty("expensetracker.fsync", "never");
+        // Compaction would move the rows into a mapped snapshot instead
+        System.setProperty("expensetracker.compactBytes", String.valueOf(Long.MAX_VALUE));
+        listenForPauses();
+        Path directory = Files.createTempDirectory("heap-benchmark");
+        try {
+            String base = directory.resolve("ledger").toString();
+            SyntheticLedger.writeLog(base, rows, SyntheticLedger.DEFAULT_SEED);
+            System.out.printf("%-8s %10s %9s %10s %8s %11s %11s %11s %10s%n", "state", "rows", "heap MB",
+                    "direct MB", "young", "p50 ms", "p99 ms", "max ms", "full ms");
+            run("on-heap", base, "-1");
+            run("tiered", base, "3");
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(String state, String base, String hotMonths) throws Exception {
+        System.setProperty("expensetracker.hotMonths", hotMonths);
+        // Leave nothing of the previous state behind to be counted
+        heapAfterFullGc();
+        TransactionManager manager = new TransactionManager(TransactionManager.openStore(base));
+        try {
+            awaitSealing(manager);
+            long heap = heapAfterFullGc();
+            long rows = manager.version().expenses().size() + manager.version().incomes().size();
+            synchronized (youngPauses) {
+                youngPauses.clear();
+                fullPauses.clear();
+            }
+            workload(manager);
+            heapAfterFullGc();
+            synchronized (youngPauses) {
+                youngPauses.sort(null);
+                System.out.printf("%-8s %10d %9.1f %10.1f %8d %11.2f %11.2f %11.2f %10.2f%n", state, rows,
+                        heap / 1e6, directBytes() / 1e6, youngPauses.size(), percentile(youngPauses, 0.5),
+                        percentile(youngPauses, 0.99), percentile(youngPauses, 1.0),
+                        fullPauses.isEmpty() ? 0.0 : fullPauses.get(fullPauses.size() - 1) / 1.0);
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static void awaitSealing(TransactionManager manager) throws InterruptedException {
+        while (manager.isSealing()) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static void workload(TransactionManager manager) {
+        Random random = new Random(1);
+        SummaryPeriod years = SummaryPeriod.between(LocalDate.of(2020, 1, 1), LocalDate.of(2025, 1, 1));
+        int today = (int) LocalDate.now().toEpochDay();
+        long end = System.nanoTime() + SECONDS * 1_000_000_000L;
+        long checksum = 0;
+        while (System.nanoTime() < end) {
+            List<Expense> batch = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                batch.add(Expense.ofMinor("Workload " + i, random.nextInt(10_000),
+                        ColumnarLedger.toDate(today - random.nextInt(60)), "Food"));
+            }
+            manager.commitBatch(batch, List.of());
+            checksum += manager.report(years, ReportEngine.GroupBy.MONTH).periodCount();
+            checksum += manager.query(TransactionQuery.parse("sort=-amount&limit=100")).hashCode();
+            checksum += manager.getExpenses().get(random.nextInt(manager.getExpenses().size()))
+                    .getDescription().length();
+        }
+        if (checksum == 42) System.out.println();
+    }
+
+    private static long heapAfterFullGc() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    // Pause durations in milliseconds, by collector kind.
+    private static void listenForPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                synchronized (youngPauses) {
+                    if (info.getGcAction().contains("major")) {
+                        fullPauses.add(info.getGcInfo().getDuration());
+                    } else {
+                        youngPauses.add(info.getGcInfo().getDuration());
+                    }
+                }
+            }, null, null);
+        }
+    }
+
+    private static double percentile(List<Long> sorted, double q) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(q * sorted.size())));
+    }
+}
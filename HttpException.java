@@ -0,0 +1,19 @@
+// A request that cannot be served, carrying the status code to answer with.
+public class HttpException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public HttpException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public HttpResponse toResponse() {
+        return HttpResponse.text(status, getMessage());
+    }
+}
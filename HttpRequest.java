@@ -0,0 +1,58 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class HttpRequest {
+    private final String method;
+    private final String path;
+    private final String query;
+    private final String version;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    public HttpRequest(String method, String path, String query, String version,
+                       Map<String, String> headers, byte[] body) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    // Header names are stored in lower case.
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if ("HTTP/1.0".equals(version)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+}
@@ -0,0 +1,229 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Parses HTTP/1.1 requests straight out of a byte buffer in read mode. parse
+// returns null, leaving the buffer untouched, until a whole request
+// (headers plus a Content-Length or chunked body) is available, so it can be
+// called again after every read and handles pipelined requests one after
+// another. Chunked bodies are joined into one array; their framing counts
+// towards the buffer limit, their trailers are ignored.
+public final class HttpRequestParser {
+    public static final int MAX_HEADER_BYTES = 16 * 1024;
+    // Bulk imports arrive as one body; raise with -Dexpensetracker.maxBodyBytes
+    public static final int MAX_BODY_BYTES = Integer.getInteger("expensetracker.maxBodyBytes", 8 << 20);
+
+    private HttpRequestParser() {
+    }
+
+    public static HttpRequest parse(ByteBuffer buffer) throws HttpException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        // Tolerate blank lines between pipelined requests
+        while (start + 1 < limit && buffer.get(start) == '\r' && buffer.get(start + 1) == '\n') {
+            start += 2;
+        }
+
+        int headerEnd = indexOfHeaderEnd(buffer, start, limit);
+        if (headerEnd < 0) {
+            if (limit - start > MAX_HEADER_BYTES) {
+                throw new HttpException(431, "Request headers too large");
+            }
+            return null;
+        }
+
+        int lineEnd = indexOfLineEnd(buffer, start, headerEnd);
+        String requestLine = ascii(buffer, start, lineEnd);
+        int firstSpace = requestLine.indexOf(' ');
+        int lastSpace = requestLine.lastIndexOf(' ');
+        if (firstSpace <= 0 || lastSpace == firstSpace) {
+            throw new HttpException(400, "Malformed request line");
+        }
+        String method = requestLine.substring(0, firstSpace);
+        String target = requestLine.substring(firstSpace + 1, lastSpace);
+        String version = requestLine.substring(lastSpace + 1);
+        if (!version.startsWith("HTTP/1.")) {
+            throw new HttpException(400, "Unsupported protocol " + version);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        int lineStart = lineEnd + 2;
+        while (lineStart < headerEnd - 2) {
+            lineEnd = indexOfLineEnd(buffer, lineStart, headerEnd);
+            int colon = indexOf(buffer, (byte) ':', lineStart, lineEnd);
+            if (colon < 0) {
+                throw new HttpException(400, "Malformed header");
+            }
+            headers.put(ascii(buffer, lineStart, colon).trim().toLowerCase(),
+                    ascii(buffer, colon + 1, lineEnd).trim());
+            lineStart = lineEnd + 2;
+        }
+
+        String transferEncoding = headers.get("transfer-encoding");
+        byte[] body;
+        if (transferEncoding != null) {
+            if (!transferEncoding.equalsIgnoreCase("chunked")) {
+                throw new HttpException(501, "Only chunked Transfer-Encoding is supported");
+            }
+            // Both framings at once is how requests get smuggled past proxies
+            if (headers.containsKey("content-length")) {
+                throw new HttpException(400, "Content-Length with Transfer-Encoding");
+            }
+            long chunked = scanChunked(buffer, headerEnd, limit);
+            if (chunked < 0) {
+                return null;
+            }
+            body = new byte[(int) (chunked >>> 32)];
+            copyChunks(buffer, headerEnd, body);
+            buffer.position((int) chunked);
+        } else {
+            int contentLength = contentLength(headers.get("content-length"));
+            if (headerEnd + contentLength > limit) {
+                return null;
+            }
+            body = new byte[contentLength];
+            buffer.get(headerEnd, body);
+            buffer.position(headerEnd + contentLength);
+        }
+
+        int questionMark = target.indexOf('?');
+        String path = questionMark < 0 ? target : target.substring(0, questionMark);
+        String query = questionMark < 0 ? "" : target.substring(questionMark + 1);
+        return new HttpRequest(method, path, query, version, headers, body);
+    }
+
+    // Bytes needed to hold one request of the largest accepted size.
+    public static int maxRequestBytes() {
+        return MAX_HEADER_BYTES + MAX_BODY_BYTES;
+    }
+
+    private static int contentLength(String value) throws HttpException {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(value);
+            if (length < 0) {
+                throw new HttpException(400, "Invalid Content-Length");
+            }
+            if (length > MAX_BODY_BYTES) {
+                throw new HttpException(413, "Request body too large");
+            }
+            return (int) length;
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid Content-Length");
+        }
+    }
+
+    // Walks a chunked body from its first size line. Returns -1 until the
+    // last chunk and the trailers have arrived, then the body length in the
+    // high int and the index just past the request in the low one.
+    private static long scanChunked(ByteBuffer buffer, int from, int limit) throws HttpException {
+        long length = 0;
+        int position = from;
+        while (true) {
+            int lineEnd = indexOfLineEnd(buffer, position, limit);
+            if (lineEnd == limit) {
+                if (limit - position > MAX_HEADER_BYTES) {
+                    throw new HttpException(400, "Malformed chunk size");
+                }
+                return -1;
+            }
+            int size = chunkSize(buffer, position, lineEnd);
+            position = lineEnd + 2;
+            if (size == 0) break;
+            length += size;
+            if (length > MAX_BODY_BYTES) {
+                throw new HttpException(413, "Request body too large");
+            }
+            if (position + size + 2 > limit) {
+                return -1;
+            }
+            if (buffer.get(position + size) != '\r' || buffer.get(position + size + 1) != '\n') {
+                throw new HttpException(400, "Malformed chunk");
+            }
+            position += size + 2;
+        }
+        // Trailer lines, if any, up to a blank line
+        while (true) {
+            int lineEnd = indexOfLineEnd(buffer, position, limit);
+            if (lineEnd == limit) {
+                if (limit - position > MAX_HEADER_BYTES) {
+                    throw new HttpException(431, "Request trailers too large");
+                }
+                return -1;
+            }
+            boolean blank = lineEnd == position;
+            position = lineEnd + 2;
+            if (blank) break;
+        }
+        return length << 32 | position;
+    }
+
+    // Copies the data of a chunked body already checked by scanChunked.
+    private static void copyChunks(ByteBuffer buffer, int from, byte[] body) throws HttpException {
+        int position = from;
+        int offset = 0;
+        while (offset < body.length) {
+            int lineEnd = indexOfLineEnd(buffer, position, buffer.limit());
+            int size = chunkSize(buffer, position, lineEnd);
+            buffer.get(lineEnd + 2, body, offset, size);
+            offset += size;
+            position = lineEnd + 2 + size + 2;
+        }
+    }
+
+    // The hex size at the start of a chunk line; extensions after ; are ignored.
+    private static int chunkSize(ByteBuffer buffer, int from, int to) throws HttpException {
+        long size = 0;
+        int i = from;
+        for (; i < to; i++) {
+            int digit = Character.digit(buffer.get(i), 16);
+            if (digit < 0) break;
+            size = size << 4 | digit;
+            if (size > MAX_BODY_BYTES) {
+                throw new HttpException(413, "Request body too large");
+            }
+        }
+        if (i == from || (i < to && buffer.get(i) != ';' && buffer.get(i) != ' ' && buffer.get(i) != '\t')) {
+            throw new HttpException(400, "Malformed chunk size");
+        }
+        return (int) size;
+    }
+
+    // Returns the index just past the blank line ending the header section.
+    private static int indexOfHeaderEnd(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfLineEnd(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 1 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HttpResponse {
+    // A body produced while it is sent, using chunked transfer coding.
+    public interface StreamingBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final int status;
+    private final String contentType;
+    private final byte[] body;
+    private final StreamingBody stream;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private EventBroadcaster events;
+
+    public HttpResponse(int status, String contentType, byte[] body) {
+        this(status, contentType, body, null);
+    }
+
+    private HttpResponse(int status, String contentType, byte[] body, StreamingBody stream) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.stream = stream;
+        headers.put("Access-Control-Allow-Origin", "*");
+    }
+
+    public static HttpResponse stream(String contentType, StreamingBody body) {
+        return new HttpResponse(200, contentType, null, body);
+    }
+
+    // A text/event-stream that stays open and carries every event the
+    // broadcaster publishes. The NIO server subscribes the connection
+    // directly; other servers block in the streaming body.
+    public static HttpResponse events(EventBroadcaster broadcaster) {
+        HttpResponse response = new HttpResponse(200, "text/event-stream", null, broadcaster::streamTo);
+        response.events = broadcaster;
+        return response.header("Cache-Control", "no-cache");
+    }
+
+    public static HttpResponse json(String json) {
+        return new HttpResponse(200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse text(int status, String message) {
+        return new HttpResponse(status, "text/plain", message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse notModified(String etag) {
+        return new HttpResponse(304, "text/plain", new byte[0]).header("ETag", etag);
+    }
+
+    public static HttpResponse notFound() {
+        return text(404, "404 Not Found");
+    }
+
+    public HttpResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    public EventBroadcaster getEvents() {
+        return events;
+    }
+
+    public ByteBuffer encode(boolean keepAlive) {
+        if (stream != null) {
+            throw new IllegalStateException("Streaming responses must be written with writeTo");
+        }
+        byte[] head = head(keepAlive);
+        ByteBuffer buffer = ByteBuffer.allocate(head.length + body.length);
+        buffer.put(head).put(body).flip();
+        return buffer;
+    }
+
+    public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+        out.write(head(keepAlive));
+        if (stream == null) {
+            out.write(body);
+            return;
+        }
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+        try {
+            stream.writeTo(chunked);
+        } catch (RuntimeException e) {
+            // Headers are already out; the caller has to abort the connection
+            throw new IOException("Error writing response body", e);
+        }
+        chunked.finish();
+    }
+
+    byte[] head(boolean keepAlive) {
+        StringBuilder head = new StringBuilder(160);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        if (stream != null) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 413: return "Payload Too Large";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Unknown";
+        }
+    }
+}
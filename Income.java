@@ -2,20 +2,33 @@ import java.util.Date;
 
 public class Income {
     private String source;
-    private double amount;
+    // In minor units, see Money
+    private long amount;
     private Date date;
 
     public Income(String source, double amount, Date date) {
+        this(Money.toMinor(amount), source, date);
+    }
+
+    private Income(long amount, String source, Date date) {
         this.source = source;
         this.amount = amount;
         this.date = date;
     }
 
+    public static Income ofMinor(String source, long amount, Date date) {
+        return new Income(amount, source, date);
+    }
+
     public String getSource() {
         return source;
     }
 
     public double getAmount() {
+        return Money.toMajor(amount);
+    }
+
+    public long getAmountMinor() {
         return amount;
     }
 
@@ -27,7 +40,7 @@ public class Income {
     public String toString() {
         return "Income{" +
                 "source='" + source + '\'' +
-                ", amount=" + amount +
+                ", amount=" + Money.format(amount) +
                 ", date=" + date +
                 '}';
     }
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-writer group commit in front of TransactionManager. Request threads
+// enqueue parsed transactions; one committer thread drains them in batches
+// and acknowledges every transaction of a batch once that batch is durable.
+public class IngestPipeline {
+    private static final long ENQUEUE_TIMEOUT_MILLIS = 1000;
+    private static final Metrics.Histogram COMMIT_TIME = Metrics.histogram("expensetracker_ingest_commit_seconds",
+            "Time to commit one group of POSTed transactions, including fsync");
+
+    private static class Pending {
+        final List<Expense> expenses;
+        final List<Income> incomes;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Pending(List<Expense> expenses, List<Income> incomes) {
+            this.expenses = expenses;
+            this.incomes = incomes;
+        }
+    }
+
+    private final TransactionManager transactionManager;
+    private final BlockingQueue<Pending> queue;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final Thread committer;
+    private volatile boolean running = true;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong totalCommitNanos = new AtomicLong();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    public IngestPipeline(TransactionManager transactionManager, int queueCapacity,
+                          int maxBatchSize, long maxLingerMicros) {
+        this.transactionManager = transactionManager;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(maxLingerMicros);
+        this.committer = new Thread(this::run, "ingest-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public CompletableFuture<Void> submitExpense(Expense expense) throws InterruptedException {
+        return submit(new Pending(List.of(expense), List.of()));
+    }
+
+    public CompletableFuture<Void> submitIncome(Income income) throws InterruptedException {
+        return submit(new Pending(List.of(), List.of(income)));
+    }
+
+    // Takes one queue slot and commits in one batch, so the transactions
+    // become visible together.
+    public CompletableFuture<Void> submitAll(List<Expense> expenses, List<Income> incomes)
+            throws InterruptedException {
+        return submit(new Pending(expenses, incomes));
+    }
+
+    private CompletableFuture<Void> submit(Pending pending) throws InterruptedException {
+        if (!running || !queue.offer(pending, ENQUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new RejectedExecutionException("Ingest queue is full");
+        }
+        return pending.committed;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        List<Expense> expenses = new ArrayList<>(maxBatchSize);
+        List<Income> incomes = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Only close() stops the committer; commit what was drained
+            }
+            if (!batch.isEmpty()) {
+                commit(batch, expenses, incomes);
+                batch.clear();
+                expenses.clear();
+                incomes.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch, List<Expense> expenses, List<Income> incomes) {
+        for (Pending pending : batch) {
+            expenses.addAll(pending.expenses);
+            incomes.addAll(pending.incomes);
+        }
+
+        long start = System.nanoTime();
+        try {
+            transactionManager.commitBatch(expenses, incomes, true);
+        } catch (IllegalArgumentException e) {
+            // A rejected batch was not written, so one bad entry need not
+            // fail its neighbours: each is committed on its own instead
+            if (batch.size() == 1) {
+                batch.get(0).committed.completeExceptionally(e);
+            } else {
+                for (Pending pending : batch) {
+                    commit(List.of(pending), new ArrayList<>(), new ArrayList<>());
+                }
+            }
+            return;
+        } catch (RuntimeException e) {
+            for (Pending pending : batch) {
+                pending.committed.completeExceptionally(e);
+            }
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        batches.incrementAndGet();
+        transactions.addAndGet(expenses.size() + incomes.size());
+        totalCommitNanos.addAndGet(elapsed);
+        maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+        COMMIT_TIME.recordNanos(elapsed);
+        for (Pending pending : batch) {
+            pending.committed.complete(null);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public String statsJson() {
+        long batchCount = batches.get();
+        double averageMicros = batchCount == 0 ? 0 : totalCommitNanos.get() / 1000.0 / batchCount;
+        return String.format(
+            "{\"queueDepth\":%d,\"batches\":%d,\"transactions\":%d," +
+            "\"avgCommitMicros\":%.1f,\"maxCommitMicros\":%.1f}",
+            getQueueDepth(), batchCount, transactions.get(),
+            averageMicros, maxCommitNanos.get() / 1000.0);
+    }
+
+    // Stops accepting work and waits for everything already queued to commit.
+    // The committer is not interrupted: that would close the log's channel.
+    public void close() {
+        running = false;
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
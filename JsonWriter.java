@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes JSON as UTF-8 bytes into a reusable per-thread buffer and hands it
+// to the underlying stream whenever it fills up. Numbers, money amounts and
+// dates are formatted digit by digit, without String.format or Date objects.
+public class JsonWriter {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BUFFERS.get();
+    }
+
+    // Writes an ASCII literal such as a key or punctuation, unescaped.
+    public JsonWriter raw(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            put((byte) ascii.charAt(i));
+        }
+        return this;
+    }
+
+    public JsonWriter raw(char c) throws IOException {
+        put((byte) c);
+        return this;
+    }
+
+    public JsonWriter string(String value) throws IOException {
+        put((byte) '"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                escapeAscii(c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | c >> 6));
+                put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put((byte) (0xF0 | codePoint >> 18));
+                put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: not encodable, emit U+FFFD
+                put((byte) 0xEF);
+                put((byte) 0xBF);
+                put((byte) 0xBD);
+            } else {
+                put((byte) (0xE0 | c >> 12));
+                put((byte) (0x80 | c >> 6 & 0x3F));
+                put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        put((byte) '"');
+        return this;
+    }
+
+    // Writes already UTF-8 encoded text. Multi-byte sequences never contain
+    // ASCII bytes, so escaping byte by byte is safe.
+    public JsonWriter utf8String(byte[] bytes, int offset, int length) throws IOException {
+        put((byte) '"');
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b >= 0) {
+                escapeAscii((char) b);
+            } else {
+                put(b);
+            }
+        }
+        put((byte) '"');
+        return this;
+    }
+
+    private void escapeAscii(char c) throws IOException {
+        switch (c) {
+            case '"': put((byte) '\\'); put((byte) '"'); break;
+            case '\\': put((byte) '\\'); put((byte) '\\'); break;
+            case '\n': put((byte) '\\'); put((byte) 'n'); break;
+            case '\r': put((byte) '\\'); put((byte) 'r'); break;
+            case '\t': put((byte) '\\'); put((byte) 't'); break;
+            default:
+                if (c < 0x20) {
+                    put((byte) '\\');
+                    put((byte) 'u');
+                    put((byte) '0');
+                    put((byte) '0');
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xF]);
+                } else {
+                    put((byte) c);
+                }
+        }
+    }
+
+    public JsonWriter number(long value) throws IOException {
+        if (value < 0) {
+            put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                return raw("9223372036854775808");
+            }
+            value = -value;
+        }
+        digits(value, 1);
+        return this;
+    }
+
+    // Writes an amount in cents as a decimal with Money.SCALE fraction digits.
+    public JsonWriter cents(long cents) throws IOException {
+        if (cents < 0) {
+            put((byte) '-');
+            cents = -cents;
+        }
+        digits(cents / Money.FACTOR, 1);
+        if (Money.SCALE > 0) {
+            put((byte) '.');
+            digits(cents % Money.FACTOR, Money.SCALE);
+        }
+        return this;
+    }
+
+    // Writes an epoch day as a quoted yyyy-MM-dd string.
+    public JsonWriter date(int epochDay) throws IOException {
+        // Civil-from-days conversion, see Howard Hinnant's date algorithms
+        long z = epochDay + 719468L;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        put((byte) '"');
+        if (year < 0) {
+            put((byte) '-');
+            year = -year;
+        }
+        digits(year, 4);
+        put((byte) '-');
+        digits(month, 2);
+        put((byte) '-');
+        digits(day, 2);
+        put((byte) '"');
+        return this;
+    }
+
+    // Writes a non-negative value left-padded with zeros to minWidth digits.
+    private void digits(long value, int minWidth) throws IOException {
+        int width = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            width++;
+        }
+        for (int i = width; i < minWidth; i++) {
+            put((byte) '0');
+        }
+        if (BUFFER_SIZE - position < width) {
+            flushBuffer();
+        }
+        for (int i = position + width - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += width;
+    }
+
+    private void put(byte b) throws IOException {
+        if (position == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        buffer[position++] = b;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    public void flush() throws IOException {
+        if (position > 0) {
+            flushBuffer();
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,608 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Compressed, read-only image of one ledger version, for keeping ledgers at
+// rest in a fraction of a LedgerSnapshot's size. Rows are grouped into one
+// block per calendar month, in ledger order within the month, and every
+// block is encoded on its own:
+//
+//   labels        the block's categories and sources: varint count, then
+//                 varint length and UTF-8 bytes each
+//   descriptions  descriptions used more than once in the block, likewise
+//   expense rows  zigzag varint day delta from the previous row (the first
+//                 from the month's first day), zigzag varint cents, varint
+//                 label id, and varint description id + 1, or 0 followed by
+//                 the description inline
+//   income rows   day delta, cents and label id as for expenses
+//
+// The index at the end of the file gives each month's offset, length, row
+// counts and a CRC32 of its bytes, so one month is decoded and verified
+// without reading the others.
+//
+// Header (64 bytes):  int magic, short version, short scale, long ledger version,
+//                     int expenseCount, int incomeCount,
+//                     long totalExpenseCents, long totalIncomeCents,
+//                     long indexOffset, int blockCount, int crc32 of the index,
+//                     int 0, int crc32 of the preceding 60 bytes
+// Index entry:        int month (year * 12 + month - 1), long offset,
+//                     int length, int expenseCount, int incomeCount, int crc32
+//
+// Snapshots keep fixed-width rows because the ledger reads them in place; an
+// archive has to be decoded. Reading a whole archive gives rows in month
+// order rather than the order they were added. By hand:
+//
+//   java LedgerArchive write <base name> <archive>
+//   java LedgerArchive read <archive> [yyyy-MM]
+public final class LedgerArchive {
+    private static final int MAGIC = 0x45544152; // "ETAR"
+    private static final short VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int INDEX_ENTRY_SIZE = 4 + 8 + 4 + 4 + 4 + 4;
+
+    private final Path path;
+    private final ByteBuffer file;
+    private final long ledgerVersion;
+    private final int expenseCount;
+    private final int incomeCount;
+    private final long totalExpenses;
+    private final long totalIncome;
+    private final int[] months;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] expenseCounts;
+    private final int[] incomeCounts;
+    private final int[] checksums;
+
+    private LedgerArchive(Path path, ByteBuffer file) throws IOException {
+        this.path = path;
+        this.file = file;
+        if (file.capacity() < HEADER_SIZE || file.getInt(0) != MAGIC
+                || file.getInt(HEADER_SIZE - 4) != crc(file, 0, HEADER_SIZE - 4)) {
+            throw new IOException(path + " is not a ledger archive");
+        }
+        short version = file.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported archive version " + version + " in " + path);
+        }
+        int scale = file.getShort(6);
+        if (scale != Money.SCALE) {
+            throw new IOException(path + " stores amounts with " + scale + " fraction digits but "
+                    + Money.CURRENCY + " has " + Money.SCALE);
+        }
+        ByteBuffer header = file.duplicate().position(8);
+        ledgerVersion = header.getLong();
+        expenseCount = header.getInt();
+        incomeCount = header.getInt();
+        totalExpenses = header.getLong();
+        totalIncome = header.getLong();
+        long indexOffset = header.getLong();
+        int blockCount = header.getInt();
+        int indexCrc = header.getInt();
+        if (blockCount < 0 || indexOffset < HEADER_SIZE
+                || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE != file.capacity()
+                || crc(file, (int) indexOffset, blockCount * INDEX_ENTRY_SIZE) != indexCrc) {
+            throw new IOException(path + " has a damaged block index");
+        }
+
+        months = new int[blockCount];
+        offsets = new int[blockCount];
+        lengths = new int[blockCount];
+        expenseCounts = new int[blockCount];
+        incomeCounts = new int[blockCount];
+        checksums = new int[blockCount];
+        ByteBuffer index = file.duplicate().position((int) indexOffset);
+        for (int i = 0; i < blockCount; i++) {
+            months[i] = index.getInt();
+            long offset = index.getLong();
+            lengths[i] = index.getInt();
+            expenseCounts[i] = index.getInt();
+            incomeCounts[i] = index.getInt();
+            checksums[i] = index.getInt();
+            if (offset < HEADER_SIZE || lengths[i] < 0 || offset + lengths[i] > indexOffset
+                    || (i > 0 && months[i] <= months[i - 1])) {
+                throw new IOException(path + " has a damaged block index");
+            }
+            offsets[i] = (int) offset;
+        }
+    }
+
+    public static LedgerArchive open(Path path) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is larger than 2 GB");
+            }
+            return new LedgerArchive(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(offset).limit(offset + length));
+        return (int) crc.getValue();
+    }
+
+    public long ledgerVersion() {
+        return ledgerVersion;
+    }
+
+    public int expenseCount() {
+        return expenseCount;
+    }
+
+    public int incomeCount() {
+        return incomeCount;
+    }
+
+    public long totalExpenseCents() {
+        return totalExpenses;
+    }
+
+    public long totalIncomeCents() {
+        return totalIncome;
+    }
+
+    // Months that have rows, oldest first.
+    public List<YearMonth> months() {
+        List<YearMonth> result = new ArrayList<>(months.length);
+        for (int month : months) {
+            result.add(toYearMonth(month));
+        }
+        return result;
+    }
+
+    public int expenseCount(YearMonth month) {
+        int block = Arrays.binarySearch(months, monthKey(month));
+        return block < 0 ? 0 : expenseCounts[block];
+    }
+
+    public int incomeCount(YearMonth month) {
+        int block = Arrays.binarySearch(months, monthKey(month));
+        return block < 0 ? 0 : incomeCounts[block];
+    }
+
+    // Encoded size of one month's block, 0 when it has no rows.
+    public int blockBytes(YearMonth month) {
+        int block = Arrays.binarySearch(months, monthKey(month));
+        return block < 0 ? 0 : lengths[block];
+    }
+
+    // Hands one month's rows to the handler, expenses first. A block whose
+    // checksum does not match is refused before any of its rows are read.
+    public void read(YearMonth month, TransactionStore.RecordHandler handler) throws IOException {
+        int block = Arrays.binarySearch(months, monthKey(month));
+        if (block >= 0) decode(block, handler);
+    }
+
+    // Hands every row to the handler, month by month.
+    public void replay(TransactionStore.RecordHandler handler) throws IOException {
+        for (int block = 0; block < months.length; block++) {
+            decode(block, handler);
+        }
+    }
+
+    private void decode(int block, TransactionStore.RecordHandler handler) throws IOException {
+        String where = "Block for " + toYearMonth(months[block]) + " in " + path;
+        if (crc(file, offsets[block], lengths[block]) != checksums[block]) {
+            throw new IOException(where + " is damaged");
+        }
+        ByteBuffer in = file.duplicate().position(offsets[block]).limit(offsets[block] + lengths[block]);
+        decodeBlock(in, months[block], expenseCounts[block], incomeCounts[block], handler, where);
+    }
+
+    // Decodes one month's block, already verified, from its position to its
+    // limit.
+    static void decodeBlock(ByteBuffer in, int monthKey, int expenseRows, int incomeRows,
+                            TransactionStore.RecordHandler handler, String where) throws IOException {
+        YearMonth month = toYearMonth(monthKey);
+        int firstDay = (int) month.atDay(1).toEpochDay();
+        // Midnight of each day of the month, worked out once per block
+        long[] midnights = new long[month.lengthOfMonth()];
+        Arrays.fill(midnights, Long.MIN_VALUE);
+        try {
+            byte[] scratch = new byte[64];
+            String[] labels = readStrings(in, scratch);
+            String[] descriptions = readStrings(in, scratch);
+            int day = firstDay;
+            for (int i = 0; i < expenseRows; i++) {
+                day += (int) zigzag(readVarint(in));
+                long cents = zigzag(readVarint(in));
+                String label = labels[(int) readVarint(in)];
+                int description = (int) readVarint(in);
+                String text = description == 0 ? readString(in, scratch) : descriptions[description - 1];
+                handler.onExpense(Expense.ofMinor(text, cents, date(midnights, day - firstDay, day), label));
+            }
+            day = firstDay;
+            for (int i = 0; i < incomeRows; i++) {
+                day += (int) zigzag(readVarint(in));
+                long cents = zigzag(readVarint(in));
+                String label = labels[(int) readVarint(in)];
+                handler.onIncome(Income.ofMinor(label, cents, date(midnights, day - firstDay, day)));
+            }
+            if (in.hasRemaining()) throw new IOException(where + " has trailing bytes");
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(where + " is damaged", e);
+        }
+    }
+
+    private static Date date(long[] midnights, int dayOfMonth, int epochDay) {
+        long millis = midnights[dayOfMonth];
+        if (millis == Long.MIN_VALUE) {
+            millis = ColumnarLedger.toDate(epochDay).getTime();
+            midnights[dayOfMonth] = millis;
+        }
+        return new Date(millis);
+    }
+
+    private static String[] readStrings(ByteBuffer in, byte[] scratch) {
+        String[] values = new String[Math.toIntExact(readVarint(in))];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in, scratch);
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer in, byte[] scratch) {
+        int length = Math.toIntExact(readVarint(in));
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Varint longer than 10 bytes");
+    }
+
+    private static long zigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int monthKey(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    static int monthKey(int epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+
+    static YearMonth toYearMonth(int monthKey) {
+        return YearMonth.of(Math.floorDiv(monthKey, 12), Math.floorMod(monthKey, 12) + 1);
+    }
+
+    // Writes the version's rows to the temporary path, forces it and renames
+    // it over the target.
+    public static void write(TransactionManager.Version version, Path target, Path temp) throws IOException {
+        BlockWriter blocks = new BlockWriter(version);
+        ByteBuffer index = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+        int blockCount = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = HEADER_SIZE;
+            out.position(offset);
+            for (int month = blocks.firstMonth(); month <= blocks.lastMonth(); month++) {
+                int expenseRows = blocks.expenseCount(month);
+                int incomeRows = blocks.incomeCount(month);
+                if (expenseRows == 0 && incomeRows == 0) continue;
+                ByteBuffer block = blocks.encode(month);
+                CRC32 crc = new CRC32();
+                crc.update(block.duplicate());
+                int length = block.remaining();
+                writeFully(out, block);
+                if (index.remaining() < INDEX_ENTRY_SIZE) {
+                    index = ByteBuffer.allocate(index.capacity() * 2).put(index.flip());
+                }
+                index.putInt(month).putLong(offset).putInt(length)
+                        .putInt(expenseRows).putInt(incomeRows).putInt((int) crc.getValue());
+                offset += length;
+                blockCount++;
+            }
+            if (offset + (long) index.position() > Integer.MAX_VALUE) {
+                throw new IOException("Archive of version " + version.getNumber() + " would be larger than 2 GB");
+            }
+            index.flip();
+            CRC32 indexCrc = new CRC32();
+            indexCrc.update(index.duplicate());
+            writeFully(out, index);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) Money.SCALE).putLong(version.getNumber())
+                    .putInt(version.expenses().size()).putInt(version.incomes().size())
+                    .putLong(version.getTotalExpenseCents()).putLong(version.getTotalIncomeCents())
+                    .putLong(offset).putInt(blockCount).putInt((int) indexCrc.getValue()).putInt(0);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            header.putInt((int) crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Row indices of one ledger grouped by month (a counting sort), in
+    // ledger order within each month.
+    private static final class MonthOrder {
+        private final int firstMonth;
+        private final int[] starts;
+        private final int[] rows;
+
+        MonthOrder(ColumnarLedger.Version ledger) {
+            int size = ledger.size();
+            int[] keys = new int[size];
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                keys[i] = monthKey(ledger.epochDayAt(i));
+                min = Math.min(min, keys[i]);
+                max = Math.max(max, keys[i]);
+            }
+            firstMonth = size == 0 ? 0 : min;
+            starts = new int[size == 0 ? 1 : max - min + 2];
+            for (int key : keys) {
+                starts[key - firstMonth + 1]++;
+            }
+            for (int i = 1; i < starts.length; i++) {
+                starts[i] += starts[i - 1];
+            }
+            int[] next = Arrays.copyOf(starts, starts.length - 1);
+            rows = new int[size];
+            for (int i = 0; i < size; i++) {
+                rows[next[keys[i] - firstMonth]++] = i;
+            }
+        }
+
+        int first() {
+            return rows.length == 0 ? Integer.MAX_VALUE : firstMonth;
+        }
+
+        int last() {
+            return rows.length == 0 ? Integer.MIN_VALUE : firstMonth + starts.length - 2;
+        }
+
+        int start(int month) {
+            return count(month) == 0 ? 0 : starts[month - firstMonth];
+        }
+
+        int count(int month) {
+            int i = month - firstMonth;
+            return i < 0 || i >= starts.length - 1 ? 0 : starts[i + 1] - starts[i];
+        }
+
+        int row(int position) {
+            return rows[position];
+        }
+    }
+
+    // Encodes one version's months as blocks, into one reused buffer.
+    static final class BlockWriter {
+        private final ColumnarLedger.Version expenses;
+        private final ColumnarLedger.Version incomes;
+        private final MonthOrder expenseOrder;
+        private final MonthOrder incomeOrder;
+        // Block label id per ledger label id, -1 when not used yet
+        private final int[] expenseLabels;
+        private final int[] incomeLabels;
+        private final List<String> labels = new ArrayList<>();
+        private final Map<String, int[]> descriptions = new HashMap<>();
+        private final List<String> repeated = new ArrayList<>();
+        private String[] texts = new String[64];
+        private byte[] out = new byte[4096];
+        private int size;
+
+        BlockWriter(TransactionManager.Version version) {
+            this.expenses = version.expenses();
+            this.incomes = version.incomes();
+            this.expenseOrder = new MonthOrder(expenses);
+            this.incomeOrder = new MonthOrder(incomes);
+            this.expenseLabels = new int[expenses.labelCount()];
+            this.incomeLabels = new int[incomes.labelCount()];
+        }
+
+        // Month keys to try; months in between may have no rows.
+        int firstMonth() {
+            return Math.min(expenseOrder.first(), incomeOrder.first());
+        }
+
+        int lastMonth() {
+            return Math.max(expenseOrder.last(), incomeOrder.last());
+        }
+
+        int expenseCount(int month) {
+            return expenseOrder.count(month);
+        }
+
+        int incomeCount(int month) {
+            return incomeOrder.count(month);
+        }
+
+        // The month's block, valid until the next call.
+        ByteBuffer encode(int key) {
+            YearMonth month = toYearMonth(key);
+            int expenseStart = expenseOrder.start(key);
+            int expenseRows = expenseOrder.count(key);
+            int incomeStart = incomeOrder.start(key);
+            int incomeRows = incomeOrder.count(key);
+            Arrays.fill(expenseLabels, -1);
+            Arrays.fill(incomeLabels, -1);
+            labels.clear();
+            descriptions.clear();
+            repeated.clear();
+            if (texts.length < expenseRows) texts = new String[Math.max(expenseRows, texts.length * 2)];
+
+            // First pass: the block's dictionaries
+            for (int i = 0; i < expenseRows; i++) {
+                int row = expenseOrder.row(expenseStart + i);
+                labelId(expenseLabels, expenses, row);
+                String text = expenses.textAt(row);
+                texts[i] = text == null ? "" : text;
+                int[] entry = descriptions.computeIfAbsent(texts[i], t -> new int[]{0, 0});
+                if (++entry[0] == 2) {
+                    repeated.add(texts[i]);
+                    entry[1] = repeated.size();
+                }
+            }
+            for (int i = 0; i < incomeRows; i++) {
+                labelId(incomeLabels, incomes, incomeOrder.row(incomeStart + i));
+            }
+
+            size = 0;
+            putStrings(labels);
+            putStrings(repeated);
+            int firstDay = (int) month.atDay(1).toEpochDay();
+            int day = firstDay;
+            for (int i = 0; i < expenseRows; i++) {
+                int row = expenseOrder.row(expenseStart + i);
+                int rowDay = expenses.epochDayAt(row);
+                putVarint(zigzag(rowDay - day));
+                day = rowDay;
+                putVarint(zigzag(expenses.centsAt(row)));
+                putVarint(expenseLabels[expenses.labelIdAt(row)]);
+                int id = descriptions.get(texts[i])[1];
+                putVarint(id);
+                if (id == 0) putString(texts[i]);
+                texts[i] = null;
+            }
+            day = firstDay;
+            for (int i = 0; i < incomeRows; i++) {
+                int row = incomeOrder.row(incomeStart + i);
+                int rowDay = incomes.epochDayAt(row);
+                putVarint(zigzag(rowDay - day));
+                day = rowDay;
+                putVarint(zigzag(incomes.centsAt(row)));
+                putVarint(incomeLabels[incomes.labelIdAt(row)]);
+            }
+            return ByteBuffer.wrap(out, 0, size);
+        }
+
+        // Expense and income labels share the block's label dictionary.
+        private void labelId(int[] blockIds, ColumnarLedger.Version ledger, int row) {
+            int id = ledger.labelIdAt(row);
+            if (blockIds[id] >= 0) return;
+            String label = ledger.label(id);
+            int existing = labels.indexOf(label);
+            if (existing < 0) {
+                existing = labels.size();
+                labels.add(label);
+            }
+            blockIds[id] = existing;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private void putStrings(List<String> values) {
+            putVarint(values.size());
+            for (String value : values) {
+                putString(value);
+            }
+        }
+
+        private void putString(String value) {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, out, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                out[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[size++] = (byte) value;
+        }
+
+        private void ensure(int needed) {
+            if (size + needed > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + needed));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[0].equals("write") && args.length == 3 || args[0].equals("read"))) {
+            System.out.println("Usage: java LedgerArchive write <base name> <archive>");
+            System.out.println("       java LedgerArchive read <archive> [yyyy-MM]");
+            return;
+        }
+        try {
+            if (args[0].equals("write")) {
+                TransactionManager manager = new TransactionManager(TransactionManager.openStore(args[1]));
+                try {
+                    Path target = Paths.get(args[2]);
+                    write(manager.version(), target, Paths.get(args[2] + ".tmp"));
+                    System.out.println("Wrote " + Files.size(target) + " bytes to " + target);
+                } finally {
+                    manager.close();
+                }
+            } else {
+                LedgerArchive archive = open(Paths.get(args[1]));
+                System.out.println("Ledger version " + archive.ledgerVersion() + ": " + archive.expenseCount()
+                        + " expenses, " + archive.incomeCount() + " income records");
+                if (args.length > 2) {
+                    printMonth(archive, YearMonth.parse(args[2]));
+                } else {
+                    for (YearMonth month : archive.months()) {
+                        System.out.printf("%s %8d expenses %8d income %10d bytes%n", month,
+                                archive.expenseCount(month), archive.incomeCount(month), archive.blockBytes(month));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static void printMonth(LedgerArchive archive, YearMonth month) throws IOException {
+        long[] totals = new long[2];
+        archive.read(month, new TransactionStore.RecordHandler() {
+            @Override
+            public void onExpense(Expense expense) {
+                totals[0] = Math.addExact(totals[0], expense.getAmountMinor());
+            }
+
+            @Override
+            public void onIncome(Income income) {
+                totals[1] = Math.addExact(totals[1], income.getAmountMinor());
+            }
+        });
+        System.out.println(month + ": " + archive.expenseCount(month) + " expenses totalling "
+                + Money.format(totals[0]) + ", " + archive.incomeCount(month) + " income records totalling "
+                + Money.format(totals[1]));
+    }
+}
@@ -0,0 +1,526 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Online, incremental backups of one ledger into a directory, and restores
+// from them:
+//
+//   <dir>/<number>.backup          manifest of backup <number> (1, 2, ...)
+//   <dir>/blocks/<sha-256>.block   one month's rows, encoded as in LedgerArchive
+//
+// A backup reads one immutable TransactionManager.Version and takes no lock,
+// so commits carry on while it runs; it holds what was committed when it
+// started. Blocks are named by their SHA-256, so a month whose rows are the
+// same as in an earlier backup is not written again, and months that no
+// commit has touched since this object's previous backup are not even
+// encoded: a commit listener records the last version to add rows to each
+// month. Every file is written to a temporary name of its own, forced and
+// then renamed (blocks) or hard-linked (manifests) into place, so a crash
+// leaves the earlier backups as they were. A link fails if its name is
+// taken, so when two processes back up into one directory at once, the
+// second manifest takes the next number instead of replacing the first.
+//
+// Manifest:  int magic, short version, short scale, long number,
+//            long createdMillis, long ledgerVersion,
+//            int expenseCount, int incomeCount,
+//            long totalExpenseCents, long totalIncomeCents, int blockCount,
+//            per block: int month (year * 12 + month - 1), int length,
+//                       int expenseCount, int incomeCount, int crc32,
+//                       32 bytes SHA-256
+//            int crc32 of everything before it
+//
+// A restore reads one manifest and the blocks it names, whichever backup it
+// is, checks each block's length, CRC32 and SHA-256 before decoding it, and
+// writes the rows as <base>.snapshot for a ledger that does not exist yet.
+// Restored rows are grouped by month. By hand:
+//
+//   java LedgerBackup backup <base name> <dir>
+//   java LedgerBackup list <dir>
+//   java LedgerBackup restore <dir> <number|latest> <base name>
+public final class LedgerBackup {
+    private static final int MAGIC = 0x4554424B; // "ETBK"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 8 + 4 + 4 + 8 + 8 + 4;
+    private static final int ENTRY_SIZE = 4 + 4 + 4 + 4 + 4 + 32;
+
+    private static final Metrics.Counter BACKUPS = Metrics.counter("expensetracker_backups_total",
+            "Backups taken");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("expensetracker_backup_bytes_written_total",
+            "Block bytes written by backups; blocks already in the backup directory are not counted");
+
+    private final TransactionManager manager;
+    private final Path directory;
+    // Month key -> number of the last version that added rows to it
+    private final Map<Integer, Long> touched = new ConcurrentHashMap<>();
+    // Highest version whose months are in touched
+    private final AtomicLong recorded = new AtomicLong(-1);
+    private Manifest previous;
+
+    // One month's block in a manifest.
+    static final class Entry {
+        final int month;
+        final int length;
+        final int expenseCount;
+        final int incomeCount;
+        final int crc;
+        final byte[] sha256;
+
+        Entry(int month, int length, int expenseCount, int incomeCount, int crc, byte[] sha256) {
+            this.month = month;
+            this.length = length;
+            this.expenseCount = expenseCount;
+            this.incomeCount = incomeCount;
+            this.crc = crc;
+            this.sha256 = sha256;
+        }
+    }
+
+    public static final class Manifest {
+        final long number;
+        final long createdMillis;
+        final long ledgerVersion;
+        final int expenseCount;
+        final int incomeCount;
+        final long totalExpenseCents;
+        final long totalIncomeCents;
+        final List<Entry> entries;
+
+        Manifest(long number, long createdMillis, long ledgerVersion, int expenseCount, int incomeCount,
+                 long totalExpenseCents, long totalIncomeCents, List<Entry> entries) {
+            this.number = number;
+            this.createdMillis = createdMillis;
+            this.ledgerVersion = ledgerVersion;
+            this.expenseCount = expenseCount;
+            this.incomeCount = incomeCount;
+            this.totalExpenseCents = totalExpenseCents;
+            this.totalIncomeCents = totalIncomeCents;
+            this.entries = entries;
+        }
+
+        public long number() {
+            return number;
+        }
+
+        public int rows() {
+            return expenseCount + incomeCount;
+        }
+
+        public long bytes() {
+            long bytes = 0;
+            for (Entry entry : entries) {
+                bytes += entry.length;
+            }
+            return bytes;
+        }
+
+        String toJson() {
+            return String.format("{\"number\":%d,\"created\":%d,\"expenses\":%d,\"incomes\":%d," +
+                    "\"totalExpenses\":%s,\"totalIncome\":%s,\"months\":%d,\"bytes\":%d}",
+                    number, createdMillis, expenseCount, incomeCount, Money.format(totalExpenseCents),
+                    Money.format(totalIncomeCents), entries.size(), bytes());
+        }
+    }
+
+    // What one backup did.
+    public static final class Result {
+        final Manifest manifest;
+        final int encoded;
+        final int written;
+        final long bytesWritten;
+        final long nanos;
+
+        Result(Manifest manifest, int encoded, int written, long bytesWritten, long nanos) {
+            this.manifest = manifest;
+            this.encoded = encoded;
+            this.written = written;
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+        }
+
+        public Manifest manifest() {
+            return manifest;
+        }
+
+        public int encodedMonths() {
+            return encoded;
+        }
+
+        public int writtenBlocks() {
+            return written;
+        }
+
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        public String toJson() {
+            return String.format("{\"backup\":%s,\"encodedMonths\":%d,\"writtenBlocks\":%d,\"bytesWritten\":%d," +
+                    "\"millis\":%.1f}", manifest.toJson(), encoded, written, bytesWritten, nanos / 1e6);
+        }
+    }
+
+    public LedgerBackup(TransactionManager manager, Path directory) {
+        this.manager = manager;
+        this.directory = directory;
+        manager.addCommitListener(this::committed);
+        recorded.accumulateAndGet(manager.version().getNumber(), Math::max);
+    }
+
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("expensetracker.backupDir", "backups"));
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    // Runs under the writer lock; consecutive rows of one month cost one map update.
+    private void committed(List<Expense> expenses, List<Income> incomes, TransactionManager.Version version) {
+        int last = Integer.MIN_VALUE;
+        for (Expense expense : expenses) {
+            last = touch(ColumnarLedger.toEpochDay(expense.getDate()), last, version.getNumber());
+        }
+        for (Income income : incomes) {
+            last = touch(ColumnarLedger.toEpochDay(income.getDate()), last, version.getNumber());
+        }
+        recorded.accumulateAndGet(version.getNumber(), Math::max);
+    }
+
+    private int touch(int epochDay, int last, long number) {
+        int month = LedgerArchive.monthKey(epochDay);
+        if (month != last) touched.merge(month, number, Math::max);
+        return month;
+    }
+
+    // Backs up the ledger's current version as the next numbered backup.
+    public synchronized Result backup() throws IOException {
+        long start = System.nanoTime();
+        TransactionManager.Version version = manager.version();
+        // A version is published before its commit's listeners run; months
+        // must not be taken as clean before ours has seen that commit
+        while (version.getNumber() > recorded.get()) {
+            LockSupport.parkNanos(100_000);
+        }
+        Path blocks = directory.resolve("blocks");
+        Files.createDirectories(blocks);
+
+        // Months whose block from the previous backup still holds every row
+        TreeMap<Integer, Entry> entries = new TreeMap<>();
+        boolean dirty = previous == null;
+        if (previous != null) {
+            for (Entry entry : previous.entries) {
+                entries.put(entry.month, entry);
+            }
+            for (Map.Entry<Integer, Long> month : touched.entrySet()) {
+                if (month.getValue() > previous.ledgerVersion) {
+                    entries.remove(month.getKey());
+                    dirty = true;
+                }
+            }
+        }
+
+        int encoded = 0;
+        int written = 0;
+        long bytesWritten = 0;
+        if (dirty) {
+            LedgerArchive.BlockWriter writer = new LedgerArchive.BlockWriter(version);
+            MessageDigest digest = sha256();
+            for (int month = writer.firstMonth(); month <= writer.lastMonth(); month++) {
+                int expenseRows = writer.expenseCount(month);
+                int incomeRows = writer.incomeCount(month);
+                if ((expenseRows == 0 && incomeRows == 0) || entries.containsKey(month)) continue;
+                ByteBuffer block = writer.encode(month);
+                encoded++;
+                CRC32 crc = new CRC32();
+                crc.update(block.duplicate());
+                digest.update(block.duplicate());
+                byte[] sha = digest.digest();
+                int length = block.remaining();
+                Path file = blockPath(directory, sha);
+                if (!Files.exists(file) || Files.size(file) != length) {
+                    writeAtomically(file, block);
+                    written++;
+                    bytesWritten += length;
+                }
+                entries.put(month, new Entry(month, length, expenseRows, incomeRows, (int) crc.getValue(), sha));
+            }
+        }
+
+        Manifest manifest = new Manifest(latestNumber(directory) + 1, System.currentTimeMillis(),
+                version.getNumber(), version.expenses().size(), version.incomes().size(),
+                version.getTotalExpenseCents(), version.getTotalIncomeCents(), new ArrayList<>(entries.values()));
+        manifest = writeManifest(manifest);
+        previous = manifest;
+        BACKUPS.increment();
+        BYTES_WRITTEN.add(bytesWritten);
+        return new Result(manifest, encoded, written, bytesWritten, System.nanoTime() - start);
+    }
+
+    // Publishes the manifest under the first free number from its own and
+    // returns it as written.
+    private Manifest writeManifest(Manifest manifest) throws IOException {
+        while (true) {
+            Path temp = Files.createTempFile(directory, "manifest-", ".tmp");
+            try {
+                write(temp, encode(manifest));
+                Files.createLink(manifestPath(directory, manifest.number), temp);
+                return manifest;
+            } catch (FileAlreadyExistsException e) {
+                manifest = new Manifest(Math.max(manifest.number, latestNumber(directory)) + 1,
+                        manifest.createdMillis, manifest.ledgerVersion, manifest.expenseCount,
+                        manifest.incomeCount, manifest.totalExpenseCents, manifest.totalIncomeCents,
+                        manifest.entries);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Manifest manifest) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + manifest.entries.size() * ENTRY_SIZE + 4);
+        out.putInt(MAGIC).putShort(VERSION).putShort((short) Money.SCALE).putLong(manifest.number)
+                .putLong(manifest.createdMillis).putLong(manifest.ledgerVersion)
+                .putInt(manifest.expenseCount).putInt(manifest.incomeCount)
+                .putLong(manifest.totalExpenseCents).putLong(manifest.totalIncomeCents)
+                .putInt(manifest.entries.size());
+        for (Entry entry : manifest.entries) {
+            out.putInt(entry.month).putInt(entry.length).putInt(entry.expenseCount).putInt(entry.incomeCount)
+                    .putInt(entry.crc).put(entry.sha256);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int) crc.getValue());
+        return out.flip();
+    }
+
+    // Blocks are named by their content, so replacing one that another
+    // writer has just put in place changes nothing.
+    private static void writeAtomically(Path target, ByteBuffer bytes) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void write(Path path, ByteBuffer bytes) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(true);
+        }
+    }
+
+    static Manifest readManifest(Path path) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 crc = new CRC32();
+        if (in.limit() < HEADER_SIZE + 4 || in.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a backup manifest");
+        }
+        crc.update(in.array(), 0, in.limit() - 4);
+        if (in.getInt(in.limit() - 4) != (int) crc.getValue()) {
+            throw new IOException(path + " is damaged");
+        }
+        short version = in.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported backup version " + version + " in " + path);
+        }
+        int scale = in.getShort(6);
+        if (scale != Money.SCALE) {
+            throw new IOException(path + " stores amounts with " + scale + " fraction digits but "
+                    + Money.CURRENCY + " has " + Money.SCALE);
+        }
+        in.position(8);
+        long number = in.getLong();
+        long created = in.getLong();
+        long ledgerVersion = in.getLong();
+        int expenseCount = in.getInt();
+        int incomeCount = in.getInt();
+        long totalExpenses = in.getLong();
+        long totalIncome = in.getLong();
+        int blockCount = in.getInt();
+        if (blockCount < 0 || in.limit() != HEADER_SIZE + (long) blockCount * ENTRY_SIZE + 4) {
+            throw new IOException(path + " is damaged");
+        }
+        List<Entry> entries = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            int month = in.getInt();
+            int length = in.getInt();
+            int expenses = in.getInt();
+            int incomes = in.getInt();
+            int blockCrc = in.getInt();
+            byte[] sha = new byte[32];
+            in.get(sha);
+            entries.add(new Entry(month, length, expenses, incomes, blockCrc, sha));
+        }
+        return new Manifest(number, created, ledgerVersion, expenseCount, incomeCount,
+                totalExpenses, totalIncome, entries);
+    }
+
+    // Every backup in the directory, oldest first.
+    public static List<Manifest> list(Path directory) throws IOException {
+        List<Manifest> manifests = new ArrayList<>();
+        for (long number : numbers(directory)) {
+            manifests.add(readManifest(manifestPath(directory, number)));
+        }
+        return manifests;
+    }
+
+    public static String listJson(Path directory) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (Manifest manifest : list(directory)) {
+            if (json.length() > 1) json.append(',');
+            json.append(manifest.toJson());
+        }
+        return json.append(']').toString();
+    }
+
+    private static long[] numbers(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return new long[0];
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.backup")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - ".backup".length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        long[] sorted = numbers.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    static long latestNumber(Path directory) throws IOException {
+        long[] numbers = numbers(directory);
+        return numbers.length == 0 ? 0 : numbers[numbers.length - 1];
+    }
+
+    private static Path manifestPath(Path directory, long number) {
+        return directory.resolve(String.format("%06d.backup", number));
+    }
+
+    private static Path blockPath(Path directory, byte[] sha256) {
+        StringBuilder name = new StringBuilder(64 + 6);
+        for (byte b : sha256) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve("blocks").resolve(name.append(".block").toString());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Writes backup <number> as the snapshot of a new ledger under baseName,
+    // after checking every block it reads and the totals they add up to.
+    public static Manifest restore(Path directory, long number, String baseName) throws IOException {
+        if (LegacyDataMigrator.storeExists(baseName)) {
+            throw new IOException("A ledger already exists for " + baseName);
+        }
+        Path manifestPath = manifestPath(directory, number);
+        if (!Files.exists(manifestPath)) {
+            throw new IOException("No backup " + number + " in " + directory);
+        }
+        Manifest manifest = readManifest(manifestPath);
+        LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(null);
+        long[] totals = new long[2];
+        TransactionStore.RecordHandler handler = new TransactionStore.RecordHandler() {
+            @Override
+            public void onExpense(Expense expense) {
+                totals[0] = Math.addExact(totals[0], expense.getAmountMinor());
+                writer.onExpense(expense);
+            }
+
+            @Override
+            public void onIncome(Income income) {
+                totals[1] = Math.addExact(totals[1], income.getAmountMinor());
+                writer.onIncome(income);
+            }
+        };
+        MessageDigest digest = sha256();
+        for (Entry entry : manifest.entries) {
+            String where = "Block for " + LedgerArchive.toYearMonth(entry.month) + " of backup " + number;
+            Path file = blockPath(directory, entry.sha256);
+            if (!Files.exists(file)) throw new IOException(where + " is missing: " + file);
+            byte[] bytes = Files.readAllBytes(file);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (bytes.length != entry.length || (int) crc.getValue() != entry.crc
+                    || !MessageDigest.isEqual(digest.digest(bytes), entry.sha256)) {
+                throw new IOException(where + " is damaged: " + file);
+            }
+            LedgerArchive.decodeBlock(ByteBuffer.wrap(bytes), entry.month, entry.expenseCount, entry.incomeCount,
+                    handler, where);
+        }
+        if (writer.size() != manifest.rows() || totals[0] != manifest.totalExpenseCents
+                || totals[1] != manifest.totalIncomeCents) {
+            throw new IOException("Backup " + number + " does not add up to the totals in its manifest");
+        }
+        Path parent = Paths.get(baseName).toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        writer.write(Paths.get(baseName + ".snapshot"), Paths.get(baseName + ".snapshot.tmp"), 0);
+        return manifest;
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && args[0].equals("backup")) {
+                TransactionManager manager = new TransactionManager(TransactionManager.openStore(args[1]));
+                try {
+                    Result result = new LedgerBackup(manager, Paths.get(args[2])).backup();
+                    System.out.println("Backup " + result.manifest.number + ": " + result.manifest.rows()
+                            + " rows in " + result.manifest.entries.size() + " months, " + result.written
+                            + " new blocks (" + result.bytesWritten + " bytes)");
+                } finally {
+                    manager.close();
+                }
+            } else if (args.length == 2 && args[0].equals("list")) {
+                for (Manifest manifest : list(Paths.get(args[1]))) {
+                    System.out.printf("%6d  %tF %<tT  %10d rows  %5d months  %12d bytes%n", manifest.number,
+                            manifest.createdMillis, manifest.rows(), manifest.entries.size(), manifest.bytes());
+                }
+            } else if (args.length == 4 && args[0].equals("restore")) {
+                Path directory = Paths.get(args[1]);
+                long number = args[2].equals("latest") ? latestNumber(directory) : Long.parseLong(args[2]);
+                Manifest manifest = restore(directory, number, args[3]);
+                System.out.println("Restored backup " + manifest.number + " (" + manifest.rows() + " rows) to "
+                        + args[3] + ".snapshot");
+            } else {
+                System.out.println("Usage: java LedgerBackup backup <base name> <dir>");
+                System.out.println("       java LedgerBackup list <dir>");
+                System.out.println("       java LedgerBackup restore <dir> <number|latest> <base name>");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+}
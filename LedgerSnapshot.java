@@ -0,0 +1,395 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Fixed-width ledger image opened with FileChannel.map. Opening reads the
+// header, the label dictionaries and the per-day totals; rows are read from
+// the mapping only when they are used, so opening does not depend on the
+// number of rows.
+//
+// Header (72 bytes):  int magic, short version, short scale, long generation,
+//                     int expenseCount, int incomeCount,
+//                     long totalExpenseCents, long totalIncomeCents,
+//                     long expenseTextBytes,
+//                     int categoryCount, int sourceCount, int dayCount,
+//                     long magnitudeCents (sum of |cents| over all rows),
+//                     int crc32 of the preceding 68 bytes
+// Expense rows:       long cents, int epochDay, int categoryId, int textEnd
+// Income rows:        long cents, int epochDay, int sourceId
+// Expense text:       descriptions as UTF-8, back to back
+// Categories, sources: short length, UTF-8 bytes
+// Days:               int dayKey (see MonthlyAggregates), long expenseCents, long incomeCents
+//
+// Amounts are in cents with the scale (fraction digits) of Money's currency;
+// a snapshot does not open under another scale. Version 3 files have a
+// 64-byte header without magnitudeCents, which is then summed from the rows
+// the first time it is asked for. Version 2 files, which also stored the
+// totals as doubles and cents at scale 2, are still read.
+//
+// Epoch days are in the default time zone of the process that wrote the file.
+// The file is written to a temporary name, forced and renamed into place, so
+// only the header carries a checksum.
+public final class LedgerSnapshot {
+    private static final int MAGIC = 0x4554534E; // "ETSN"
+    private static final short VERSION = 4;
+    private static final short NO_MAGNITUDE_VERSION = 3;
+    private static final short DOUBLE_TOTALS_VERSION = 2;
+    static final int HEADER_SIZE = 72;
+    private static final int NO_MAGNITUDE_HEADER_SIZE = 64;
+    static final int EXPENSE_ROW_SIZE = 8 + 4 + 4 + 4;
+    static final int INCOME_ROW_SIZE = 8 + 4 + 4;
+    private static final int DAY_SIZE = 4 + 8 + 8;
+
+    private final long generation;
+    private final int expenseCount;
+    private final int incomeCount;
+    private final long totalExpenses;
+    private final long totalIncome;
+    private final boolean doubleTotals;
+    // -1 until summed for a file without it in the header
+    private long magnitude;
+    private final ByteBuffer expenseRows;
+    private final ByteBuffer incomeRows;
+    private final ByteBuffer expenseText;
+    private final List<String> categories;
+    private final List<String> sources;
+    private final ByteBuffer days;
+    private final int dayCount;
+
+    private LedgerSnapshot(Path path, FileChannel channel) throws IOException {
+        ByteBuffer header = readHeader(channel, NO_MAGNITUDE_HEADER_SIZE, path);
+        short version = header.getShort(4);
+        if (header.getInt(0) == MAGIC && version == VERSION) {
+            header = readHeader(channel, HEADER_SIZE, path);
+        }
+        int headerSize = header.limit();
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, headerSize - 4);
+        if (header.getInt(0) != MAGIC || header.getInt(headerSize - 4) != (int) crc.getValue()) {
+            throw new IOException(path + " is not a ledger snapshot");
+        }
+        if (version != VERSION && version != NO_MAGNITUDE_VERSION && version != DOUBLE_TOTALS_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + path);
+        }
+        doubleTotals = version == DOUBLE_TOTALS_VERSION;
+        int scale = doubleTotals ? 2 : header.getShort(6);
+        if (scale != Money.SCALE) {
+            throw new IOException(path + " stores amounts with " + scale + " fraction digits but "
+                    + Money.CURRENCY + " has " + Money.SCALE);
+        }
+        header.position(8);
+        generation = header.getLong();
+        expenseCount = header.getInt();
+        incomeCount = header.getInt();
+        totalExpenses = doubleTotals ? Money.toMinor(header.getDouble()) : header.getLong();
+        totalIncome = doubleTotals ? Money.toMinor(header.getDouble()) : header.getLong();
+        long textBytes = header.getLong();
+        int categoryCount = header.getInt();
+        int sourceCount = header.getInt();
+        dayCount = header.getInt();
+        magnitude = version == VERSION ? header.getLong() : -1;
+
+        long position = headerSize;
+        expenseRows = map(channel, position, (long) expenseCount * EXPENSE_ROW_SIZE, path);
+        position += (long) expenseCount * EXPENSE_ROW_SIZE;
+        incomeRows = map(channel, position, (long) incomeCount * INCOME_ROW_SIZE, path);
+        position += (long) incomeCount * INCOME_ROW_SIZE;
+        expenseText = map(channel, position, textBytes, path);
+        position += textBytes;
+
+        // Dictionaries and day totals grow with distinct values, not with rows
+        ByteBuffer tail = map(channel, position, channel.size() - position, path);
+        categories = readLabels(tail, categoryCount);
+        sources = readLabels(tail, sourceCount);
+        if (tail.remaining() != (long) dayCount * DAY_SIZE) {
+            throw new IOException(path + " is truncated");
+        }
+        days = tail.slice();
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, int size, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(size);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException(path + " is truncated");
+            }
+        }
+        return header.flip();
+    }
+
+    public static LedgerSnapshot open(Path path) throws IOException {
+        // The mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LedgerSnapshot(path, channel);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length, Path path) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(path + " has a section larger than 2 GB");
+        }
+        if (position + length > channel.size()) {
+            throw new IOException(path + " is truncated");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    private static List<String> readLabels(ByteBuffer buffer, int count) throws IOException {
+        List<String> labels = new ArrayList<>(count);
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 2) throw new IOException("Truncated snapshot dictionary");
+            int length = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < length) throw new IOException("Truncated snapshot dictionary");
+            if (bytes.length < length) bytes = new byte[length];
+            buffer.get(bytes, 0, length);
+            labels.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return labels;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public int expenseCount() {
+        return expenseCount;
+    }
+
+    public int incomeCount() {
+        return incomeCount;
+    }
+
+    public long totalExpenseCents() {
+        return totalExpenses;
+    }
+
+    public long totalIncomeCents() {
+        return totalIncome;
+    }
+
+    // Sum of |cents| over every row, which bounds every total the rows feed.
+    public long magnitudeCents() {
+        if (magnitude < 0) {
+            magnitude = Math.addExact(magnitude(expenseRows, EXPENSE_ROW_SIZE, expenseCount),
+                    magnitude(incomeRows, INCOME_ROW_SIZE, incomeCount));
+        }
+        return magnitude;
+    }
+
+    // Rows whose amount is the first column
+    private static long magnitude(ByteBuffer rows, int rowSize, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum = Math.addExact(sum, Math.abs(rows.getLong(i * rowSize)));
+        }
+        return sum;
+    }
+
+    // Read-only views; callers use absolute gets at row * row size.
+    ByteBuffer expenseRows() {
+        return expenseRows.asReadOnlyBuffer();
+    }
+
+    ByteBuffer incomeRows() {
+        return incomeRows.asReadOnlyBuffer();
+    }
+
+    ByteBuffer expenseText() {
+        return expenseText.asReadOnlyBuffer();
+    }
+
+    List<String> categories() {
+        return Collections.unmodifiableList(categories);
+    }
+
+    List<String> sources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    public void addDayTotalsTo(MonthlyAggregates aggregates) {
+        for (int i = 0; i < dayCount; i++) {
+            int offset = i * DAY_SIZE;
+            if (doubleTotals) {
+                aggregates.addDayTotals(days.getInt(offset), Money.toMinor(days.getDouble(offset + 4)),
+                        Money.toMinor(days.getDouble(offset + 12)));
+            } else {
+                aggregates.addDayTotals(days.getInt(offset), days.getLong(offset + 4), days.getLong(offset + 12));
+            }
+        }
+    }
+
+    // Materializes every row; used by stores that cannot use the mapping.
+    public void replay(TransactionStore.RecordHandler handler) {
+        byte[] text = new byte[64];
+        for (int i = 0; i < expenseCount; i++) {
+            int offset = i * EXPENSE_ROW_SIZE;
+            int start = i == 0 ? 0 : expenseRows.getInt(offset - 4);
+            int length = expenseRows.getInt(offset + 16) - start;
+            if (text.length < length) text = new byte[length];
+            expenseText.get(start, text, 0, length);
+            handler.onExpense(Expense.ofMinor(new String(text, 0, length, StandardCharsets.UTF_8),
+                    expenseRows.getLong(offset),
+                    ColumnarLedger.toDate(expenseRows.getInt(offset + 8)),
+                    categories.get(expenseRows.getInt(offset + 12))));
+        }
+        for (int i = 0; i < incomeCount; i++) {
+            int offset = i * INCOME_ROW_SIZE;
+            handler.onIncome(Income.ofMinor(sources.get(incomeRows.getInt(offset + 12)),
+                    incomeRows.getLong(offset),
+                    ColumnarLedger.toDate(incomeRows.getInt(offset + 8))));
+        }
+    }
+
+    static boolean isSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // Builds a new snapshot from an optional base snapshot plus added records.
+    // The base sections are copied as they are; only the added rows are
+    // encoded, and label ids of the base stay unchanged.
+    public static class Writer implements TransactionStore.RecordHandler {
+        private final LedgerSnapshot base;
+        private final StringDictionary categories = new StringDictionary();
+        private final StringDictionary sources = new StringDictionary();
+        private final MonthlyAggregates aggregates = new MonthlyAggregates();
+        private ByteBuffer expenseRows = ByteBuffer.allocate(64 * EXPENSE_ROW_SIZE);
+        private ByteBuffer incomeRows = ByteBuffer.allocate(64 * INCOME_ROW_SIZE);
+        private ByteBuffer expenseText = ByteBuffer.allocate(1024);
+        private int expenseCount;
+        private int incomeCount;
+        private long totalExpenses;
+        private long totalIncome;
+        private long magnitude;
+
+        public Writer(LedgerSnapshot base) {
+            this.base = base;
+            if (base != null) {
+                for (String category : base.categories) categories.idOf(category);
+                for (String source : base.sources) sources.idOf(source);
+                base.addDayTotalsTo(aggregates);
+                expenseCount = base.expenseCount;
+                incomeCount = base.incomeCount;
+                totalExpenses = base.totalExpenses;
+                totalIncome = base.totalIncome;
+                magnitude = base.magnitudeCents();
+            }
+        }
+
+        @Override
+        public void onExpense(Expense expense) {
+            byte[] text = bytes(expense.getDescription());
+            expenseText = ensure(expenseText, text.length);
+            expenseText.put(text);
+            long baseText = base == null ? 0 : base.expenseText.capacity();
+            expenseRows = ensure(expenseRows, EXPENSE_ROW_SIZE);
+            expenseRows.putLong(expense.getAmountMinor())
+                    .putInt(ColumnarLedger.toEpochDay(expense.getDate()))
+                    .putInt(categories.idOf(label(expense.getCategory())))
+                    .putInt(Math.toIntExact(baseText + expenseText.position()));
+            expenseCount++;
+            totalExpenses = Math.addExact(totalExpenses, expense.getAmountMinor());
+            magnitude = Math.addExact(magnitude, Math.abs(expense.getAmountMinor()));
+            aggregates.addExpense(expense.getDate(), expense.getAmountMinor());
+        }
+
+        @Override
+        public void onIncome(Income income) {
+            incomeRows = ensure(incomeRows, INCOME_ROW_SIZE);
+            incomeRows.putLong(income.getAmountMinor())
+                    .putInt(ColumnarLedger.toEpochDay(income.getDate()))
+                    .putInt(sources.idOf(label(income.getSource())));
+            incomeCount++;
+            totalIncome = Math.addExact(totalIncome, income.getAmountMinor());
+            magnitude = Math.addExact(magnitude, Math.abs(income.getAmountMinor()));
+            aggregates.addIncome(income.getDate(), income.getAmountMinor());
+        }
+
+        public int size() {
+            return expenseCount + incomeCount;
+        }
+
+        // Writes the snapshot to the temporary path, forces it and renames it
+        // over the target.
+        public void write(Path target, Path temp, long generation) throws IOException {
+            ByteBuffer labels = ByteBuffer.allocate(256);
+            labels = putLabels(labels, categories);
+            labels = putLabels(labels, sources);
+            ByteBuffer dayTable = ByteBuffer.allocate(aggregates.dayCount() * DAY_SIZE);
+            aggregates.forEachDay((key, expenses, income) -> dayTable.putInt(key).putLong(expenses).putLong(income));
+
+            long textBytes = (base == null ? 0 : base.expenseText.capacity()) + expenseText.position();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) Money.SCALE).putLong(generation)
+                    .putInt(expenseCount).putInt(incomeCount)
+                    .putLong(totalExpenses).putLong(totalIncome)
+                    .putLong(textBytes)
+                    .putInt(categories.size()).putInt(sources.size()).putInt(aggregates.dayCount())
+                    .putLong(magnitude);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            header.putInt((int) crc.getValue());
+
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(out, header.flip());
+                if (base != null) writeFully(out, base.expenseRows());
+                writeFully(out, expenseRows.flip());
+                if (base != null) writeFully(out, base.incomeRows());
+                writeFully(out, incomeRows.flip());
+                if (base != null) writeFully(out, base.expenseText());
+                writeFully(out, expenseText.flip());
+                writeFully(out, labels.flip());
+                writeFully(out, dayTable.flip());
+                out.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static ByteBuffer putLabels(ByteBuffer buffer, StringDictionary dictionary) {
+            for (int id = 0; id < dictionary.size(); id++) {
+                byte[] bytes = dictionary.bytesOf(id);
+                buffer = ensure(buffer, 2 + bytes.length);
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+            return buffer;
+        }
+
+        private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        private static ByteBuffer ensure(ByteBuffer buffer, int needed) {
+            if (buffer.remaining() >= needed) return buffer;
+            long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + needed);
+            ByteBuffer grown = ByteBuffer.allocate(Math.toIntExact(Math.min(capacity, Integer.MAX_VALUE - 8)));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+
+        private static String label(String value) {
+            return value == null ? "" : value;
+        }
+
+        private static byte[] bytes(String value) {
+            return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
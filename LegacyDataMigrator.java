@@ -0,0 +1,80 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.WriteAbortedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+// One-shot conversion of the transactions.dat file written by earlier
+// versions (a List<Expense> and a List<Income> through ObjectOutputStream)
+// into a mapped snapshot. Runs on the first start that finds no transaction
+// log, or by hand:
+//
+//   java LegacyDataMigrator [legacy file] [base name]
+//
+// The legacy file is left in place. Deserialization is limited to JDK
+// classes and the two record classes.
+public final class LegacyDataMigrator {
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;java.lang.*;java.io.*;java.util.*;Expense;Income;!*");
+
+    private LegacyDataMigrator() {
+    }
+
+    public static void main(String[] args) {
+        String legacyFile = args.length > 0 ? args[0] : "transactions.dat";
+        String baseName = args.length > 1 ? args[1] : "transactions";
+        try {
+            if (!Files.exists(Paths.get(legacyFile))) {
+                System.out.println(legacyFile + " not found.");
+            } else if (storeExists(baseName)) {
+                System.out.println("A transaction log for " + baseName + " already exists; nothing migrated.");
+            } else {
+                migrate(Paths.get(legacyFile), baseName);
+            }
+        } catch (IOException e) {
+            System.out.println("Error migrating transactions: " + e.getMessage());
+        }
+    }
+
+    static boolean migrateIfNeeded(String legacyFile, String baseName) throws IOException {
+        Path legacy = Paths.get(legacyFile);
+        if (!Files.exists(legacy) || storeExists(baseName)) {
+            return false;
+        }
+        migrate(legacy, baseName);
+        return true;
+    }
+
+    static boolean storeExists(String baseName) {
+        return Files.exists(Paths.get(baseName + ".log"))
+                || Files.exists(Paths.get(baseName + ".segment"))
+                || Files.exists(Paths.get(baseName + ".snapshot"));
+    }
+
+    private static void migrate(Path legacy, String baseName) throws IOException {
+        LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(null);
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(legacy)))) {
+            in.setObjectInputFilter(FILTER);
+            for (Object expense : (List<?>) in.readObject()) {
+                writer.onExpense((Expense) expense);
+            }
+            for (Object income : (List<?>) in.readObject()) {
+                writer.onIncome((Income) income);
+            }
+        } catch (WriteAbortedException e) {
+            // Earlier versions left the serialization error in the file when a
+            // save failed; such a file holds no transactions
+            System.out.println(legacy + " holds an aborted save (" + e.getCause() + "); nothing to migrate.");
+            return;
+        } catch (InvalidClassException | ClassNotFoundException | ClassCastException e) {
+            throw new IOException(legacy + " is not a transaction file: " + e.getMessage());
+        }
+        writer.write(Paths.get(baseName + ".snapshot"), Paths.get(baseName + ".snapshot.tmp"), 0);
+        System.out.println("Migrated " + writer.size() + " transactions from " + legacy + ".");
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+// Drives many concurrent keep-alive clients against ExpenseTrackerServer in
+// each execution mode and reports throughput and tail latency.
+//
+//   java LoadTest [clients] [modes ...]     (default 10000 platform virtual structured)
+//
+// Each mode gets a fresh server in a child JVM, working in a temporary
+// directory on port loadtest.port (default 18080), with 16 accounts seeded
+// with loadtest.seedRows transactions each (default 1000). The clients are
+// simulated on one selector thread, so 10k of them cost 10k sockets rather
+// than 10k threads. Each sends a request, waits for the whole response,
+// thinks for up to twice loadtest.thinkMillis (default 100) and repeats:
+// 90% GET /api/summary/period, 5% GET /api/report and 5% POST of one
+// expense, spread over the accounts. Latency runs from the first byte sent
+// to the last byte received; only responses during the loadtest.seconds
+// (default 20) after loadtest.warmupSeconds (default 5) count.
+// loadtest.serverArgs adds JVM options for the server, such as
+// "-Dexpensetracker.maxInFlight=512".
+public class LoadTest {
+    private static final int ACCOUNTS = 16;
+    private static final String HOST = "127.0.0.1";
+
+    private static final int PORT = Integer.getInteger("loadtest.port", 18080);
+    private static final long THINK_MILLIS = Long.getLong("loadtest.thinkMillis", 100);
+    private static final long WARMUP_SECONDS = Long.getLong("loadtest.warmupSeconds", 5);
+    private static final long SECONDS = Long.getLong("loadtest.seconds", 20);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        List<String> modes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            modes.add(args[i]);
+        }
+        if (modes.isEmpty()) {
+            modes = List.of("platform", "virtual", "structured");
+        }
+        System.out.printf("%-11s %8s %10s %9s %9s %9s %9s %8s %8s %8s%n", "mode", "clients", "req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "503s", "errors", "resets");
+        for (String mode : modes) {
+            run(mode, clients);
+        }
+    }
+
+    private static void run(String mode, int clients) throws Exception {
+        Path directory = Files.createTempDirectory("load-test");
+        Process server = startServer(mode, directory);
+        try {
+            awaitServer(server, directory);
+            for (int account = 0; account < ACCOUNTS; account++) {
+                seed(account, Integer.getInteger("loadtest.seedRows", 1000));
+            }
+            Result result = new Driver(clients).run();
+            System.out.printf("%-11s %8d %10.0f %9.2f %9.2f %9.2f %9.2f %8d %8d %8d%n", mode, clients,
+                    result.latencyMicros.count() / (double) SECONDS,
+                    result.latencyMicros.quantile(0.5) / 1000.0, result.latencyMicros.quantile(0.99) / 1000.0,
+                    result.latencyMicros.quantile(0.999) / 1000.0, result.maxMicros / 1000.0,
+                    result.unavailable, result.errors, result.resets);
+        } finally {
+            server.destroy();
+            server.waitFor();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static Process startServer(String mode, Path directory) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(new File(System.getProperty("java.class.path")).getAbsolutePath());
+        String serverArgs = System.getProperty("loadtest.serverArgs", "").trim();
+        if (!serverArgs.isEmpty()) {
+            command.addAll(List.of(serverArgs.split("\\s+")));
+        }
+        command.add("-Dexpensetracker.execution=" + mode);
+        command.add("-Dexpensetracker.port=" + PORT);
+        command.add("ExpenseTrackerServer");
+        return new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.out").toFile())
+                .start();
+    }
+
+    private static void awaitServer(Process server, Path directory) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!server.isAlive()) break;
+            try {
+                new Socket(HOST, PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start: " + Files.readString(directory.resolve("server.out")));
+    }
+
+    private static void seed(int account, int rows) throws IOException {
+        SplittableRandom random = new SplittableRandom(account);
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) body.append(',');
+            body.append(expenseJson(random));
+        }
+        byte[] request = post(account, body.append(']').toString());
+        try (Socket socket = new Socket(HOST, PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] status = in.readNBytes(12);
+            if (!new String(status, StandardCharsets.US_ASCII).endsWith("200")) {
+                throw new IOException("Seeding failed: " + new String(status, StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    private static String expenseJson(SplittableRandom random) {
+        return String.format("{\"type\":\"expense\",\"description\":\"Load %d\",\"amount\":\"%d.%02d\","
+                + "\"date\":\"2024-%02d-%02d\",\"category\":\"Category %d\"}", random.nextInt(1000),
+                random.nextInt(500), random.nextInt(100), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(20));
+    }
+
+    private static byte[] get(int account, String target) {
+        return ("GET " + target + " HTTP/1.1\r\nHost: " + HOST + "\r\nX-Account-Id: load-" + account + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] post(int account, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("POST /api/transactions HTTP/1.1\r\nHost: " + HOST + "\r\nX-Account-Id: load-" + account
+                + "\r\nContent-Type: application/json\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[head.length + bytes.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(bytes, 0, request, head.length, bytes.length);
+        return request;
+    }
+
+    private static final class Result {
+        final QuantileSketch latencyMicros = new QuantileSketch();
+        long maxMicros;
+        long unavailable;
+        long errors;
+        long resets;
+    }
+
+    private static final class Client {
+        final int account;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        long sentAt;
+        long nextAt;
+
+        Client(int account) {
+            this.account = account;
+        }
+    }
+
+    // The simulated clients, all on the calling thread.
+    private static final class Driver {
+        private final Client[] clients;
+        private final Selector selector;
+        private final SplittableRandom random = new SplittableRandom(42);
+        // Clients thinking, soonest first
+        private final PriorityQueue<Client> waiting = new PriorityQueue<>(Comparator.comparingLong(c -> c.nextAt));
+        private final byte[][] summaries = new byte[ACCOUNTS][];
+        private final byte[][] reports = new byte[ACCOUNTS][];
+        private final Result result = new Result();
+        private long measureFrom;
+        private long measureTo;
+
+        Driver(int count) throws IOException {
+            clients = new Client[count];
+            selector = Selector.open();
+            for (int account = 0; account < ACCOUNTS; account++) {
+                summaries[account] = get(account, "/api/summary/period?period=month&date=2024-06-15");
+                reports[account] = get(account, "/api/report?from=2024-01-01&to=2025-01-01&groupBy=quarter");
+            }
+            for (int i = 0; i < count; i++) {
+                clients[i] = new Client(i % ACCOUNTS);
+            }
+        }
+
+        Result run() throws IOException {
+            long start = System.nanoTime();
+            measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+            measureTo = measureFrom + SECONDS * 1_000_000_000L;
+            // Start times spread over the first think period, so the clients
+            // do not all arrive at once
+            for (Client client : clients) {
+                client.nextAt = start + (long) (random.nextDouble() * Math.max(THINK_MILLIS, 1) * 1_000_000);
+                waiting.add(client);
+            }
+            try {
+                while (System.nanoTime() < measureTo) {
+                    long now = System.nanoTime();
+                    while (!waiting.isEmpty() && waiting.peek().nextAt <= now) {
+                        send(waiting.poll());
+                    }
+                    long waitNanos = waiting.isEmpty() ? 10_000_000 : waiting.peek().nextAt - now;
+                    if (waitNanos > 0) {
+                        selector.select(Math.max(1, waitNanos / 1_000_000));
+                    } else {
+                        selector.selectNow();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isConnectable() && client.channel.finishConnect()) {
+                                key.interestOps(SelectionKey.OP_WRITE);
+                            }
+                            if (key.isValid() && key.isWritable()) write(client);
+                            if (key.isValid() && key.isReadable()) read(client);
+                        } catch (IOException e) {
+                            reset(client);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } finally {
+                for (Client client : clients) {
+                    if (client.channel != null) client.channel.close();
+                }
+                selector.close();
+            }
+            return result;
+        }
+
+        private void send(Client client) {
+            double choice = random.nextDouble();
+            client.out = ByteBuffer.wrap(choice < 0.05 ? post(client.account, expenseJson(random))
+                    : choice < 0.10 ? reports[client.account] : summaries[client.account]);
+            client.sentAt = System.nanoTime();
+            try {
+                if (client.channel == null) {
+                    client.channel = SocketChannel.open();
+                    client.channel.configureBlocking(false);
+                    client.channel.socket().setTcpNoDelay(true);
+                    boolean connected = client.channel.connect(new InetSocketAddress(HOST, PORT));
+                    client.key = client.channel.register(selector,
+                            connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, client);
+                } else {
+                    write(client);
+                }
+            } catch (IOException e) {
+                reset(client);
+            }
+        }
+
+        private void write(Client client) throws IOException {
+            client.channel.write(client.out);
+            client.key.interestOps(client.out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read(Client client) throws IOException {
+            if (!client.in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(client.in.capacity() * 2);
+                client.in.flip();
+                client.in = larger.put(client.in);
+            }
+            if (client.channel.read(client.in) < 0) throw new IOException("Connection closed");
+            int status = complete(client.in);
+            if (status < 0) return;
+            client.in.clear();
+            long now = System.nanoTime();
+            if (client.sentAt >= measureFrom && now < measureTo) {
+                long micros = Math.max(1, (now - client.sentAt) / 1000);
+                result.latencyMicros.add(micros);
+                result.maxMicros = Math.max(result.maxMicros, micros);
+                if (status == 503) {
+                    result.unavailable++;
+                } else if (status >= 400) {
+                    result.errors++;
+                }
+            }
+            think(client, now);
+        }
+
+        // The response's status once all of it has arrived, else -1. The
+        // responses used here all carry Content-Length.
+        private int complete(ByteBuffer in) throws IOException {
+            byte[] bytes = in.array();
+            int length = in.position();
+            int headEnd = -1;
+            for (int i = 3; i < length; i++) {
+                if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                    headEnd = i + 1;
+                    break;
+                }
+            }
+            if (headEnd < 0) return -1;
+            String head = new String(bytes, 0, headEnd, StandardCharsets.US_ASCII);
+            int index = head.toLowerCase().indexOf("content-length:");
+            if (index < 0) throw new IOException("Response without Content-Length");
+            int end = head.indexOf('\r', index);
+            int bodyLength = Integer.parseInt(head.substring(index + "content-length:".length(), end).trim());
+            if (length < headEnd + bodyLength) return -1;
+            return Integer.parseInt(head.substring(9, 12));
+        }
+
+        private void think(Client client, long now) {
+            client.nextAt = now + (long) (random.nextDouble() * 2 * THINK_MILLIS * 1_000_000);
+            waiting.add(client);
+        }
+
+        // A failed connection is counted and reopened by the next request.
+        private void reset(Client client) {
+            if (System.nanoTime() >= measureFrom) result.resets++;
+            try {
+                client.channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            client.channel = null;
+            client.in.clear();
+            think(client, System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Process-wide metrics, exported in the Prometheus text format by
+// GET /metrics. Counters are LongAdders, striped per thread under
+// contention. Histograms record nanoseconds into log-linear buckets (16 per
+// power of two, so at most 6.25% apart), one array slot per bucket, updated
+// lock-free. Recording never allocates; label text is built once at
+// registration. Gauges and counters owned by other classes are read through
+// suppliers when scraped.
+//
+// Labels are passed as name, value pairs.
+public final class Metrics {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    // Exported bucket bounds in seconds
+    private static final double[] BOUNDS = {
+        0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+        0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Child> children = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private abstract static class Child {
+        final String labels;
+
+        Child(String[] labels) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                text.append(text.length() == 0 ? "" : ",").append(labels[i]).append("=\"")
+                        .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            this.labels = text.toString();
+        }
+
+        abstract void write(String name, StringBuilder out);
+
+        void sample(StringBuilder out, String name, String extraLabel, String value) {
+            out.append(name);
+            if (!labels.isEmpty() || extraLabel != null) {
+                out.append('{').append(labels);
+                if (extraLabel != null) {
+                    out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+                }
+                out.append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    public static final class Counter extends Child {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String[] labels) {
+            super(labels);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        @Override
+        void write(String name, StringBuilder out) {
+            sample(out, name, null, Long.toString(value.sum()));
+        }
+    }
+
+    public static final class Histogram extends Child {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String[] labels) {
+            super(labels);
+        }
+
+        public void recordNanos(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(bucket(nanos));
+            sumNanos.add(nanos);
+        }
+
+        // Cumulative counts at each bound; a bucket straddling a bound counts
+        // toward the next one.
+        @Override
+        void write(String name, StringBuilder out) {
+            long cumulative = 0;
+            int index = 0;
+            for (double bound : BOUNDS) {
+                long limit = (long) (bound * 1e9);
+                while (index < BUCKETS && upperBound(index) - 1 <= limit) {
+                    cumulative += counts.get(index++);
+                }
+                sample(out, name + "_bucket", "le=\"" + bound + "\"", Long.toString(cumulative));
+            }
+            while (index < BUCKETS) {
+                cumulative += counts.get(index++);
+            }
+            sample(out, name + "_bucket", "le=\"+Inf\"", Long.toString(cumulative));
+            sample(out, name + "_sum", null, Double.toString(sumNanos.sum() / 1e9));
+            sample(out, name + "_count", null, Long.toString(cumulative));
+        }
+    }
+
+    private static final class Supplied extends Child {
+        private final DoubleSupplier value;
+
+        Supplied(String[] labels, DoubleSupplier value) {
+            super(labels);
+            this.value = value;
+        }
+
+        @Override
+        void write(String name, StringBuilder out) {
+            double current = value.getAsDouble();
+            sample(out, name, null, current == Math.rint(current) && Math.abs(current) < 1e15
+                    ? Long.toString((long) current) : Double.toString(current));
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Exclusive upper bound of a bucket.
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index + 1;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift);
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return register(name, help, "counter", new Counter(labels));
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return register(name, help, "histogram", new Histogram(labels));
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", new Supplied(labels, value));
+    }
+
+    // A counter kept elsewhere, such as an AtomicLong in another class.
+    public static void counter(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "counter", new Supplied(labels, value));
+    }
+
+    private static synchronized <T extends Child> T register(String name, String help, String type, T child) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        family.children.add(child);
+        return child;
+    }
+
+    public static synchronized String prometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : FAMILIES.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Child child : family.children) {
+                child.write(family.name, out);
+            }
+        }
+        return out.toString();
+    }
+}
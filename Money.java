@@ -0,0 +1,110 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+
+// Amounts as a long count of the currency's minor unit, the "cents" of the
+// ledger columns, snapshot rows and JSON encoder. The currency comes from
+// expensetracker.currency (default USD) and fixes the scale: 2 fraction
+// digits for USD or EUR, 0 for JPY, 3 for BHD. Snapshots record the scale
+// they were written with and refuse to open under another one.
+//
+// The kernels over long[] ranges are exact and throw ArithmeticException on
+// overflow instead of wrapping. sum() adds each block with a plain loop the
+// JIT can vectorize, ORing the magnitudes alongside: BLOCK values below 2^52
+// in magnitude cannot overflow, and only a block with a larger value falls
+// back to Math.addExact per element.
+public final class Money {
+    public static final Currency CURRENCY =
+            Currency.getInstance(System.getProperty("expensetracker.currency", "USD"));
+    public static final int SCALE = Math.max(0, CURRENCY.getDefaultFractionDigits());
+    public static final long FACTOR = pow10(SCALE);
+
+    private static final int BLOCK = 2048;
+    private static final long SAFE = 1L << 52;
+
+    private Money() {
+    }
+
+    private static long pow10(int exponent) {
+        long value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+
+    // Rounds half away from zero to the minor unit.
+    public static long toMinor(double amount) {
+        double scaled = amount * FACTOR;
+        if (Double.isNaN(scaled) || Math.abs(scaled) >= 0x1p63) {
+            throw new ArithmeticException("Amount out of range: " + amount);
+        }
+        return Math.round(scaled);
+    }
+
+    public static double toMajor(long minor) {
+        return (double) minor / FACTOR;
+    }
+
+    // Exact decimal, for text that must not go through a double.
+    public static long parse(String amount) {
+        return new BigDecimal(amount.trim()).movePointRight(SCALE).setScale(0, RoundingMode.HALF_UP)
+                .longValueExact();
+    }
+
+    public static String format(long minor) {
+        return BigDecimal.valueOf(minor, SCALE).toPlainString();
+    }
+
+    public static long sum(long[] values, int from, int to) {
+        long total = 0;
+        for (int start = from; start < to; start += BLOCK) {
+            int end = Math.min(to, start + BLOCK);
+            long block = 0;
+            long magnitudes = 0;
+            for (int i = start; i < end; i++) {
+                long value = values[i];
+                block += value;
+                // |value|, or |value| - 1 for negatives
+                magnitudes |= value ^ (value >> 63);
+            }
+            if (magnitudes >= SAFE) {
+                block = 0;
+                for (int i = start; i < end; i++) {
+                    block = Math.addExact(block, values[i]);
+                }
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+
+    // Long.MAX_VALUE for an empty range.
+    public static long min(long[] values, int from, int to) {
+        long min = Long.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    // Long.MIN_VALUE for an empty range.
+    public static long max(long[] values, int from, int to) {
+        long max = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    // Mean in minor units, rounded half away from zero; 0 when count is 0.
+    public static long average(long sum, long count) {
+        if (count == 0) return 0;
+        long quotient = sum / count;
+        long remainder = sum % count;
+        if (Math.abs(remainder) >= count - Math.abs(remainder)) {
+            quotient += Long.signum(sum);
+        }
+        return quotient;
+    }
+}
@@ -0,0 +1,120 @@
+import java.time.LocalDate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Running expense and income totals per month and per day. Updated in O(1)
+// on every add so monthly queries never scan the transaction lists; the day
+// totals also feed a DayRangeSums, which sums any range of days (a week, a
+// fiscal year) in O(log D).
+// Months are 0-based like Calendar.MONTH. Totals are exact, in cents (minor
+// units, see Money); additions that would overflow throw.
+//
+// One thread adds; any thread may read without locking. Totals are immutable
+// and replaced as a whole, so a month's expenses and income are always read
+// as a pair.
+public class MonthlyAggregates {
+    static final class Totals {
+        static final Totals EMPTY = new Totals(0, 0);
+
+        final long expenses;
+        final long income;
+
+        Totals(long expenses, long income) {
+            this.expenses = expenses;
+            this.income = income;
+        }
+
+        Totals plus(Totals other) {
+            return new Totals(Math.addExact(expenses, other.expenses), Math.addExact(income, other.income));
+        }
+    }
+
+    public interface DayVisitor {
+        void visit(int dayKey, long expenseCents, long incomeCents);
+    }
+
+    private final Map<Integer, Totals> months = new ConcurrentHashMap<>();
+    private final Map<Integer, Totals> days = new ConcurrentHashMap<>();
+    private final DayRangeSums ranges = new DayRangeSums();
+    private final Calendar calendar = Calendar.getInstance();
+
+    static int monthKey(int year, int month) {
+        return year << 4 | month;
+    }
+
+    static int dayKey(int year, int month, int day) {
+        return year << 9 | month << 5 | day;
+    }
+
+    public void addExpense(Date date, long cents) {
+        add(date, new Totals(cents, 0));
+    }
+
+    public void addIncome(Date date, long cents) {
+        add(date, new Totals(0, cents));
+    }
+
+    private void add(Date date, Totals amount) {
+        calendar.setTime(date);
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH);
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        months.merge(monthKey(year, month), amount, Totals::plus);
+        days.merge(dayKey(year, month, day), amount, Totals::plus);
+        ranges.add((int) LocalDate.of(year, month + 1, day).toEpochDay(), amount.expenses, amount.income);
+    }
+
+    // Adds the totals of one day stored elsewhere, such as a snapshot.
+    public void addDayTotals(int dayKey, long expenseCents, long incomeCents) {
+        Totals amount = new Totals(expenseCents, incomeCents);
+        days.merge(dayKey, amount, Totals::plus);
+        months.merge(dayKey >> 5, amount, Totals::plus);
+        ranges.add(epochDay(dayKey), expenseCents, incomeCents);
+    }
+
+    static int epochDay(int dayKey) {
+        return (int) LocalDate.of(dayKey >> 9, (dayKey >> 5 & 15) + 1, dayKey & 31).toEpochDay();
+    }
+
+    public int dayCount() {
+        return days.size();
+    }
+
+    public void forEachDay(DayVisitor visitor) {
+        for (Map.Entry<Integer, Totals> entry : days.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue().expenses, entry.getValue().income);
+        }
+    }
+
+    Totals month(int month, int year) {
+        return months.getOrDefault(monthKey(year, month), Totals.EMPTY);
+    }
+
+    // Totals of the days in [fromDay, toDay), as epoch days.
+    Totals between(int fromDay, int toDay) {
+        return ranges.between(fromDay, toDay);
+    }
+
+    public double monthlyExpenses(int month, int year) {
+        return Money.toMajor(month(month, year).expenses);
+    }
+
+    public double monthlyIncome(int month, int year) {
+        return Money.toMajor(month(month, year).income);
+    }
+
+    public double monthlySavings(int month, int year) {
+        Totals totals = month(month, year);
+        return Money.toMajor(totals.income - totals.expenses);
+    }
+
+    public double dailyExpenses(int day, int month, int year) {
+        return Money.toMajor(days.getOrDefault(dayKey(year, month, day), Totals.EMPTY).expenses);
+    }
+
+    public double dailyIncome(int day, int month, int year) {
+        return Money.toMajor(days.getOrDefault(dayKey(year, month, day), Totals.EMPTY).income);
+    }
+}
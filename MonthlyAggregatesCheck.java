@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+// Checks the running aggregates (MonthlyAggregates and its DayRangeSums)
+// against a brute-force scan of the rows: every month's and every day's
+// expenses and income, random ranges of days and the ledger totals. It runs
+// on a ledger replayed from a log, on one opened from a snapshot with
+// commits on top, and on aggregates fed days outside the day-range window.
+// Exits with status 1 on the first mismatch.
+//
+//   java MonthlyAggregatesCheck [rows]       (default 200000)
+//
+// gradle build runs it on 20000 rows (task verifyAggregates).
+public class MonthlyAggregatesCheck {
+    private static final int RANGES = 2000;
+    private static long checks;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Path directory = Files.createTempDirectory("aggregates-check");
+        try {
+            String logBase = directory.resolve("log").toString();
+            SyntheticLedger.writeLog(logBase, rows, SyntheticLedger.DEFAULT_SEED);
+            TransactionManager replayed = open(logBase);
+            try {
+                check("log replay", replayed);
+            } finally {
+                replayed.close();
+            }
+
+            String snapshotBase = directory.resolve("snapshot").toString();
+            SyntheticLedger.writeSnapshot(snapshotBase, rows, SyntheticLedger.DEFAULT_SEED);
+            TransactionManager mapped = open(snapshotBase);
+            try {
+                commit(mapped, rows / 10);
+                check("snapshot and commits", mapped);
+            } finally {
+                mapped.close();
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        checkOutsideWindow();
+        System.out.println(checks + " totals match the scan");
+    }
+
+    private static TransactionManager open(String baseName) throws IOException {
+        return new TransactionManager(new AppendOnlyTransactionLog(baseName, FsyncPolicy.NEVER, 100, Long.MAX_VALUE));
+    }
+
+    // Rows from another seed, in batches, so the index also sees days it
+    // already holds from the snapshot.
+    private static void commit(TransactionManager manager, int rows) {
+        SyntheticLedger ledger = new SyntheticLedger(SyntheticLedger.DEFAULT_SEED + 1);
+        List<Expense> expenses = new ArrayList<>();
+        List<Income> incomes = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            if (ledger.nextIsIncome()) {
+                incomes.add(ledger.nextIncome());
+            } else {
+                expenses.add(ledger.nextExpense());
+            }
+            if (expenses.size() + incomes.size() == 1000 || i == rows - 1) {
+                manager.commitBatch(expenses, incomes);
+                expenses = new ArrayList<>();
+                incomes = new ArrayList<>();
+            }
+        }
+    }
+
+    private static void check(String name, TransactionManager manager) {
+        // Epoch day to {expenses, income}, by scanning every row
+        TreeMap<Integer, long[]> days = new TreeMap<>();
+        long totalExpenses = 0;
+        long totalIncome = 0;
+        for (Expense expense : manager.getExpenses()) {
+            days.computeIfAbsent(ColumnarLedger.toEpochDay(expense.getDate()), day -> new long[2])[0]
+                    += expense.getAmountMinor();
+            totalExpenses += expense.getAmountMinor();
+        }
+        for (Income income : manager.getIncomes()) {
+            days.computeIfAbsent(ColumnarLedger.toEpochDay(income.getDate()), day -> new long[2])[1]
+                    += income.getAmountMinor();
+            totalIncome += income.getAmountMinor();
+        }
+        expect(name, "total expenses", totalExpenses, manager.version().getTotalExpenseCents());
+        expect(name, "total income", totalIncome, manager.version().getTotalIncomeCents());
+
+        // One day either side of the data, which must be empty
+        int first = days.firstKey() - 1;
+        int last = days.lastKey() + 1;
+        long[] prefixExpenses = new long[last - first + 2];
+        long[] prefixIncome = new long[last - first + 2];
+        TreeMap<LocalDate, long[]> months = new TreeMap<>();
+        for (int day = first; day <= last; day++) {
+            long[] totals = days.getOrDefault(day, new long[2]);
+            LocalDate date = LocalDate.ofEpochDay(day);
+            int month = date.getMonthValue() - 1;
+            expectMajor(name, "expenses on " + date, totals[0],
+                    manager.calculateDailyExpenses(date.getDayOfMonth(), month, date.getYear()));
+            expectMajor(name, "income on " + date, totals[1],
+                    manager.calculateDailyIncome(date.getDayOfMonth(), month, date.getYear()));
+            long[] monthTotals = months.computeIfAbsent(date.withDayOfMonth(1), m -> new long[2]);
+            monthTotals[0] += totals[0];
+            monthTotals[1] += totals[1];
+            prefixExpenses[day - first + 1] = prefixExpenses[day - first] + totals[0];
+            prefixIncome[day - first + 1] = prefixIncome[day - first] + totals[1];
+        }
+        for (LocalDate month : months.keySet()) {
+            long[] totals = months.get(month);
+            int index = month.getMonthValue() - 1;
+            expectMajor(name, "expenses in " + month, totals[0],
+                    manager.calculateMonthlyExpenses(index, month.getYear()));
+            expectMajor(name, "income in " + month, totals[1],
+                    manager.calculateMonthlyIncome(index, month.getYear()));
+            expectMajor(name, "savings in " + month, totals[1] - totals[0],
+                    manager.calculateMonthlySavings(index, month.getYear()));
+        }
+
+        Random random = new Random(SyntheticLedger.DEFAULT_SEED);
+        int span = last - first + 1;
+        for (int i = 0; i < RANGES; i++) {
+            int from = first + random.nextInt(span);
+            int to = from + random.nextInt(last + 2 - from);
+            SummaryPeriod period = SummaryPeriod.between(LocalDate.ofEpochDay(from), LocalDate.ofEpochDay(to));
+            MonthlyAggregates.Totals totals = manager.periodTotals(period);
+            expect(name, "expenses " + period.getName(), prefixExpenses[to - first] - prefixExpenses[from - first],
+                    totals.expenses);
+            expect(name, "income " + period.getName(), prefixIncome[to - first] - prefixIncome[from - first],
+                    totals.income);
+        }
+    }
+
+    // Days before TransactionManager.FIRST_DATE and after LAST_DATE, which
+    // only old logs can hold, still count in every range that covers them.
+    private static void checkOutsideWindow() {
+        MonthlyAggregates aggregates = new MonthlyAggregates();
+        LocalDate[] dates = {LocalDate.of(1850, 6, 1), LocalDate.of(1899, 12, 31), LocalDate.of(1900, 1, 1),
+                LocalDate.of(2024, 5, 1), LocalDate.of(2199, 12, 31), LocalDate.of(2200, 1, 1), LocalDate.of(2300, 1, 1)};
+        for (int i = 0; i < dates.length; i++) {
+            aggregates.addExpense(ColumnarLedger.toDate((int) dates[i].toEpochDay()), 100L << i);
+            aggregates.addIncome(ColumnarLedger.toDate((int) dates[i].toEpochDay()), 1L << i);
+        }
+        LocalDate end = LocalDate.of(2400, 1, 1);
+        for (int from = 0; from <= dates.length; from++) {
+            for (int to = from; to <= dates.length; to++) {
+                long expenses = 0;
+                long income = 0;
+                for (int i = from; i < to; i++) {
+                    expenses += 100L << i;
+                    income += 1L << i;
+                }
+                int fromDay = (int) (from == dates.length ? end : dates[from]).toEpochDay();
+                int toDay = (int) (to == dates.length ? end : dates[to]).toEpochDay();
+                MonthlyAggregates.Totals totals = aggregates.between(fromDay, toDay);
+                String range = "outside the window, days " + from + " to " + to;
+                expect("aggregates", "expenses " + range, expenses, totals.expenses);
+                expect("aggregates", "income " + range, income, totals.income);
+            }
+        }
+    }
+
+    private static void expectMajor(String name, String what, long cents, double actual) {
+        checks++;
+        if (Money.toMajor(cents) != actual) {
+            fail(name, what, Money.format(cents), String.valueOf(actual));
+        }
+    }
+
+    private static void expect(String name, String what, long expected, long actual) {
+        checks++;
+        if (expected != actual) {
+            fail(name, what, Money.format(expected), Money.format(actual));
+        }
+    }
+
+    private static void fail(String name, String what, String expected, String actual) {
+        System.err.println(name + ": " + what + " is " + actual + ", the scan gives " + expected);
+        System.exit(1);
+    }
+}
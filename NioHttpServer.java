@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Selector-based HTTP/1.1 server. One thread owns every socket: it accepts,
+// reads into pooled direct buffers, parses requests in place and writes
+// responses. Handlers run on a RequestExecutor, one request per connection
+// at a time, so pipelined requests are answered in order; a request that
+// times out is answered 503 and the connection moves on, and one still
+// queued when its connection closes is cancelled.
+// Streaming responses are written by the worker into pooled output buffers,
+// at most OUTPUT_WINDOW of them in flight per connection.
+// An event-stream response does not occupy a worker: the connection is
+// subscribed to the EventBroadcaster and events are queued on it from the
+// selector thread.
+public class NioHttpServer {
+    private static final int MAX_PIPELINED = 32;
+    private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final int OUTPUT_WINDOW = 4;   // output buffers in flight per connection
+
+    private final int port;
+    private final int backlog;
+    private final Function<HttpRequest, HttpResponse> handler;
+    private final RequestExecutor executor;
+    private final BufferPool buffers;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ArrayBlockingQueue<ByteBuffer> outputBuffers = new ArrayBlockingQueue<>(1024);
+    private Selector selector;
+    private volatile boolean running = true;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private volatile int lastAcceptBurst;
+    private volatile int maxAcceptBurst;
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<HttpRequest> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        ByteBuffer input;       // pooled while data is buffered, null when idle
+        HttpResponse failure;   // sent once earlier requests are answered
+        final Semaphore outputPermits = new Semaphore(OUTPUT_WINDOW);
+        boolean busy;
+        RequestExecutor.Task task;   // the request being handled, while busy
+        EventSubscriber events;  // set while the connection carries an event stream
+        boolean closeAfterWrite;
+        volatile boolean open = true;
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    public NioHttpServer(int port, int backlog, RequestExecutor executor,
+                         Function<HttpRequest, HttpResponse> handler) {
+        this.port = port;
+        this.backlog = backlog;
+        this.handler = handler;
+        this.executor = executor;
+        this.buffers = new BufferPool(16 * 1024, 1024);
+    }
+
+    public void run() throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+            this.selector = selector;
+            server.bind(new InetSocketAddress(port), backlog);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            long lastIdleCheck = System.currentTimeMillis();
+            while (running) {
+                selector.select(1000);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        try {
+                            accept(server);
+                        } catch (IOException e) {
+                            System.err.println("Accept error: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) read(connection);
+                        if (connection.open && key.isWritable()) write(connection);
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        Selector current = selector;
+        if (current != null) current.wakeup();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        int burst = 0;
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            activeConnections.incrementAndGet();
+            acceptedConnections.incrementAndGet();
+            burst++;
+        }
+        // Connections waiting in the kernel backlog surface as one burst here
+        lastAcceptBurst = burst;
+        if (burst > maxAcceptBurst) maxAcceptBurst = burst;
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.input == null) {
+            connection.input = buffers.acquire();
+        }
+        int read = connection.channel.read(connection.input);
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        parseBuffered(connection);
+        dispatchNext(connection);
+    }
+
+    // Moves every complete request out of the input buffer, up to the
+    // pipelining limit. Reading pauses while the limit is reached.
+    private void parseBuffered(Connection connection) {
+        ByteBuffer input = connection.input;
+        input.flip();
+        try {
+            HttpRequest request;
+            while (connection.pending.size() < MAX_PIPELINED
+                    && (request = HttpRequestParser.parse(input)) != null) {
+                connection.pending.add(request);
+                requests.incrementAndGet();
+            }
+            if (!input.hasRemaining()) {
+                buffers.release(input);
+                connection.input = null;
+            } else {
+                input.compact();
+                if (!input.hasRemaining()) {
+                    connection.input = grow(input);
+                }
+            }
+        } catch (HttpException e) {
+            fail(connection, e.toResponse());
+            return;
+        }
+
+        int interest = connection.key.interestOps();
+        if (connection.pending.size() >= MAX_PIPELINED) {
+            connection.key.interestOps(interest & ~SelectionKey.OP_READ);
+        } else if ((interest & SelectionKey.OP_READ) == 0) {
+            connection.key.interestOps(interest | SelectionKey.OP_READ);
+        }
+    }
+
+    // A request larger than a pooled buffer gets a dedicated heap buffer.
+    private ByteBuffer grow(ByteBuffer input) throws HttpException {
+        if (input.capacity() >= HttpRequestParser.maxRequestBytes()) {
+            throw new HttpException(413, "Request too large");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, HttpRequestParser.maxRequestBytes()));
+        input.flip();
+        larger.put(input);
+        buffers.release(input);
+        return larger;
+    }
+
+    private void fail(Connection connection, HttpResponse response) {
+        connection.failure = response;
+        if (connection.input != null) {
+            buffers.release(connection.input);
+            connection.input = null;
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void dispatchNext(Connection connection) throws IOException {
+        if (connection.busy || connection.closeAfterWrite || !connection.open) return;
+
+        if (connection.pending.isEmpty() && connection.input != null && connection.failure == null) {
+            parseBuffered(connection);
+        }
+        HttpRequest request = connection.pending.poll();
+        if (request == null) {
+            if (connection.failure != null) {
+                respond(connection, connection.failure, false);
+            }
+            return;
+        }
+
+        connection.busy = true;
+        try {
+            connection.task = executor.submit(() -> handler.apply(request), (response, failure) -> {
+                boolean keepAlive = request.isKeepAlive() && running;
+                if (failure != null) {
+                    HttpResponse error = failure instanceof TimeoutException
+                            ? HttpResponse.text(503, failure.getMessage())
+                            : HttpResponse.text(500, "Internal error: " + failure.getMessage());
+                    ByteBuffer encoded = error.encode(keepAlive);
+                    runOnSelector(() -> complete(connection, encoded, keepAlive));
+                    return;
+                }
+                EventBroadcaster events = response.getEvents();
+                if (events != null) {
+                    ByteBuffer head = ByteBuffer.wrap(response.head(false));
+                    runOnSelector(() -> subscribe(connection, head, events));
+                } else if (response.isStreaming()) {
+                    stream(connection, response, keepAlive);
+                } else {
+                    ByteBuffer encoded = response.encode(keepAlive);
+                    runOnSelector(() -> complete(connection, encoded, keepAlive));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedRequests.incrementAndGet();
+            boolean keepAlive = request.isKeepAlive() && running;
+            complete(connection, HttpResponse.text(503, "Server busy").encode(keepAlive), keepAlive);
+        }
+    }
+
+    // Runs on a worker: the body is written into pooled output buffers that
+    // the selector drains, blocking whenever the connection's window is full.
+    private void stream(Connection connection, HttpResponse response, boolean keepAlive) {
+        try {
+            ResponseStream out = new ResponseStream(connection);
+            response.writeTo(out, keepAlive);
+            out.flush();
+            runOnSelector(() -> complete(connection, null, keepAlive));
+        } catch (IOException e) {
+            runOnSelector(() -> close(connection));
+        }
+    }
+
+    // Sends the response head and hands the connection to the broadcaster.
+    // The connection stays busy, so no further requests are served on it.
+    private void subscribe(Connection connection, ByteBuffer head, EventBroadcaster broadcaster) {
+        if (!connection.open) return;
+        connection.pending.clear();
+        connection.events = new EventSubscriber(connection, broadcaster);
+        connection.events.queuedBytes = head.remaining();
+        connection.output.add(head);
+        connection.events.queue(broadcaster.hello);
+        broadcaster.subscribe(connection.events);
+        try {
+            write(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private final class EventSubscriber implements EventBroadcaster.Subscriber {
+        private final Connection connection;
+        private final EventBroadcaster broadcaster;
+        // Bytes queued but not yet written; only touched on the selector thread
+        int queuedBytes;
+        private volatile boolean evicted;
+
+        EventSubscriber(Connection connection, EventBroadcaster broadcaster) {
+            this.connection = connection;
+            this.broadcaster = broadcaster;
+        }
+
+        @Override
+        public boolean offer(EventBroadcaster.Event event) {
+            if (!connection.open || evicted) return false;
+            runOnSelector(() -> queue(event));
+            return true;
+        }
+
+        // Runs on the selector thread; the byte limit is checked here, where
+        // the queue is owned.
+        void queue(EventBroadcaster.Event event) {
+            if (!connection.open) return;
+            if (queuedBytes + event.chunk.length > EventBroadcaster.MAX_BUFFERED_BYTES) {
+                broadcaster.evict(this);
+                return;
+            }
+            queuedBytes += event.chunk.length;
+            connection.output.add(ByteBuffer.wrap(event.chunk));
+            try {
+                write(connection);
+            } catch (IOException e) {
+                NioHttpServer.this.close(connection);
+            }
+        }
+
+        @Override
+        public void close() {
+            evicted = true;
+            runOnSelector(() -> NioHttpServer.this.close(connection));
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void complete(Connection connection, ByteBuffer encoded, boolean keepAlive) {
+        connection.busy = false;
+        connection.task = null;
+        if (!connection.open) return;
+        try {
+            if (encoded != null) {
+                connection.output.add(encoded);
+            }
+            if (!keepAlive) {
+                connection.closeAfterWrite = true;
+                connection.pending.clear();
+            }
+            write(connection);
+            dispatchNext(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void respond(Connection connection, HttpResponse response, boolean keepAlive) throws IOException {
+        connection.output.add(response.encode(keepAlive));
+        if (!keepAlive) {
+            connection.closeAfterWrite = true;
+            connection.pending.clear();
+        }
+        write(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        while (!connection.output.isEmpty()) {
+            ByteBuffer buffer = connection.output.peek();
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) break;
+            connection.output.poll();
+            if (buffer.isDirect()) {
+                recycleOutput(connection, buffer);
+            } else if (connection.events != null) {
+                connection.events.queuedBytes -= buffer.limit();
+            }
+        }
+        connection.lastActive = System.currentTimeMillis();
+        if (connection.output.isEmpty()) {
+            if (connection.closeAfterWrite) {
+                close(connection);
+                return;
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Connection)) continue;
+            Connection connection = (Connection) attachment;
+            if (!connection.busy && connection.pending.isEmpty() && connection.output.isEmpty()
+                    && now - connection.lastActive > IDLE_TIMEOUT_MILLIS) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (!connection.open) return;
+        connection.open = false;
+        connection.key.cancel();
+        if (connection.task != null) {
+            connection.task.cancel();
+        }
+        if (connection.events != null) {
+            connection.events.broadcaster.unsubscribe(connection.events);
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do for this connection
+        }
+        if (connection.input != null) {
+            buffers.release(connection.input);
+            connection.input = null;
+        }
+        for (ByteBuffer buffer : connection.output) {
+            if (buffer.isDirect()) outputBuffers.offer(buffer);
+        }
+        connection.output.clear();
+        // Wakes a worker blocked on the window; it then sees the closed flag
+        connection.outputPermits.release(OUTPUT_WINDOW);
+        activeConnections.decrementAndGet();
+    }
+
+    private void recycleOutput(Connection connection, ByteBuffer buffer) {
+        outputBuffers.offer(buffer);
+        connection.outputPermits.release();
+    }
+
+    private final class ResponseStream extends OutputStream {
+        private final Connection connection;
+        private ByteBuffer current;
+
+        ResponseStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRoom();
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                ensureRoom();
+                int count = Math.min(length, current.remaining());
+                current.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (current != null && current.position() > 0) {
+                send();
+            }
+        }
+
+        private void ensureRoom() throws IOException {
+            if (current != null && current.hasRemaining()) return;
+            if (current != null) send();
+            try {
+                if (!connection.outputPermits.tryAcquire(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Client stopped reading");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing response");
+            }
+            if (!connection.open) {
+                throw new IOException("Connection closed");
+            }
+            ByteBuffer buffer = outputBuffers.poll();
+            current = buffer != null ? buffer : ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+            current.clear();
+        }
+
+        private void send() {
+            ByteBuffer buffer = current;
+            current = null;
+            buffer.flip();
+            runOnSelector(() -> {
+                if (!connection.open) {
+                    outputBuffers.offer(buffer);
+                    return;
+                }
+                connection.output.add(buffer);
+                try {
+                    NioHttpServer.this.write(connection);
+                } catch (IOException e) {
+                    NioHttpServer.this.close(connection);
+                }
+            });
+        }
+    }
+
+    public int activeConnections() {
+        return activeConnections.get();
+    }
+
+    public long requestCount() {
+        return requests.get();
+    }
+
+    public long rejectedCount() {
+        return rejectedRequests.get();
+    }
+
+    public int activeWorkers() {
+        return executor.running();
+    }
+
+    public int workerQueueDepth() {
+        return executor.queued();
+    }
+
+    public String statsJson() {
+        return String.format(
+            "{\"mode\":\"nio\",\"activeConnections\":%d,\"acceptedConnections\":%d,\"requests\":%d," +
+            "\"rejectedRequests\":%d,\"backlog\":%d,\"lastAcceptBurst\":%d,\"maxAcceptBurst\":%d," +
+            "\"activeWorkers\":%d,\"workerQueueDepth\":%d,\"executor\":%s}",
+            activeConnections.get(), acceptedConnections.get(), requests.get(),
+            rejectedRequests.get(), backlog, lastAcceptBurst, maxAcceptBurst,
+            executor.running(), executor.queued(), executor.statsJson());
+    }
+}
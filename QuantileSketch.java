@@ -0,0 +1,74 @@
+// Mergeable quantile sketch over amounts in cents. Each value lands in a
+// logarithmic bucket whose bounds grow by GAMMA, so a quantile comes back
+// within RELATIVE_ACCURACY of the true value whatever the distribution, and
+// two sketches merge by adding their bucket counts. Memory depends on the
+// spread of the amounts (about 350 buckets per factor of 1000), not on how
+// many were added. Zero and negative amounts share one bucket reported as 0.
+public final class QuantileSketch {
+    static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // counts[i] holds the values in (GAMMA^(offset+i-1), GAMMA^(offset+i)]
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+    private long count;
+
+    public void add(long cents) {
+        count++;
+        if (cents <= 0) {
+            zeroCount++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(cents) / LOG_GAMMA);
+        cover(index, index);
+        counts[index - offset]++;
+    }
+
+    public void merge(QuantileSketch other) {
+        count += other.count;
+        zeroCount += other.zeroCount;
+        if (other.counts.length == 0) return;
+        cover(other.offset, other.offset + other.counts.length - 1);
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[other.offset + i - offset] += other.counts[i];
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // Estimated value at quantile q (0..1), in cents.
+    public long quantile(double q) {
+        if (count == 0) return 0;
+        long rank = (long) Math.floor(q * (count - 1));
+        long seen = zeroCount;
+        if (rank < seen) return 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                // Midpoint of the bucket, relative to its bounds
+                return Math.round(2 * Math.pow(GAMMA, offset + i) / (GAMMA + 1));
+            }
+        }
+        return Math.round(Math.pow(GAMMA, offset + counts.length - 1));
+    }
+
+    // Widens the bucket array to hold indexes low..high.
+    private void cover(int low, int high) {
+        if (counts.length == 0) {
+            counts = new long[high - low + 1];
+            offset = low;
+            return;
+        }
+        int from = Math.min(low, offset);
+        int to = Math.max(high, offset + counts.length - 1);
+        if (from == offset && to - from + 1 == counts.length) return;
+        long[] larger = new long[to - from + 1];
+        System.arraycopy(counts, 0, larger, offset - from, counts.length);
+        counts = larger;
+        offset = from;
+    }
+}
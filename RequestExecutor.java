@@ -0,0 +1,298 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Runs request handlers and other blocking work for the web server and the
+// console, in one of three modes (expensetracker.execution):
+//
+//   platform    a fixed pool of expensetracker.workers threads (default 32)
+//   virtual     a new virtual thread per task; these need Java 21, so older
+//               runtimes use the platform pool and say so on startup
+//   structured  virtual threads where available, and a task that overruns
+//               its deadline is joined before its caller hears of it, so no
+//               task outlives the request that started it
+//
+// How much runs at once is bounded by a semaphore of expensetracker.maxInFlight
+// permits (default 4096), not by threads or queue slots. A task that finds no
+// permit is refused with RejectedExecutionException, which the server answers
+// with 503; the permit is held from submission until the task's callback
+// returns, so a response being streamed still counts.
+//
+// A task not done after expensetracker.requestTimeoutMillis (default 30000,
+// 0 for none) times out. One that has not started is cancelled and never
+// runs; one that is running is not interrupted, because an interrupt during
+// FileChannel I/O closes the channel and handlers write the ledger's log.
+// Its result is dropped instead, and in structured mode the timeout is only
+// reported once it has finished.
+public final class RequestExecutor implements AutoCloseable {
+    public enum Mode { PLATFORM, VIRTUAL, STRUCTURED }
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+    private static final int ABANDONED = 3;
+
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1,
+            daemonThreads("request-deadlines"));
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Mode mode;
+    private final ExecutorService threads;
+    private final ThreadPoolExecutor platformPool;   // null with virtual threads
+    private final ExecutorService connections;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    // One submitted task. cancel() drops it if it has not started.
+    public final class Task {
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        // Set once the callback has been called or claimed
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private volatile boolean expired;
+        private volatile ScheduledFuture<?> deadline;
+
+        public boolean cancel() {
+            if (!abandon()) return false;
+            cancelled.incrementAndGet();
+            return true;
+        }
+
+        private boolean abandon() {
+            if (!state.compareAndSet(QUEUED, ABANDONED)) return false;
+            queued.decrementAndGet();
+            ScheduledFuture<?> pending = deadline;
+            if (pending != null) pending.cancel(false);
+            permits.release();
+            return true;
+        }
+    }
+
+    public RequestExecutor(Mode mode, int workers, int maxInFlight, long timeoutMillis) {
+        ExecutorService virtual = mode == Mode.PLATFORM ? null : virtualThreadPerTask();
+        if (mode != Mode.PLATFORM && virtual == null) {
+            System.err.println("Virtual threads need Java 21 or later; running " + mode.name().toLowerCase()
+                    + " mode on " + workers + " platform threads");
+        }
+        this.mode = mode;
+        if (virtual != null) {
+            this.threads = virtual;
+            this.connections = virtual;
+            this.platformPool = null;
+        } else {
+            this.platformPool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), daemonThreads("http-worker"));
+            this.threads = platformPool;
+            this.connections = Executors.newCachedThreadPool(daemonThreads("http-connection"));
+        }
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static RequestExecutor fromProperties() {
+        String mode = System.getProperty("expensetracker.execution", "platform");
+        Mode parsed;
+        try {
+            parsed = Mode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("expensetracker.execution must be platform, virtual or structured");
+        }
+        return new RequestExecutor(parsed,
+                Integer.getInteger("expensetracker.workers", 32),
+                Integer.getInteger("expensetracker.maxInFlight", 4096),
+                Long.getLong("expensetracker.requestTimeoutMillis", 30_000));
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it.
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Runs work once admitted, then calls done exactly once: with its result,
+    // with the exception it threw, or with a TimeoutException. done runs on
+    // the task's thread, or on the deadline thread for a timeout, where it
+    // must not block. Throws RejectedExecutionException when every permit is
+    // taken.
+    public <T> Task submit(Callable<T> work, BiConsumer<T, Throwable> done) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Too many requests in flight");
+        }
+        Task task = new Task();
+        queued.incrementAndGet();
+        if (timeoutMillis > 0) {
+            task.deadline = DEADLINES.schedule(() -> expire(task, done), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        try {
+            threads.execute(() -> run(task, work, done));
+        } catch (RejectedExecutionException e) {
+            task.abandon();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    private <T> void run(Task task, Callable<T> work, BiConsumer<T, Throwable> done) {
+        if (!task.state.compareAndSet(QUEUED, RUNNING)) return;
+        queued.decrementAndGet();
+        running.incrementAndGet();
+        T result = null;
+        Throwable failure = null;
+        try {
+            result = work.call();
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            running.decrementAndGet();
+            task.state.set(FINISHED);
+            ScheduledFuture<?> pending = task.deadline;
+            if (pending != null) pending.cancel(false);
+        }
+        try {
+            if (!task.settled.compareAndSet(false, true)) return;
+            if (task.expired) {
+                timedOut.incrementAndGet();
+                done.accept(null, timeout());
+            } else {
+                completed.incrementAndGet();
+                done.accept(result, failure);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private <T> void expire(Task task, BiConsumer<T, Throwable> done) {
+        if (task.abandon()) {
+            // Never started; its permit is already back
+            timedOut.incrementAndGet();
+            if (task.settled.compareAndSet(false, true)) done.accept(null, timeout());
+        } else if (task.state.get() == RUNNING) {
+            if (mode == Mode.STRUCTURED) {
+                task.expired = true;
+            } else if (task.settled.compareAndSet(false, true)) {
+                timedOut.incrementAndGet();
+                done.accept(null, timeout());
+            }
+        }
+    }
+
+    private TimeoutException timeout() {
+        return new TimeoutException("Request timed out after " + timeoutMillis + " ms");
+    }
+
+    // Runs work as submit does and waits for it. Unchecked exceptions from
+    // work are rethrown as they are, checked ones wrapped.
+    public <T> T call(Callable<T> work) throws ExecutionException, TimeoutException, InterruptedException {
+        CompletableFuture<T> outcome = new CompletableFuture<>();
+        Task task = submit(work, (result, failure) -> {
+            if (failure != null) {
+                outcome.completeExceptionally(failure);
+            } else {
+                outcome.complete(result);
+            }
+        });
+        try {
+            return outcome.get();
+        } catch (InterruptedException e) {
+            task.cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) throw (TimeoutException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    // Starts a thread-per-connection server's connection: on a virtual
+    // thread, or a pooled platform thread. Connections take no permit; their
+    // requests do.
+    public void startConnection(Runnable connection) {
+        connections.execute(connection);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    public int running() {
+        return running.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    public long timedOutCount() {
+        return timedOut.get();
+    }
+
+    public long cancelledCount() {
+        return cancelled.get();
+    }
+
+    public String statsJson() {
+        return String.format(
+            "{\"execution\":\"%s\",\"threads\":\"%s\",\"maxInFlight\":%d,\"inFlight\":%d,\"queued\":%d," +
+            "\"running\":%d,\"completed\":%d,\"rejected\":%d,\"timedOut\":%d,\"cancelled\":%d,\"timeoutMillis\":%d}",
+            mode.name().toLowerCase(), platformPool != null ? "platform" : "virtual", maxInFlight, inFlight(),
+            queued.get(), running.get(), completed.get(), rejected.get(), timedOut.get(), cancelled.get(),
+            timeoutMillis);
+    }
+
+    @Override
+    public void close() {
+        threads.shutdown();
+        connections.shutdown();
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Encoded responses of the read endpoints, keyed by the ledger they were read
+// from (its owner), path and query, and valid for one version of that ledger.
+// A commit clears the entries of its owner; an entry is also
+// checked against the current version when read, so a response computed
+// while a commit landed is never served for the newer version. The cache
+// holds at most maxBytes of bodies and evicts the least recently used entry
+// first.
+//
+// ETags name the server instance, the owner and the version, so a client
+// whose copy is still current gets a 304 without the response being built or
+// even cached. Owners are named per load of a ledger, since versions restart
+// when an evicted ledger is opened again.
+public class ResponseCache {
+    private static final class Entry {
+        final String owner;
+        final long version;
+        final HttpResponse response;
+
+        Entry(String owner, long version, HttpResponse response) {
+            this.owner = owner;
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    private final long maxBytes;
+    private final String instance = Long.toHexString(System.currentTimeMillis());
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Set<String>> keysByOwner = new HashMap<>();
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public String etag(String owner, long version) {
+        return "\"" + instance + "-" + owner + "-" + version + "\"";
+    }
+
+    // True, and counted, if the client's If-None-Match names this version.
+    public boolean notModified(String ifNoneMatch, String owner, long version) {
+        if (ifNoneMatch == null) return false;
+        String etag = etag(owner, version);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag) || tag.equals("*")) {
+                notModified.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized HttpResponse get(String owner, String key, long version) {
+        Entry entry = entries.get(owner + ' ' + key);
+        if (entry != null && entry.version == version) {
+            hits.incrementAndGet();
+            return entry.response;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Only complete, successful responses are kept; a body larger than a
+    // quarter of the cache is not worth the entries it would push out.
+    public synchronized void put(String owner, String key, long version, HttpResponse response) {
+        if (response.getStatus() != 200 || response.isStreaming()) return;
+        long size = response.getBody().length;
+        if (size > maxBytes / 4) return;
+        String fullKey = owner + ' ' + key;
+        Entry previous = entries.put(fullKey, new Entry(owner, version, response));
+        if (previous != null) {
+            bytes -= previous.response.getBody().length;
+        }
+        bytes += size;
+        keysByOwner.computeIfAbsent(owner, o -> new HashSet<>()).add(fullKey);
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            bytes -= evicted.getValue().response.getBody().length;
+            eldest.remove();
+            forget(evicted.getValue().owner, evicted.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void forget(String owner, String fullKey) {
+        Set<String> keys = keysByOwner.get(owner);
+        if (keys != null && keys.remove(fullKey) && keys.isEmpty()) {
+            keysByOwner.remove(owner);
+        }
+    }
+
+    // Drops every entry of one owner, after a commit or when it is unloaded.
+    public synchronized void invalidate(String owner) {
+        Set<String> keys = keysByOwner.remove(owner);
+        if (keys == null) return;
+        for (String key : keys) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                bytes -= entry.response.getBody().length;
+            }
+        }
+        invalidations.incrementAndGet();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long notModifiedCount() {
+        return notModified.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized String statsJson() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return String.format(
+            "{\"entries\":%d,\"bytes\":%d,\"maxBytes\":%d,\"hits\":%d,\"misses\":%d,\"hitRatio\":%.3f," +
+            "\"notModified\":%d,\"evictions\":%d,\"invalidations\":%d}",
+            entries.size(), bytes, maxBytes, hitCount, misses.get(),
+            lookups == 0 ? 0.0 : (double) hitCount / lookups, notModified.get(), evictions.get(), invalidations.get());
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+// Row ids ordered by (key, row id). Keys that arrive in order are appended;
+// out-of-order keys collect in a pending buffer that is sorted and merged in
+// on the next read, so replaying or importing unsorted rows costs one
+// O(n log n) sort instead of a shift per row.
+public class SortedRowIndex {
+    private long[] keys = new long[256];
+    private int[] rows = new int[256];
+    private int size;
+
+    private long[] pendingKeys = new long[64];
+    private int[] pendingRows = new int[64];
+    private int pendingSize;
+
+    public void insert(long key, int row) {
+        if (pendingSize == 0 && (size == 0 || keys[size - 1] <= key)) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            keys[size] = key;
+            rows[size] = row;
+            size++;
+            return;
+        }
+        if (pendingSize == pendingKeys.length) {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingSize * 2);
+            pendingRows = Arrays.copyOf(pendingRows, pendingSize * 2);
+        }
+        pendingKeys[pendingSize] = key;
+        pendingRows[pendingSize] = row;
+        pendingSize++;
+    }
+
+    public int size() {
+        return size + pendingSize;
+    }
+
+    public long keyAt(int position) {
+        ensureSorted();
+        return keys[position];
+    }
+
+    public int rowAt(int position) {
+        ensureSorted();
+        return rows[position];
+    }
+
+    // First position whose (key, row) is >= the given pair.
+    public int lowerBound(long key, int row) {
+        ensureSorted();
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key || (keys[mid] == key && rows[mid] < row)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureSorted() {
+        if (pendingSize == 0) return;
+        // Pending rows were inserted in row order, so a stable sort by key
+        // leaves them ordered by (key, row)
+        sortByKey(pendingKeys, pendingRows, pendingSize);
+
+        int total = size + pendingSize;
+        long[] mergedKeys = new long[Math.max(keys.length, Integer.highestOneBit(total) << 1)];
+        int[] mergedRows = new int[mergedKeys.length];
+        int i = 0, j = 0, k = 0;
+        while (i < size && j < pendingSize) {
+            if (keys[i] < pendingKeys[j] || (keys[i] == pendingKeys[j] && rows[i] < pendingRows[j])) {
+                mergedKeys[k] = keys[i];
+                mergedRows[k++] = rows[i++];
+            } else {
+                mergedKeys[k] = pendingKeys[j];
+                mergedRows[k++] = pendingRows[j++];
+            }
+        }
+        while (i < size) {
+            mergedKeys[k] = keys[i];
+            mergedRows[k++] = rows[i++];
+        }
+        while (j < pendingSize) {
+            mergedKeys[k] = pendingKeys[j];
+            mergedRows[k++] = pendingRows[j++];
+        }
+        keys = mergedKeys;
+        rows = mergedRows;
+        size = total;
+        pendingSize = 0;
+    }
+
+    // Bottom-up stable merge sort of parallel arrays by key.
+    private static void sortByKey(long[] keys, int[] rows, int length) {
+        long[] keyBuffer = new long[length];
+        int[] rowBuffer = new int[length];
+        long[] fromKeys = keys, toKeys = keyBuffer;
+        int[] fromRows = rows, toRows = rowBuffer;
+        for (int width = 1; width < length; width *= 2) {
+            for (int start = 0; start < length; start += 2 * width) {
+                int middle = Math.min(start + width, length);
+                int end = Math.min(start + 2 * width, length);
+                int i = start, j = middle, k = start;
+                while (i < middle && j < end) {
+                    if (fromKeys[j] < fromKeys[i]) {
+                        toKeys[k] = fromKeys[j];
+                        toRows[k++] = fromRows[j++];
+                    } else {
+                        toKeys[k] = fromKeys[i];
+                        toRows[k++] = fromRows[i++];
+                    }
+                }
+                while (i < middle) {
+                    toKeys[k] = fromKeys[i];
+                    toRows[k++] = fromRows[i++];
+                }
+                while (j < end) {
+                    toKeys[k] = fromKeys[j];
+                    toRows[k++] = fromRows[j++];
+                }
+            }
+            long[] swapKeys = fromKeys;
+            fromKeys = toKeys;
+            toKeys = swapKeys;
+            int[] swapRows = fromRows;
+            fromRows = toRows;
+            toRows = swapRows;
+        }
+        if (fromKeys != keys) {
+            System.arraycopy(fromKeys, 0, keys, 0, length);
+            System.arraycopy(fromRows, 0, rows, 0, length);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Measures how long TransactionManager takes to open a ledger of a given
+// size, once from a mapped snapshot and once by replaying the same rows from
+// the record log.
+//
+//   java -Xmx3g StartupBenchmark [rows ...]        (default 1000000 10000000)
+//
+// Files are written to a temporary directory and deleted afterwards. The
+// numbers are for a warm page cache; the first query after opening a
+// snapshot also builds the sorted indexes and is reported separately.
+public class StartupBenchmark {
+    public static void main(String[] args) throws IOException {
+        long[] sizes = args.length == 0 ? new long[]{1_000_000, 10_000_000} : new long[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Long.parseLong(args[i]);
+        }
+        System.out.printf("%12s %16s %14s %16s%n", "rows", "snapshot open", "first query", "log replay");
+        for (long size : sizes) {
+            run((int) size);
+        }
+    }
+
+    private static void run(int rows) throws IOException {
+        Path directory = Files.createTempDirectory("startup-benchmark");
+        try {
+            String snapshotBase = directory.resolve("mapped").toString();
+            String logBase = directory.resolve("replayed").toString();
+            SyntheticLedger.writeSnapshot(snapshotBase, rows, SyntheticLedger.DEFAULT_SEED);
+            SyntheticLedger.writeLog(logBase, rows, SyntheticLedger.DEFAULT_SEED);
+
+            long start = System.nanoTime();
+            TransactionManager mapped = open(snapshotBase);
+            double mappedTotal = mapped.calculateSavings();
+            long opened = System.nanoTime();
+            mapped.query(TransactionQuery.parse("limit=50"));
+            long queried = System.nanoTime();
+            mapped.close();
+
+            long replayStart = System.nanoTime();
+            TransactionManager replayed = open(logBase);
+            double replayedTotal = replayed.calculateSavings();
+            long replayEnd = System.nanoTime();
+            replayed.close();
+
+            if (Math.abs(mappedTotal - replayedTotal) > 0.01 * rows) {
+                System.out.println("Totals differ: " + mappedTotal + " vs " + replayedTotal);
+            }
+            System.out.printf("%12d %13.1f ms %11.1f ms %13.1f ms%n", rows,
+                    (opened - start) / 1e6, (queried - opened) / 1e6, (replayEnd - replayStart) / 1e6);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static TransactionManager open(String baseName) throws IOException {
+        return new TransactionManager(new AppendOnlyTransactionLog(baseName, FsyncPolicy.NEVER, 100, Long.MAX_VALUE));
+    }
+}
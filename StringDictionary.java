@@ -0,0 +1,41 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Maps repeated strings (categories, income sources) to dense int ids.
+public class StringDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<byte[]> encoded = new ArrayList<>();
+
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+            encoded.add(value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    public int find(String value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public String valueOf(int id) {
+        return values.get(id);
+    }
+
+    // UTF-8 form of the value, shared between callers and never modified.
+    public byte[] bytesOf(int id) {
+        return encoded.get(id);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
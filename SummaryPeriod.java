@@ -0,0 +1,154 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+// A [from, to) range of days to summarize: either given outright, or the
+// week (Monday first), month, quarter, year or fiscal year containing a
+// date. Fiscal years start on the first of expensetracker.fiscalYearStart
+// (a month, 1-12, default 1) and are named after the calendar year they
+// end in, so with April the fiscal year 2025 runs 2024-04-01 to 2025-03-31.
+// Every day of a period lies in TransactionManager.FIRST_DATE to LAST_DATE,
+// so its bounds always fit the int epoch days the aggregates use.
+public class SummaryPeriod {
+    public static final int FISCAL_YEAR_START = Integer.getInteger("expensetracker.fiscalYearStart", 1);
+
+    private static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("MMMM yyyy");
+
+    private final String name;
+    private final LocalDate from;
+    private final LocalDate to;
+
+    private SummaryPeriod(String name, LocalDate from, LocalDate to) {
+        checkRange(from, to);
+        this.name = name;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static SummaryPeriod between(LocalDate from, LocalDate to) {
+        checkRange(from, to);
+        return new SummaryPeriod(from + " to " + to.minusDays(1), from, to);
+    }
+
+    public static SummaryPeriod containing(String unit, LocalDate date) {
+        // The constructor checks the period; this keeps date arithmetic in range
+        checkRange(date, date);
+        switch (unit) {
+            case "week": {
+                LocalDate monday = date.with(DayOfWeek.MONDAY);
+                return new SummaryPeriod("Week of " + monday, monday, monday.plusWeeks(1));
+            }
+            case "month": {
+                LocalDate first = date.withDayOfMonth(1);
+                return new SummaryPeriod(first.format(MONTH), first, first.plusMonths(1));
+            }
+            case "quarter": {
+                LocalDate first = LocalDate.of(date.getYear(), (date.getMonthValue() - 1) / 3 * 3 + 1, 1);
+                return new SummaryPeriod("Q" + ((date.getMonthValue() + 2) / 3) + " " + date.getYear(),
+                        first, first.plusMonths(3));
+            }
+            case "year": {
+                LocalDate first = date.withDayOfYear(1);
+                return new SummaryPeriod("Year " + date.getYear(), first, first.plusYears(1));
+            }
+            case "fiscal-year": {
+                if (FISCAL_YEAR_START < 1 || FISCAL_YEAR_START > 12) {
+                    throw new IllegalStateException("expensetracker.fiscalYearStart must be between 1 and 12");
+                }
+                LocalDate first = LocalDate.of(date.getYear(), FISCAL_YEAR_START, 1);
+                if (first.isAfter(date)) first = first.minusYears(1);
+                LocalDate end = first.plusYears(1);
+                return new SummaryPeriod("Fiscal year " + end.minusDays(1).getYear(), first, end);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown period " + unit);
+        }
+    }
+
+    // Either from and to (yyyy-MM-dd, to exclusive), or period (week, month,
+    // quarter, year, fiscal-year) with an optional date, default today.
+    public static SummaryPeriod parse(String queryString) {
+        String from = null;
+        String to = null;
+        String period = null;
+        String date = null;
+        for (String pair : queryString.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+            String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            switch (name) {
+                case "from":
+                    from = value;
+                    break;
+                case "to":
+                    to = value;
+                    break;
+                case "period":
+                    period = value;
+                    break;
+                case "date":
+                    date = value;
+                    break;
+                default:
+                    // Unknown parameters (cache busters and the like) are ignored
+            }
+        }
+        if (period != null) {
+            if (from != null || to != null) {
+                throw new IllegalArgumentException("Give either period or from and to, not both");
+            }
+            return containing(period, date == null ? LocalDate.now() : parseDate(date));
+        }
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Give period, or both from and to");
+        }
+        return between(parseDate(from), parseDate(to));
+    }
+
+    // [from, to) must run forwards and stay within the dates a ledger holds.
+    static void checkRange(LocalDate from, LocalDate to) {
+        if (from.isBefore(TransactionManager.FIRST_DATE) || to.isAfter(TransactionManager.LAST_DATE.plusDays(1))) {
+            throw new IllegalArgumentException("Dates must be between " + TransactionManager.FIRST_DATE
+                    + " and " + TransactionManager.LAST_DATE);
+        }
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("to must not be before from");
+        }
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static LocalDate parseDate(String value) {
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date " + value);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    int fromDay() {
+        return (int) from.toEpochDay();
+    }
+
+    int toDay() {
+        return (int) to.toEpochDay();
+    }
+}
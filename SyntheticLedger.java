@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+// Seeded generator of realistic-looking transactions for benchmarks. The
+// same seed always yields the same rows, in the same order: about three
+// expenses per income, spread over five years of dates.
+public class SyntheticLedger {
+    public static final long DEFAULT_SEED = 42;
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Utilities", "Other"};
+    private static final String[] SOURCES = {"Salary", "Freelance", "Interest"};
+    private static final String[] ITEMS = {"Groceries", "Coffee", "Bus ticket", "Cinema", "Electricity",
+            "Lunch", "Taxi", "Books", "Internet", "Dinner"};
+    private static final int FIRST_DAY = 18262; // 2020-01-01
+    private static final int DAYS = 5 * 365;
+
+    private final Random random;
+    private int index;
+
+    public SyntheticLedger(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public boolean nextIsIncome() {
+        return random.nextInt(4) == 0;
+    }
+
+    public Expense nextExpense() {
+        return new Expense(ITEMS[random.nextInt(ITEMS.length)] + " #" + index++,
+                random.nextInt(20000) / 100.0, nextDate(), CATEGORIES[random.nextInt(CATEGORIES.length)]);
+    }
+
+    public Income nextIncome() {
+        index++;
+        return new Income(SOURCES[random.nextInt(SOURCES.length)], random.nextInt(500000) / 100.0, nextDate());
+    }
+
+    private Date nextDate() {
+        return ColumnarLedger.toDate(FIRST_DAY + random.nextInt(DAYS));
+    }
+
+    // Hands the next rows to a handler, in generation order.
+    public void feed(int rows, TransactionStore.RecordHandler handler) {
+        for (int i = 0; i < rows; i++) {
+            if (nextIsIncome()) {
+                handler.onIncome(nextIncome());
+            } else {
+                handler.onExpense(nextExpense());
+            }
+        }
+    }
+
+    // Writes the rows as <base>.snapshot, ready to be opened by a store.
+    public static void writeSnapshot(String baseName, int rows, long seed) throws IOException {
+        LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(null);
+        new SyntheticLedger(seed).feed(rows, writer);
+        writer.write(Path.of(baseName + ".snapshot"), Path.of(baseName + ".snapshot.tmp"), 0);
+    }
+
+    // Writes the rows as <base>.log, in batches like the ingest pipeline.
+    public static void writeLog(String baseName, int rows, long seed) throws IOException {
+        try (AppendOnlyTransactionLog log = new AppendOnlyTransactionLog(baseName, FsyncPolicy.NEVER, 100, Long.MAX_VALUE)) {
+            List<Expense> expenses = new ArrayList<>();
+            List<Income> incomes = new ArrayList<>();
+            SyntheticLedger ledger = new SyntheticLedger(seed);
+            for (int i = 0; i < rows; i++) {
+                if (ledger.nextIsIncome()) {
+                    incomes.add(ledger.nextIncome());
+                } else {
+                    expenses.add(ledger.nextExpense());
+                }
+                if (expenses.size() + incomes.size() == 4096 || i == rows - 1) {
+                    log.appendBatch(expenses, incomes);
+                    expenses.clear();
+                    incomes.clear();
+                }
+            }
+        }
+    }
+}
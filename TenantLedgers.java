@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+// One ledger per account, each with its own transaction log, writer lock,
+// indexes, ingest pipeline and event stream. Accounts hash to one of a fixed
+// number of shards; a shard's lock guards only its map of loaded accounts,
+// so lookups for different shards never contend, and opening a ledger
+// (replaying its log) holds only that account's lock.
+//
+// A ledger is opened on first use and closed once it has had no request in
+// flight and no stream subscriber for the idle timeout, so memory and
+// threads follow the active accounts rather than all of them.
+//
+// The "default" account keeps the original files in the working directory;
+// the others live under <dir>/<2 hex digits of the account's hash>/<account>.
+// The directory does not depend on the shard count, which can change
+// between runs.
+public class TenantLedgers {
+    public static final String DEFAULT_ACCOUNT = "default";
+    private static final Pattern ACCOUNT = Pattern.compile("[a-z0-9_-]{1,64}");
+
+    // A loaded (or loading) account. The ledger fields are written before
+    // ready and read after it.
+    public static final class Tenant {
+        private final String account;
+        private final Shard shard;
+        private final String cacheOwner;
+        private final Tenant previous;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile boolean ready;
+        private TransactionManager manager;
+        private IngestPipeline ingest;
+        private EventBroadcaster events;
+        private LedgerBackup backups;
+        // Guarded by the shard
+        private int leases;
+        private long lastUsedNanos;
+
+        Tenant(String account, Shard shard, String cacheOwner, Tenant previous) {
+            this.account = account;
+            this.shard = shard;
+            this.cacheOwner = cacheOwner;
+            this.previous = previous;
+        }
+
+        public String account() {
+            return account;
+        }
+
+        public TransactionManager manager() {
+            return manager;
+        }
+
+        public IngestPipeline ingest() {
+            return ingest;
+        }
+
+        public EventBroadcaster events() {
+            return events;
+        }
+
+        public LedgerBackup backups() {
+            return backups;
+        }
+
+        // Names this load of the ledger in the response cache.
+        public String cacheOwner() {
+            return cacheOwner;
+        }
+    }
+
+    private static final class Shard {
+        final Map<String, Tenant> tenants = new HashMap<>();
+        // Evicted tenants still closing, which a new load must wait for
+        final Map<String, Tenant> closing = new HashMap<>();
+    }
+
+    private final Shard[] shards;
+    private final Path directory;
+    private final long idleNanos;
+    private final Consumer<Tenant> onOpen;
+    private final Consumer<Tenant> onClose;
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // onOpen runs once a ledger is loaded, before any request sees it;
+    // onClose after it is closed.
+    public TenantLedgers(int shardCount, Path directory, long idleMillis,
+                         Consumer<Tenant> onOpen, Consumer<Tenant> onClose) {
+        this.shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        this.directory = directory;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.onOpen = onOpen;
+        this.onClose = onClose;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tenant-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleMillis / 2, 30_000));
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Account IDs are case-insensitive; anything that is not a short name
+    // of letters, digits, '-' and '_' is refused rather than used as a path.
+    public static String normalize(String account) {
+        if (account == null || account.isEmpty()) return DEFAULT_ACCOUNT;
+        String normalized = account.toLowerCase(Locale.ROOT);
+        if (!ACCOUNT.matcher(normalized).matches()) {
+            throw new IllegalArgumentException("Invalid account ID: " + account);
+        }
+        return normalized;
+    }
+
+    private Shard shardOf(String account) {
+        return shards[Math.floorMod(account.hashCode(), shards.length)];
+    }
+
+    // The account's ledger, opened if needed. Every acquire must be paired
+    // with a release; a ledger is never closed while it is held.
+    public Tenant acquire(String account) {
+        Shard shard = shardOf(account);
+        Tenant tenant;
+        synchronized (shard) {
+            tenant = shard.tenants.get(account);
+            if (tenant == null) {
+                tenant = new Tenant(account, shard, account + "." + Long.toHexString(loads.incrementAndGet()),
+                        shard.closing.get(account));
+                shard.tenants.put(account, tenant);
+            }
+            tenant.leases++;
+            tenant.lastUsedNanos = System.nanoTime();
+        }
+        try {
+            open(tenant);
+        } catch (RuntimeException | Error e) {
+            release(tenant);
+            throw e;
+        }
+        return tenant;
+    }
+
+    public void release(Tenant tenant) {
+        synchronized (tenant.shard) {
+            tenant.leases--;
+            tenant.lastUsedNanos = System.nanoTime();
+        }
+    }
+
+    private void open(Tenant tenant) {
+        if (tenant.ready) return;
+        synchronized (tenant) {
+            if (tenant.ready) return;
+            if (tenant.previous != null) {
+                awaitClosed(tenant.previous);
+            }
+            TransactionManager manager = openManager(tenant.account);
+            try {
+                tenant.manager = manager;
+                tenant.ingest = new IngestPipeline(manager,
+                        Integer.getInteger("expensetracker.queueCapacity", 10000),
+                        Integer.getInteger("expensetracker.batchSize", 256),
+                        Long.getLong("expensetracker.lingerMicros", 2000));
+                tenant.events = new EventBroadcaster();
+                tenant.backups = new LedgerBackup(manager, LedgerBackup.defaultDirectory().resolve(tenant.account));
+                onOpen.accept(tenant);
+            } catch (RuntimeException e) {
+                if (tenant.events != null) tenant.events.close();
+                if (tenant.ingest != null) tenant.ingest.close();
+                manager.close();
+                throw e;
+            }
+            tenant.ready = true;
+        }
+    }
+
+    private TransactionManager openManager(String account) {
+        if (account.equals(DEFAULT_ACCOUNT)) {
+            return new TransactionManager();
+        }
+        String bucket = String.format("%02x", account.hashCode() & 0xff);
+        Path folder = directory.resolve(bucket);
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error creating " + folder, e);
+        }
+        return new TransactionManager(TransactionManager.openStore(folder.resolve(account).toString()));
+    }
+
+    private static void awaitClosed(Tenant tenant) {
+        try {
+            tenant.closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + tenant.account + " to close");
+        }
+    }
+
+    // Unloads ledgers nobody holds or streams from that have been idle for
+    // the timeout. Closing happens outside the shard lock.
+    void evictIdle() {
+        long now = System.nanoTime();
+        for (Shard shard : shards) {
+            List<Tenant> idle = new ArrayList<>();
+            synchronized (shard) {
+                Iterator<Tenant> tenants = shard.tenants.values().iterator();
+                while (tenants.hasNext()) {
+                    Tenant tenant = tenants.next();
+                    if (tenant.leases == 0 && now - tenant.lastUsedNanos >= idleNanos
+                            && (!tenant.ready || tenant.events.subscriberCount() == 0)) {
+                        tenants.remove();
+                        shard.closing.put(tenant.account, tenant);
+                        idle.add(tenant);
+                    }
+                }
+            }
+            for (Tenant tenant : idle) {
+                close(tenant);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void close(Tenant tenant) {
+        try {
+            synchronized (tenant) {
+                if (tenant.ready) {
+                    tenant.ingest.close();
+                    tenant.events.close();
+                    tenant.manager.close();
+                    onClose.accept(tenant);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error closing ledger " + tenant.account + ": " + e.getMessage());
+        } finally {
+            tenant.closed.countDown();
+            synchronized (tenant.shard) {
+                tenant.shard.closing.remove(tenant.account, tenant);
+            }
+        }
+    }
+
+    // Sum of a statistic over the loaded ledgers, for metrics.
+    public long sum(ToLongFunction<Tenant> statistic) {
+        long total = 0;
+        for (Tenant tenant : loaded()) {
+            total += statistic.applyAsLong(tenant);
+        }
+        return total;
+    }
+
+    private List<Tenant> loaded() {
+        List<Tenant> loaded = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Tenant tenant : shard.tenants.values()) {
+                    if (tenant.ready) loaded.add(tenant);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public int loadedCount() {
+        return loaded().size();
+    }
+
+    public long loadCount() {
+        return loads.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public String statsJson() {
+        StringBuilder perShard = new StringBuilder();
+        int total = 0;
+        for (Shard shard : shards) {
+            int count;
+            synchronized (shard) {
+                count = shard.tenants.size();
+            }
+            total += count;
+            perShard.append(perShard.length() == 0 ? "" : ",").append(count);
+        }
+        return String.format("{\"shards\":%d,\"loaded\":%d,\"loads\":%d,\"evictions\":%d," +
+                "\"idleSeconds\":%d,\"perShard\":[%s]}",
+                shards.length, total, loads.get(), evictions.get(),
+                TimeUnit.NANOSECONDS.toSeconds(idleNanos), perShard);
+    }
+
+    // Closes every ledger; for shutdown.
+    public void close() {
+        evictor.shutdownNow();
+        for (Shard shard : shards) {
+            List<Tenant> all;
+            synchronized (shard) {
+                all = new ArrayList<>(shard.tenants.values());
+                shard.tenants.clear();
+            }
+            for (Tenant tenant : all) {
+                close(tenant);
+            }
+        }
+    }
+
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("expensetracker.tenantDir", "tenants"));
+    }
+}
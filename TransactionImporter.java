@@ -0,0 +1,696 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Bulk import of bank exports. The input, a mapped file or a request body,
+// is cut into chunks at record boundaries; the chunks are parsed in parallel
+// on the common fork-join pool, and all valid rows are appended to the
+// TransactionManager in one commit. Rows that fail to parse are skipped and
+// reported with their line number.
+//
+// CSV: the first line names the columns (any order, case-insensitive).
+//   date and amount are required; description (or name, payee, memo),
+//   category, type (expense / debit, income / credit) and source are
+//   optional. Without a type column a negative amount is an expense and a
+//   positive one an income.
+// OFX: every <STMTTRN> with DTPOSTED and TRNAMT; NAME or MEMO becomes the
+//   description or source, and the sign of TRNAMT decides the kind.
+//
+// Dates are yyyy-MM-dd, yyyy/MM/dd or yyyyMMdd (OFX may add a time and zone).
+// Amounts may carry a currency sign, thousands separators and parentheses
+// for negatives, with at most two decimals.
+public class TransactionImporter {
+    public enum Format { CSV, OFX }
+
+    static final String DEFAULT_CATEGORY = "Other";
+    static final String DEFAULT_SOURCE = "Imported";
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    private static final byte[] OFX_START = "<STMTTRN>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OFX_END = "</STMTTRN>".getBytes(StandardCharsets.US_ASCII);
+
+    public static final class RowError {
+        final long line;
+        final String message;
+
+        RowError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    public static final class Report {
+        Format format;
+        int expenses;
+        int incomes;
+        long errorCount;
+        final List<RowError> errors = new ArrayList<>();
+        long parseNanos;
+        long commitNanos;
+
+        public int rows() {
+            return expenses + incomes;
+        }
+
+        public double rowsPerSecond() {
+            long nanos = parseNanos + commitNanos;
+            return nanos == 0 ? 0 : rows() * 1e9 / nanos;
+        }
+
+        public String toJson() {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(256 + errors.size() * 64);
+                JsonWriter json = new JsonWriter(out);
+                json.raw("{\"format\":").string(format.name().toLowerCase(Locale.ROOT));
+                json.raw(",\"expenses\":").number(expenses);
+                json.raw(",\"incomes\":").number(incomes);
+                json.raw(",\"errors\":").number(errorCount);
+                json.raw(",\"parseMillis\":").number(parseNanos / 1_000_000);
+                json.raw(",\"commitMillis\":").number(commitNanos / 1_000_000);
+                json.raw(",\"rowsPerSecond\":").number(Math.round(rowsPerSecond()));
+                json.raw(",\"errorRows\":[");
+                for (int i = 0; i < errors.size(); i++) {
+                    if (i > 0) json.raw(',');
+                    json.raw("{\"line\":").number(errors.get(i).line);
+                    json.raw(",\"message\":").string(errors.get(i).message).raw('}');
+                }
+                json.raw("]}");
+                json.flush();
+                return out.toString(StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format(
+                    "Imported %d expenses and %d incomes in %d ms (parse %d ms, commit %d ms, %.0f rows/s), %d rows rejected",
+                    expenses, incomes, (parseNanos + commitNanos) / 1_000_000, parseNanos / 1_000_000,
+                    commitNanos / 1_000_000, rowsPerSecond(), errorCount));
+            for (RowError error : errors) {
+                text.append("\n  line ").append(error.line).append(": ").append(error.message);
+            }
+            if (errorCount > errors.size()) {
+                text.append("\n  ... ").append(errorCount - errors.size()).append(" more");
+            }
+            return text.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java TransactionImporter <file> [csv|ofx]");
+            return;
+        }
+        TransactionManager transactionManager = new TransactionManager();
+        try {
+            Path path = Paths.get(args[0]);
+            Format format = args.length > 1 ? parseFormat(args[1]) : formatOf(path);
+            System.out.println(importFile(transactionManager, path, format));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error importing transactions: " + e.getMessage());
+        } finally {
+            transactionManager.close();
+        }
+    }
+
+    public static Format parseFormat(String name) {
+        try {
+            return Format.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown import format " + name);
+        }
+    }
+
+    public static Format formatOf(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".ofx") || name.endsWith(".qfx") ? Format.OFX : Format.CSV;
+    }
+
+    public static Report importFile(TransactionManager transactionManager, Path path, Format format) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is larger than 2 GB");
+            }
+            return importBytes(transactionManager, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), format);
+        }
+    }
+
+    // Parses the whole input, then commits every valid row at once.
+    public static Report importBytes(TransactionManager transactionManager, ByteBuffer input, Format format) {
+        Report report = new Report();
+        report.format = format;
+        long start = System.nanoTime();
+
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        if (format == Format.CSV) {
+            splitCsv(input, tasks);
+        } else {
+            splitOfx(input, tasks);
+        }
+        List<Expense> expenses = new ArrayList<>();
+        List<Income> incomes = new ArrayList<>();
+        try {
+            for (Future<Chunk> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                Chunk chunk = future.get();
+                expenses.addAll(chunk.expenses);
+                incomes.addAll(chunk.incomes);
+                report.errorCount += chunk.errorCount;
+                for (RowError error : chunk.errors) {
+                    if (report.errors.size() < MAX_REPORTED_ERRORS) report.errors.add(error);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
+            }
+            throw new IllegalStateException("Import failed", e.getCause());
+        }
+        report.parseNanos = System.nanoTime() - start;
+
+        long commitStart = System.nanoTime();
+        if (!expenses.isEmpty() || !incomes.isEmpty()) {
+            transactionManager.commitBatch(expenses, incomes);
+        }
+        report.commitNanos = System.nanoTime() - commitStart;
+        report.expenses = expenses.size();
+        report.incomes = incomes.size();
+        return report;
+    }
+
+    // Rows parsed from one chunk, in input order.
+    private static final class Chunk {
+        final List<Expense> expenses = new ArrayList<>();
+        final List<Income> incomes = new ArrayList<>();
+        final List<RowError> errors = new ArrayList<>();
+        long errorCount;
+
+        void error(long line, String message) {
+            errorCount++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new RowError(line, message));
+            }
+        }
+    }
+
+    // ---- CSV ----
+
+    private static final class CsvColumns {
+        int date = -1;
+        int amount = -1;
+        int description = -1;
+        int category = -1;
+        int type = -1;
+        int source = -1;
+        int count;
+    }
+
+    // One sequential pass finds line ends outside quotes; the parsing itself
+    // runs in parallel.
+    private static void splitCsv(ByteBuffer input, List<Callable<Chunk>> tasks) {
+        int limit = input.limit();
+        int position = limit >= 3 && input.get(0) == (byte) 0xEF
+                && input.get(1) == (byte) 0xBB && input.get(2) == (byte) 0xBF ? 3 : 0;
+        int headerEnd = nextLine(input, position, limit);
+        if (headerEnd == position) {
+            throw new IllegalArgumentException("The CSV input is empty");
+        }
+        CsvColumns columns = parseHeader(input, position, headerEnd);
+
+        long line = 1 + countLines(input, 0, headerEnd);
+        int chunkStart = headerEnd;
+        long chunkLine = line;
+        boolean quoted = false;
+        for (int i = headerEnd; i < limit; i++) {
+            byte b = input.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n') {
+                line++;
+                if (!quoted && i + 1 - chunkStart >= CHUNK_BYTES) {
+                    tasks.add(csvTask(input, chunkStart, i + 1, chunkLine, columns));
+                    chunkStart = i + 1;
+                    chunkLine = line;
+                }
+            }
+        }
+        if (chunkStart < limit) {
+            tasks.add(csvTask(input, chunkStart, limit, chunkLine, columns));
+        }
+    }
+
+    private static int nextLine(ByteBuffer input, int position, int limit) {
+        boolean quoted = false;
+        for (int i = position; i < limit; i++) {
+            byte b = input.get(i);
+            if (b == '"') quoted = !quoted;
+            else if (b == '\n' && !quoted) return i + 1;
+        }
+        return limit;
+    }
+
+    private static CsvColumns parseHeader(ByteBuffer input, int start, int end) {
+        List<String> names = new ArrayList<>();
+        CsvCursor cursor = new CsvCursor(input, start, end);
+        while (cursor.nextField()) {
+            names.add(cursor.text().trim().toLowerCase(Locale.ROOT));
+        }
+        CsvColumns columns = new CsvColumns();
+        columns.count = names.size();
+        for (int i = 0; i < names.size(); i++) {
+            switch (names.get(i)) {
+                case "date": case "posted": case "transaction date":
+                    if (columns.date < 0) columns.date = i;
+                    break;
+                case "amount":
+                    columns.amount = i;
+                    break;
+                case "description": case "name": case "payee": case "memo":
+                    if (columns.description < 0) columns.description = i;
+                    break;
+                case "category":
+                    columns.category = i;
+                    break;
+                case "type":
+                    columns.type = i;
+                    break;
+                case "source":
+                    columns.source = i;
+                    break;
+                default:
+                    // Other bank columns (balance, reference, ...) are ignored
+            }
+        }
+        if (columns.date < 0 || columns.amount < 0) {
+            throw new IllegalArgumentException("The CSV header needs date and amount columns");
+        }
+        return columns;
+    }
+
+    private static Callable<Chunk> csvTask(ByteBuffer input, int start, int end, long firstLine, CsvColumns columns) {
+        return () -> {
+            Chunk chunk = new Chunk();
+            String[] fields = new String[columns.count];
+            long line = firstLine;
+            int position = start;
+            while (position < end) {
+                int lineEnd = nextLine(input, position, end);
+                parseCsvRow(input, position, lineEnd, line, columns, fields, chunk);
+                // Quoted fields may span lines
+                for (int i = position; i < lineEnd; i++) {
+                    if (input.get(i) == '\n') line++;
+                }
+                position = lineEnd;
+            }
+            return chunk;
+        };
+    }
+
+    private static void parseCsvRow(ByteBuffer input, int start, int end, long line, CsvColumns columns,
+                                    String[] fields, Chunk chunk) {
+        CsvCursor cursor = new CsvCursor(input, start, end);
+        if (cursor.blank()) return;
+        int count = 0;
+        long cents = 0;
+        int epochDay = 0;
+        try {
+            while (cursor.nextField()) {
+                if (count == columns.date) {
+                    epochDay = parseDate(cursor);
+                } else if (count == columns.amount) {
+                    cents = parseCents(cursor);
+                } else if (count < fields.length && (count == columns.description || count == columns.category
+                        || count == columns.type || count == columns.source)) {
+                    fields[count] = checkText(cursor.text().trim(), "Column " + (count + 1));
+                }
+                count++;
+            }
+            if (count <= Math.max(columns.date, columns.amount)) {
+                throw new IllegalArgumentException("Expected " + columns.count + " columns, found " + count);
+            }
+        } catch (IllegalArgumentException e) {
+            chunk.error(line, e.getMessage());
+            return;
+        }
+        String description = field(fields, columns.description, count);
+        boolean expense;
+        String type = field(fields, columns.type, count);
+        if (type == null || type.isEmpty()) {
+            expense = cents <= 0;
+        } else {
+            switch (type.toLowerCase(Locale.ROOT)) {
+                case "expense": case "debit":
+                    expense = true;
+                    break;
+                case "income": case "credit":
+                    expense = false;
+                    break;
+                default:
+                    chunk.error(line, "Unknown type " + type);
+                    return;
+            }
+        }
+        Date date = ColumnarLedger.toDate(epochDay);
+        long amount = Math.abs(cents);
+        if (expense) {
+            String category = field(fields, columns.category, count);
+            chunk.expenses.add(Expense.ofMinor(description == null ? "" : description, amount, date,
+                    category == null || category.isEmpty() ? DEFAULT_CATEGORY : category));
+        } else {
+            String source = field(fields, columns.source, count);
+            if (source == null || source.isEmpty()) source = description;
+            chunk.incomes.add(Income.ofMinor(source == null || source.isEmpty() ? DEFAULT_SOURCE : source, amount, date));
+        }
+    }
+
+    private static String field(String[] fields, int column, int count) {
+        return column < 0 || column >= count ? null : fields[column];
+    }
+
+    // Walks the fields of one CSV record without copying unless a field is
+    // actually needed as text.
+    private static final class CsvCursor {
+        private final ByteBuffer input;
+        private final int end;
+        private int position;
+        private boolean done;
+        int fieldStart;
+        int fieldEnd;
+        boolean quoted;
+
+        CsvCursor(ByteBuffer input, int start, int end) {
+            this.input = input;
+            this.position = start;
+            // Drop the line terminator
+            int last = end;
+            if (last > start && input.get(last - 1) == '\n') last--;
+            if (last > start && input.get(last - 1) == '\r') last--;
+            this.end = last;
+        }
+
+        boolean blank() {
+            for (int i = position; i < end; i++) {
+                byte b = input.get(i);
+                if (b != ' ' && b != '\t') return false;
+            }
+            return true;
+        }
+
+        boolean nextField() {
+            if (done) return false;
+            quoted = position < end && input.get(position) == '"';
+            if (quoted) {
+                fieldStart = position + 1;
+                int i = fieldStart;
+                while (i < end) {
+                    if (input.get(i) == '"') {
+                        if (i + 1 < end && input.get(i + 1) == '"') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fieldEnd = i;
+                position = i + 1;
+                while (position < end && input.get(position) != ',') position++;
+            } else {
+                fieldStart = position;
+                while (position < end && input.get(position) != ',') position++;
+                fieldEnd = position;
+            }
+            if (position >= end) {
+                done = true;
+            } else {
+                position++;
+            }
+            return true;
+        }
+
+        int length() {
+            return fieldEnd - fieldStart;
+        }
+
+        byte byteAt(int index) {
+            return input.get(fieldStart + index);
+        }
+
+        String text() {
+            byte[] bytes = new byte[fieldEnd - fieldStart];
+            input.get(fieldStart, bytes, 0, bytes.length);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            return quoted ? value.replace("\"\"", "\"") : value;
+        }
+    }
+
+    // ---- OFX ----
+
+    private static void splitOfx(ByteBuffer input, List<Callable<Chunk>> tasks) {
+        int limit = input.limit();
+        int first = indexOf(input, OFX_START, 0, limit);
+        if (first < 0) {
+            return;
+        }
+        long line = 1 + countLines(input, 0, first);
+        int chunkStart = first;
+        while (chunkStart < limit) {
+            int next = indexOf(input, OFX_START, Math.min(limit, chunkStart + CHUNK_BYTES), limit);
+            int chunkEnd = next < 0 ? limit : next;
+            tasks.add(ofxTask(input, chunkStart, chunkEnd, line));
+            line += countLines(input, chunkStart, chunkEnd);
+            chunkStart = chunkEnd;
+        }
+    }
+
+    private static Callable<Chunk> ofxTask(ByteBuffer input, int start, int end, long firstLine) {
+        return () -> {
+            Chunk chunk = new Chunk();
+            long line = firstLine;
+            int position = start;
+            while (true) {
+                int open = indexOf(input, OFX_START, position, end);
+                if (open < 0) break;
+                line += countLines(input, position, open);
+                int body = open + OFX_START.length;
+                int close = indexOf(input, OFX_END, body, end);
+                int next = indexOf(input, OFX_START, body, end);
+                int blockEnd = close >= 0 && (next < 0 || close < next) ? close : (next < 0 ? end : next);
+                parseOfxTransaction(input, body, blockEnd, line, chunk);
+                line += countLines(input, open, blockEnd);
+                position = blockEnd;
+            }
+            return chunk;
+        };
+    }
+
+    private static void parseOfxTransaction(ByteBuffer input, int start, int end, long line, Chunk chunk) {
+        String posted = ofxValue(input, start, end, "<DTPOSTED>");
+        String amountText = ofxValue(input, start, end, "<TRNAMT>");
+        if (posted == null || amountText == null) {
+            chunk.error(line, "Transaction without DTPOSTED or TRNAMT");
+            return;
+        }
+        long cents;
+        int epochDay;
+        try {
+            epochDay = parseDate(posted);
+            cents = parseCents(amountText);
+        } catch (IllegalArgumentException e) {
+            chunk.error(line, e.getMessage());
+            return;
+        }
+        String name = ofxValue(input, start, end, "<NAME>");
+        if (name == null || name.isEmpty()) name = ofxValue(input, start, end, "<MEMO>");
+        try {
+            checkText(name, "NAME");
+        } catch (IllegalArgumentException e) {
+            chunk.error(line, e.getMessage());
+            return;
+        }
+        Date date = ColumnarLedger.toDate(epochDay);
+        long amount = Math.abs(cents);
+        if (cents <= 0) {
+            chunk.expenses.add(Expense.ofMinor(name == null ? "" : name, amount, date, DEFAULT_CATEGORY));
+        } else {
+            chunk.incomes.add(Income.ofMinor(name == null || name.isEmpty() ? DEFAULT_SOURCE : name, amount, date));
+        }
+    }
+
+    // Value of an SGML-style tag: the text up to the next tag or line end.
+    private static String ofxValue(ByteBuffer input, int start, int end, String tag) {
+        int at = indexOf(input, tag.getBytes(StandardCharsets.US_ASCII), start, end);
+        if (at < 0) return null;
+        int valueStart = at + tag.length();
+        int valueEnd = valueStart;
+        while (valueEnd < end) {
+            byte b = input.get(valueEnd);
+            if (b == '<' || b == '\n' || b == '\r') break;
+            valueEnd++;
+        }
+        byte[] bytes = new byte[valueEnd - valueStart];
+        input.get(valueStart, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8).trim()
+                .replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static int indexOf(ByteBuffer input, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (input.get(i + j) != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static long countLines(ByteBuffer input, int from, int to) {
+        long lines = 0;
+        for (int i = from; i < to; i++) {
+            if (input.get(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    // ---- Field parsers ----
+
+    // Text the log cannot hold fails its row, not the whole commit.
+    private static String checkText(String text, String field) {
+        if (!AppendOnlyTransactionLog.fitsRecord(text)) {
+            throw new IllegalArgumentException(field + " is longer than "
+                    + AppendOnlyTransactionLog.MAX_TEXT_BYTES + " bytes");
+        }
+        return text;
+    }
+
+    private static int parseDate(CsvCursor field) {
+        int length = field.length();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = field.byteAt(i);
+        return parseDate(new String(bytes, StandardCharsets.US_ASCII).trim());
+    }
+
+    // yyyy-MM-dd, yyyy/MM/dd or yyyyMMdd with an optional OFX time suffix.
+    static int parseDate(String text) {
+        int year;
+        int month;
+        int day;
+        if (text.length() >= 10 && (text.charAt(4) == '-' || text.charAt(4) == '/')
+                && text.charAt(7) == text.charAt(4)) {
+            year = digits(text, 0, 4);
+            month = digits(text, 5, 7);
+            day = digits(text, 8, 10);
+        } else if (text.length() >= 8) {
+            year = digits(text, 0, 4);
+            month = digits(text, 4, 6);
+            day = digits(text, 6, 8);
+        } else {
+            throw new IllegalArgumentException("Invalid date '" + text + "'");
+        }
+        if (year < 0 || month < 0 || day < 0) {
+            throw new IllegalArgumentException("Invalid date '" + text + "'");
+        }
+        LocalDate date;
+        try {
+            date = LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid date '" + text + "'");
+        }
+        if (date.isBefore(TransactionManager.FIRST_DATE) || date.isAfter(TransactionManager.LAST_DATE)) {
+            throw new IllegalArgumentException("Date '" + text + "' is outside "
+                    + TransactionManager.FIRST_DATE + " to " + TransactionManager.LAST_DATE);
+        }
+        return (int) date.toEpochDay();
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static long parseCents(CsvCursor field) {
+        int length = field.length();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = field.byteAt(i);
+        return parseCents(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    // Signed amount in cents (minor units of Money's currency); accepts
+    // "-1,234.5", "(12.00)", "$3" and "+7.25".
+    static long parseCents(String text) {
+        String value = text.trim();
+        boolean negative = false;
+        int i = 0;
+        int end = value.length();
+        if (end >= 2 && value.charAt(0) == '(' && value.charAt(end - 1) == ')') {
+            negative = true;
+            i = 1;
+            end--;
+        }
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative ^= value.charAt(i) == '-';
+            i++;
+        }
+        if (i < end && (value.charAt(i) == '$' || value.charAt(i) == '\u20AC' || value.charAt(i) == '\u00A3')) {
+            i++;
+        }
+        long units = 0;
+        int fraction = -1;
+        long fractionValue = 0;
+        boolean anyDigit = false;
+        for (; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (fraction < 0) {
+                    units = units * 10 + (c - '0');
+                    if (units > Long.MAX_VALUE / (Money.FACTOR * 10)) {
+                        throw new IllegalArgumentException("Amount too large '" + text + "'");
+                    }
+                } else if (++fraction > Money.SCALE) {
+                    throw new IllegalArgumentException("More than " + Money.SCALE + " decimals in '" + text + "'");
+                } else {
+                    fractionValue = fractionValue * 10 + (c - '0');
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c != ',' || fraction >= 0) {
+                throw new IllegalArgumentException("Invalid amount '" + text + "'");
+            }
+        }
+        if (!anyDigit) {
+            throw new IllegalArgumentException("Invalid amount '" + text + "'");
+        }
+        for (int digits = Math.max(fraction, 0); digits < Money.SCALE; digits++) {
+            fractionValue *= 10;
+        }
+        long cents = units * Money.FACTOR + fractionValue;
+        return negative ? -cents : cents;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+// Streams the transaction list as JSON straight from the ledger columns.
+// Each row is copied into one reused holder, so memory use does not depend
+// on the number of transactions. Everything written comes from one version,
+// so concurrent adds never tear the output.
+public final class TransactionJsonEncoder {
+    private TransactionJsonEncoder() {
+    }
+
+    public static void writeTransactions(TransactionManager transactionManager, OutputStream out) throws IOException {
+        TransactionManager.Version version = transactionManager.version();
+        ColumnarLedger.Version expenses = version.expenses();
+        ColumnarLedger.Version incomes = version.incomes();
+        int expenseCount = expenses.size();
+        int incomeCount = incomes.size();
+        ColumnarLedger.Row row = new ColumnarLedger.Row();
+        JsonWriter json = new JsonWriter(out);
+
+        json.raw("{\"expenses\":[");
+        for (int i = 0; i < expenseCount; i++) {
+            expenses.readRow(i, row);
+            if (i > 0) json.raw(',');
+            json.raw("{\"description\":").utf8String(row.text, 0, row.textLength);
+            json.raw(",\"amount\":").cents(row.cents);
+            json.raw(",\"date\":").date(row.epochDay);
+            json.raw(",\"category\":").utf8String(row.label, 0, row.label.length);
+            json.raw('}');
+        }
+
+        json.raw("],\"incomes\":[");
+        for (int i = 0; i < incomeCount; i++) {
+            incomes.readRow(i, row);
+            if (i > 0) json.raw(',');
+            json.raw("{\"source\":").utf8String(row.label, 0, row.label.length);
+            json.raw(",\"amount\":").cents(row.cents);
+            json.raw(",\"date\":").date(row.epochDay);
+            json.raw('}');
+        }
+        json.raw("]}");
+        json.flush();
+    }
+
+    public static void writePage(TransactionManager transactionManager, TransactionQuery.Page page,
+                                 OutputStream out) throws IOException {
+        // Any version taken after the query contains the page's rows
+        TransactionManager.Version version = transactionManager.version();
+        ColumnarLedger.Row row = new ColumnarLedger.Row();
+        JsonWriter json = new JsonWriter(out);
+
+        json.raw("{\"items\":[");
+        for (int i = 0; i < page.size; i++) {
+            if (i > 0) json.raw(',');
+            if (page.kinds[i] == TransactionQuery.EXPENSE) {
+                version.expenses().readRow(page.rows[i], row);
+                json.raw("{\"type\":\"expense\",\"description\":").utf8String(row.text, 0, row.textLength);
+                json.raw(",\"amount\":").cents(row.cents);
+                json.raw(",\"date\":").date(row.epochDay);
+                json.raw(",\"category\":").utf8String(row.label, 0, row.label.length);
+            } else {
+                version.incomes().readRow(page.rows[i], row);
+                json.raw("{\"type\":\"income\",\"source\":").utf8String(row.label, 0, row.label.length);
+                json.raw(",\"amount\":").cents(row.cents);
+                json.raw(",\"date\":").date(row.epochDay);
+            }
+            json.raw('}');
+        }
+        json.raw("],\"nextCursor\":");
+        if (page.nextCursor == null) {
+            json.raw("null");
+        } else {
+            json.string(page.nextCursor);
+        }
+        json.raw('}');
+        json.flush();
+    }
+
+    // {"lastId":n,"alerts":[...]}; lastId is what the next ?since= should be.
+    public static void writeAlerts(List<AnomalyDetector.Alert> alerts, long lastId, OutputStream out)
+            throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.raw("{\"lastId\":").number(lastId).raw(",\"alerts\":[");
+        for (int i = 0; i < alerts.size(); i++) {
+            if (i > 0) json.raw(',');
+            writeAlert(alerts.get(i), json);
+        }
+        json.raw("]}");
+        json.flush();
+    }
+
+    public static void writeAlert(AnomalyDetector.Alert alert, JsonWriter json) throws IOException {
+        json.raw("{\"id\":").number(alert.id);
+        json.raw(",\"kind\":").string(alert.kind.name().toLowerCase());
+        json.raw(",\"date\":").date(alert.epochDay);
+        json.raw(",\"description\":").string(alert.description);
+        json.raw(",\"category\":").string(alert.category);
+        json.raw(",\"amount\":").cents(alert.amountCents);
+        json.raw(",\"detail\":").string(alert.detail);
+        json.raw('}');
+    }
+
+    // {"period","from","to","totalIncome","totalExpenses","savings"}; to is
+    // exclusive.
+    public static void writePeriodSummary(SummaryPeriod period, MonthlyAggregates.Totals totals, OutputStream out)
+            throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.raw("{\"period\":").string(period.getName());
+        json.raw(",\"from\":").date(period.fromDay());
+        json.raw(",\"to\":").date(period.toDay());
+        json.raw(",\"totalIncome\":").cents(totals.income);
+        json.raw(",\"totalExpenses\":").cents(totals.expenses);
+        json.raw(",\"savings\":").cents(totals.income - totals.expenses);
+        json.raw('}');
+        json.flush();
+    }
+
+    // {"from","to","groupBy","rows","periods":[...],"income":[...],"expenses":[...],
+    // "savings":[...],"cumulativeSavings":[...],"categories":[{"category","total",
+    // "amounts":[...]}]}; every array has one entry per period.
+    public static void writeReport(ReportEngine.Report report, OutputStream out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.raw("{\"from\":").date((int) report.from.toEpochDay());
+        json.raw(",\"to\":").date((int) report.to.toEpochDay());
+        json.raw(",\"groupBy\":").string(report.groupBy.name().toLowerCase());
+        json.raw(",\"rows\":").number(report.rows);
+        json.raw(",\"periods\":[");
+        for (int i = 0; i < report.periodCount(); i++) {
+            if (i > 0) json.raw(',');
+            json.string(report.periods[i]);
+        }
+        json.raw("],\"income\":");
+        writeAmounts(report.income, json);
+        json.raw(",\"expenses\":");
+        writeAmounts(report.expenses, json);
+        long[] savings = new long[report.periodCount()];
+        long[] cumulative = new long[report.periodCount()];
+        for (int i = 0; i < savings.length; i++) {
+            savings[i] = report.savings(i);
+            cumulative[i] = i == 0 ? savings[i] : Math.addExact(cumulative[i - 1], savings[i]);
+        }
+        json.raw(",\"savings\":");
+        writeAmounts(savings, json);
+        json.raw(",\"cumulativeSavings\":");
+        writeAmounts(cumulative, json);
+        json.raw(",\"categories\":[");
+        for (int i = 0; i < report.categories.size(); i++) {
+            if (i > 0) json.raw(',');
+            json.raw("{\"category\":").string(report.categories.get(i));
+            json.raw(",\"total\":").cents(report.categoryTotals.get(i));
+            json.raw(",\"amounts\":");
+            writeAmounts(report.categoryExpenses.get(i), json);
+            json.raw('}');
+        }
+        json.raw("]}");
+        json.flush();
+    }
+
+    private static void writeAmounts(long[] cents, JsonWriter json) throws IOException {
+        json.raw('[');
+        for (int i = 0; i < cents.length; i++) {
+            if (i > 0) json.raw(',');
+            json.cents(cents[i]);
+        }
+        json.raw(']');
+    }
+
+    public static void writeCategorySummary(CategoryRollups.Summary summary, OutputStream out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.raw('{');
+        writeRollup(summary.total, json);
+        json.raw(",\"categoryCount\":").number(summary.categoryCount);
+        json.raw(",\"categories\":[");
+        for (int i = 0; i < summary.top.size(); i++) {
+            CategoryRollups.Category category = summary.top.get(i);
+            if (i > 0) json.raw(',');
+            json.raw("{\"category\":").string(category.name).raw(',');
+            writeRollup(category.rollup, json);
+            json.raw('}');
+        }
+        json.raw("]}");
+        json.flush();
+    }
+
+    private static void writeRollup(CategoryRollups.Rollup rollup, JsonWriter json) throws IOException {
+        json.raw("\"count\":").number(rollup.count);
+        json.raw(",\"total\":").cents(rollup.sum);
+        if (rollup.count > 0) {
+            json.raw(",\"min\":").cents(rollup.min);
+            json.raw(",\"max\":").cents(rollup.max);
+            json.raw(",\"average\":").cents(Math.round((double) rollup.sum / rollup.count));
+            json.raw(",\"p50\":").cents(rollup.quantile(0.50));
+            json.raw(",\"p95\":").cents(rollup.quantile(0.95));
+            json.raw(",\"p99\":").cents(rollup.quantile(0.99));
+        }
+    }
+
+    // One commit as a live update: the new transactions, unless there are
+    // more than maxRows, and the totals after the commit.
+    public static void writeCommit(List<Expense> expenses, List<Income> incomes, TransactionManager.Version version,
+                                   int maxRows, OutputStream out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.raw("{\"version\":").number(version.getNumber());
+        json.raw(",\"totalIncome\":").cents(version.getTotalIncomeCents());
+        json.raw(",\"totalExpenses\":").cents(version.getTotalExpenseCents());
+        json.raw(",\"savings\":").cents(version.getSavingsCents());
+        if (expenses.size() + incomes.size() <= maxRows) {
+            json.raw(",\"expenses\":[");
+            for (int i = 0; i < expenses.size(); i++) {
+                Expense expense = expenses.get(i);
+                if (i > 0) json.raw(',');
+                json.raw("{\"description\":").string(expense.getDescription() == null ? "" : expense.getDescription());
+                json.raw(",\"amount\":").cents(expense.getAmountMinor());
+                json.raw(",\"date\":").date(ColumnarLedger.toEpochDay(expense.getDate()));
+                json.raw(",\"category\":").string(expense.getCategory());
+                json.raw('}');
+            }
+            json.raw("],\"incomes\":[");
+            for (int i = 0; i < incomes.size(); i++) {
+                Income income = incomes.get(i);
+                if (i > 0) json.raw(',');
+                json.raw("{\"source\":").string(income.getSource());
+                json.raw(",\"amount\":").cents(income.getAmountMinor());
+                json.raw(",\"date\":").date(ColumnarLedger.toEpochDay(income.getDate()));
+                json.raw('}');
+            }
+            json.raw(']');
+        }
+        json.raw('}');
+        json.flush();
+    }
+}
@@ -0,0 +1,451 @@
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+// Reads the body of POST /api/transactions in one pass over its bytes: one
+// transaction object, or an array of them, such as
+//
+//   {"type":"expense","description":"Lunch","amount":12.5,"date":"2024-03-01","category":"Food"}
+//   {"type":"income","source":"Salary","amount":"2000.00","date":"2024-03-01"}
+//
+// Keys are decoded into a reused char buffer and compared in place, amounts
+// (a JSON number or a string holding one) go straight to cents and dates
+// straight to epoch days, so the only Strings made are the description,
+// category and source themselves. Every object is read into the same Record
+// and handed to the handler before the next one is read. Unknown keys are
+// skipped, whatever their value.
+//
+// Malformed JSON and missing or invalid fields (including text too long for
+// the log and dates outside the ledger's range) throw IllegalArgumentException
+// naming the transaction and the byte offset. Not thread-safe; the server
+// keeps one reader per thread.
+public final class TransactionJsonReader {
+    private static final int MAX_DEPTH = 64;
+
+    // The fields of one transaction object.
+    public static final class Record {
+        boolean expense;
+        boolean hasType;
+        long amountCents;
+        boolean hasAmount;
+        int epochDay;
+        boolean hasDate;
+        String description;
+        String category;
+        String source;
+
+        void reset() {
+            hasType = false;
+            hasAmount = false;
+            hasDate = false;
+            description = null;
+            category = null;
+            source = null;
+        }
+
+        public boolean isExpense() {
+            return expense;
+        }
+
+        public Expense toExpense() {
+            return Expense.ofMinor(description == null ? "" : description, amountCents,
+                    ColumnarLedger.toDate(epochDay), category == null ? TransactionImporter.DEFAULT_CATEGORY : category);
+        }
+
+        // The page's form sends an income's source as its description
+        public Income toIncome() {
+            String name = source != null ? source : description != null ? description : TransactionImporter.DEFAULT_SOURCE;
+            return Income.ofMinor(name, amountCents, ColumnarLedger.toDate(epochDay));
+        }
+    }
+
+    public interface Handler {
+        void transaction(Record record);
+    }
+
+    private final Record record = new Record();
+    private char[] chars = new char[64];
+    private int charCount;
+    private byte[] in;
+    private int position;
+    private int count;
+
+    // Reads every transaction in the body and returns how many there were.
+    public int read(byte[] body, Handler handler) {
+        in = body;
+        position = 0;
+        count = 0;
+        skipWhitespace();
+        if (peek() == '[') {
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+            } else {
+                while (true) {
+                    readTransaction(handler);
+                    skipWhitespace();
+                    byte next = next();
+                    if (next == ']') break;
+                    if (next != ',') throw error("Expected , or ]");
+                    skipWhitespace();
+                }
+            }
+        } else {
+            readTransaction(handler);
+        }
+        skipWhitespace();
+        if (position < in.length) {
+            throw new IllegalArgumentException("Unexpected data after the JSON value at byte " + position);
+        }
+        in = null;
+        return count;
+    }
+
+    private void readTransaction(Handler handler) {
+        if (next() != '{') throw error("Expected a transaction object");
+        record.reset();
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+        } else {
+            while (true) {
+                if (next() != '"') throw error("Expected a key");
+                readString();
+                skipWhitespace();
+                if (next() != ':') throw error("Expected :");
+                skipWhitespace();
+                readField();
+                skipWhitespace();
+                byte next = next();
+                if (next == '}') break;
+                if (next != ',') throw error("Expected , or }");
+                skipWhitespace();
+            }
+        }
+        if (!record.hasType) throw error("Missing type");
+        if (!record.hasAmount) throw error("Missing amount");
+        if (!record.hasDate) throw error("Missing date");
+        handler.transaction(record);
+        count++;
+    }
+
+    // Reads the value of the key now in chars.
+    private void readField() {
+        if (isKey("type")) {
+            readStringValue("type");
+            if (isKey("expense")) {
+                record.expense = true;
+            } else if (isKey("income")) {
+                record.expense = false;
+            } else {
+                throw error("type must be expense or income");
+            }
+            record.hasType = true;
+        } else if (isKey("amount")) {
+            record.amountCents = readAmount();
+            record.hasAmount = true;
+        } else if (isKey("date")) {
+            readStringValue("date");
+            record.epochDay = parseDate();
+            record.hasDate = true;
+        } else if (isKey("description")) {
+            record.description = readOptionalString("description");
+        } else if (isKey("category")) {
+            record.category = readOptionalString("category");
+        } else if (isKey("source")) {
+            record.source = readOptionalString("source");
+        } else {
+            skipValue(0);
+        }
+    }
+
+    private boolean isKey(String key) {
+        if (charCount != key.length()) return false;
+        for (int i = 0; i < charCount; i++) {
+            if (chars[i] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void readStringValue(String key) {
+        if (next() != '"') throw error(key + " must be a string");
+        readString();
+    }
+
+    private String readOptionalString(String key) {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        readStringValue(key);
+        String value = new String(chars, 0, charCount);
+        if (!AppendOnlyTransactionLog.fitsRecord(value)) {
+            throw error(key + " longer than " + AppendOnlyTransactionLog.MAX_TEXT_BYTES + " bytes");
+        }
+        return value;
+    }
+
+    // A number, or a string holding one; either way the digits are read
+    // into chars and converted to cents exactly.
+    private long readAmount() {
+        if (peek() == '"') {
+            position++;
+            readString();
+        } else {
+            charCount = 0;
+            while (position < in.length) {
+                byte b = in[position];
+                if ((b < '0' || b > '9') && b != '-' && b != '+' && b != '.' && b != 'e' && b != 'E') break;
+                append((char) b);
+                position++;
+            }
+            if (charCount == 0) throw error("amount must be a number");
+        }
+        return parseCents();
+    }
+
+    private long parseCents() {
+        int i = 0;
+        boolean negative = false;
+        if (i < charCount && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        long units = 0;
+        long fractionValue = 0;
+        int fraction = -1;
+        boolean anyDigit = false;
+        for (; i < charCount; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (fraction < 0) {
+                    units = units * 10 + (c - '0');
+                    if (units > Long.MAX_VALUE / (Money.FACTOR * 10)) throw error("amount too large");
+                } else if (++fraction > Money.SCALE) {
+                    throw error("More than " + Money.SCALE + " decimals in amount");
+                } else {
+                    fractionValue = fractionValue * 10 + (c - '0');
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c == 'e' || c == 'E') {
+                // Exponents are rare enough to take the slow path
+                try {
+                    return Money.parse(new String(chars, 0, charCount));
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    throw error("Invalid amount");
+                }
+            } else {
+                throw error("Invalid amount");
+            }
+        }
+        if (!anyDigit) throw error("Invalid amount");
+        for (int digits = Math.max(fraction, 0); digits < Money.SCALE; digits++) {
+            fractionValue *= 10;
+        }
+        long cents = units * Money.FACTOR + fractionValue;
+        return negative ? -cents : cents;
+    }
+
+    // yyyy-MM-dd, from TransactionManager.FIRST_DATE to LAST_DATE
+    private int parseDate() {
+        if (charCount != 10 || chars[4] != '-' || chars[7] != '-') {
+            throw error("date must be yyyy-MM-dd");
+        }
+        int year = digits(0, 4);
+        int month = digits(5, 7);
+        int day = digits(8, 10);
+        LocalDate date;
+        try {
+            date = LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            throw error("Invalid date");
+        }
+        if (date.isBefore(TransactionManager.FIRST_DATE) || date.isAfter(TransactionManager.LAST_DATE)) {
+            throw error("date must be between " + TransactionManager.FIRST_DATE + " and " + TransactionManager.LAST_DATE);
+        }
+        return (int) date.toEpochDay();
+    }
+
+    private int digits(int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9') throw error("date must be yyyy-MM-dd");
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Decodes a string whose opening quote has been read into chars,
+    // resolving escapes and UTF-8.
+    private void readString() {
+        charCount = 0;
+        while (true) {
+            if (position >= in.length) throw error("Unterminated string");
+            int b = in[position++] & 0xff;
+            if (b == '"') return;
+            if (b == '\\') {
+                readEscape();
+            } else if (b < 0x20) {
+                throw error("Control character in string");
+            } else if (b < 0x80) {
+                append((char) b);
+            } else {
+                readUtf8(b);
+            }
+        }
+    }
+
+    private void readEscape() {
+        if (position >= in.length) throw error("Unterminated string");
+        byte b = in[position++];
+        switch (b) {
+            case '"':
+            case '\\':
+            case '/':
+                append((char) b);
+                break;
+            case 'b':
+                append('\b');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case 'n':
+                append('\n');
+                break;
+            case 'r':
+                append('\r');
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'u':
+                if (position + 4 > in.length) throw error("Invalid \\u escape");
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(in[position++], 16);
+                    if (digit < 0) throw error("Invalid \\u escape");
+                    value = value << 4 | digit;
+                }
+                append((char) value);
+                break;
+            default:
+                throw error("Invalid escape");
+        }
+    }
+
+    private void readUtf8(int lead) {
+        int extra;
+        int value;
+        if (lead >= 0xf0 && lead < 0xf8) {
+            extra = 3;
+            value = lead & 0x07;
+        } else if (lead >= 0xe0) {
+            extra = 2;
+            value = lead & 0x0f;
+        } else if (lead >= 0xc0) {
+            extra = 1;
+            value = lead & 0x1f;
+        } else {
+            throw error("Invalid UTF-8");
+        }
+        if (position + extra > in.length) throw error("Invalid UTF-8");
+        for (int i = 0; i < extra; i++) {
+            int b = in[position++] & 0xff;
+            if ((b & 0xc0) != 0x80) throw error("Invalid UTF-8");
+            value = value << 6 | (b & 0x3f);
+        }
+        if (value > Character.MAX_CODE_POINT) throw error("Invalid UTF-8");
+        if (value >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            append(Character.highSurrogate(value));
+            append(Character.lowSurrogate(value));
+        } else {
+            append((char) value);
+        }
+    }
+
+    private void append(char c) {
+        if (charCount == chars.length) {
+            chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+        chars[charCount++] = c;
+    }
+
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) throw error("Nested too deeply");
+        byte b = peek();
+        if (b == '"') {
+            position++;
+            readString();
+        } else if (b == '{' || b == '[') {
+            byte close = b == '{' ? (byte) '}' : (byte) ']';
+            position++;
+            skipWhitespace();
+            if (peek() == close) {
+                position++;
+                return;
+            }
+            while (true) {
+                if (b == '{') {
+                    if (next() != '"') throw error("Expected a key");
+                    readString();
+                    skipWhitespace();
+                    if (next() != ':') throw error("Expected :");
+                    skipWhitespace();
+                }
+                skipValue(depth + 1);
+                skipWhitespace();
+                byte next = next();
+                if (next == close) return;
+                if (next != ',') throw error("Expected , or " + (char) close);
+                skipWhitespace();
+            }
+        } else if (b == 't') {
+            expectLiteral("true");
+        } else if (b == 'f') {
+            expectLiteral("false");
+        } else if (b == 'n') {
+            expectLiteral("null");
+        } else {
+            int start = position;
+            while (position < in.length && "+-.0123456789eE".indexOf(in[position]) >= 0) {
+                position++;
+            }
+            if (position == start) throw error("Unexpected character");
+        }
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) throw error("Unexpected character");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < in.length) {
+            byte b = in[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') return;
+            position++;
+        }
+    }
+
+    private byte peek() {
+        if (position >= in.length) throw error("Unexpected end of body");
+        return in[position];
+    }
+
+    private byte next() {
+        byte b = peek();
+        position++;
+        return b;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Transaction " + (count + 1) + ": " + message
+                + " at byte " + Math.max(0, position - 1));
+    }
+}
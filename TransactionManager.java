@@ -1,112 +1,494 @@
-import java.util.ArrayList;
 import java.util.List;
+import java.time.LocalDate;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.*;
 import java.text.SimpleDateFormat;
 
+// Writers (add, commitBatch) serialize on this object. Readers take the
+// current Version, an immutable view of both ledgers and their totals, and
+// never lock. Paged queries and category summaries extend their indexes and
+// rollups from the current version under locks of their own, so however
+// many rows the first one has to take in, commits carry on meanwhile.
+//
+// Transactions dated in the last expensetracker.hotMonths months (default 3)
+// stay on-heap; full chunks of older rows are sealed off-heap by a
+// background thread (see ColumnarLedger). A negative value keeps every row
+// on-heap.
 public class TransactionManager {
-    private List<Expense> expenses;
-    private List<Income> incomes;
-    private static final String DATA_FILE = "transactions.dat";
+    private final ColumnarLedger expenses = new ColumnarLedger(true);
+    private final ColumnarLedger incomes = new ColumnarLedger(false);
+    private final TransactionStore store;
+    private final MonthlyAggregates aggregates = new MonthlyAggregates();
+    private final CategoryRollups categoryRollups = new CategoryRollups();
+    // Guards the ledgers' sorted indexes; see query()
+    private final Object queryLock = new Object();
+    private final AnomalyDetector anomalies = new AnomalyDetector();
+    // Exact running totals in cents (minor units, see Money)
+    private long totalExpenses;
+    private long totalIncome;
+    // Sum of |amount| over every row. Each total the ledger keeps (day,
+    // month and category sums, savings) is bounded by it, so holding it
+    // under MAX_MAGNITUDE means none of them can overflow.
+    private long magnitude;
+    static final long MAX_MAGNITUDE = Long.MAX_VALUE / 4;
+    // The dates input accepts; anything outside is a typo, and the day
+    // totals are sized to the span of dates in use
+    static final LocalDate FIRST_DATE = LocalDate.of(1900, 1, 1);
+    static final LocalDate LAST_DATE = LocalDate.of(2199, 12, 31);
+    private final AtomicReference<Version> current = new AtomicReference<>();
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+    private static final String DATA_FILE = "transactions";
+    private static final String LEGACY_DATA_FILE = "transactions.dat";
+    private static final Metrics.Counter COMMITS = Metrics.counter("expensetracker_ledger_commits_total",
+            "Versions published since startup, over all ledgers");
+    // One thread seals for every ledger in the process
+    private static final ExecutorService SEALER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-sealer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int hotMonths = Integer.getInteger("expensetracker.hotMonths", 3);
+    private final AtomicBoolean sealing = new AtomicBoolean();
+    // What the last sealing run saw, so commits that cannot change its
+    // outcome do not schedule another
+    private int checkedChunks = -1;
+    private int checkedCutoff;
 
     public TransactionManager() {
-        expenses = new ArrayList<>();
-        incomes = new ArrayList<>();
+        this(openDefaultStore());
+    }
+
+    // Both ledgers and the totals as of one committed batch.
+    public static final class Version {
+        private final long number;
+        private final ColumnarLedger.Version expenses;
+        private final ColumnarLedger.Version incomes;
+        private final long totalExpenses;
+        private final long totalIncome;
+
+        Version(long number, ColumnarLedger.Version expenses, ColumnarLedger.Version incomes,
+                long totalExpenses, long totalIncome) {
+            this.number = number;
+            this.expenses = expenses;
+            this.incomes = incomes;
+            this.totalExpenses = totalExpenses;
+            this.totalIncome = totalIncome;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public ColumnarLedger.Version expenses() {
+            return expenses;
+        }
+
+        public ColumnarLedger.Version incomes() {
+            return incomes;
+        }
+
+        public long getTotalExpenseCents() {
+            return totalExpenses;
+        }
+
+        public long getTotalIncomeCents() {
+            return totalIncome;
+        }
+
+        public long getSavingsCents() {
+            return Math.subtractExact(totalIncome, totalExpenses);
+        }
+
+        public double getTotalExpenses() {
+            return Money.toMajor(totalExpenses);
+        }
+
+        public double getTotalIncome() {
+            return Money.toMajor(totalIncome);
+        }
+
+        public double getSavings() {
+            return Money.toMajor(getSavingsCents());
+        }
+    }
+
+    // Told about every commit, in commit order, with the transactions it
+    // added and the version that first contains them. Runs under the writer
+    // lock, so it must not block.
+    public interface CommitListener {
+        void committed(List<Expense> expenses, List<Income> incomes, Version version);
+    }
+
+    public TransactionManager(TransactionStore store) {
+        this.store = store;
         loadTransactions();
+        publish();
+        scheduleSealing();
+    }
+
+    private static TransactionStore openDefaultStore() {
+        try {
+            LegacyDataMigrator.migrateIfNeeded(LEGACY_DATA_FILE, DATA_FILE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening transaction log", e);
+        }
+        return openStore(DATA_FILE);
     }
 
-    public void addExpense(Expense expense) {
-        expenses.add(expense);
-        saveTransactions();
+    // A transaction log under baseName with the configured durability.
+    static TransactionStore openStore(String baseName) {
+        try {
+            return new AppendOnlyTransactionLog(baseName,
+                    FsyncPolicy.fromProperty(System.getProperty("expensetracker.fsync")),
+                    Long.getLong("expensetracker.fsyncIntervalMs", 100),
+                    Long.getLong("expensetracker.compactBytes", 64L << 20));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening transaction log", e);
+        }
     }
 
-    public void addIncome(Income income) {
-        incomes.add(income);
-        saveTransactions();
+    public synchronized void addExpense(Expense expense) {
+        checkBatch(List.of(expense), List.of());
+        try {
+            store.appendExpense(expense);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving transaction", e);
+        }
+        recordExpense(expense);
+        anomalies.observe(expense);
+        publish();
+        scheduleSealing();
+        notifyCommitted(List.of(expense), List.of());
     }
 
-    public double calculateTotalExpenses() {
-        double total = 0;
-        for (Expense expense : expenses) {
-            total += expense.getAmount();
+    public synchronized void addIncome(Income income) {
+        checkBatch(List.of(), List.of(income));
+        try {
+            store.appendIncome(income);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving transaction", e);
         }
-        return total;
+        recordIncome(income);
+        publish();
+        scheduleSealing();
+        notifyCommitted(List.of(), List.of(income));
     }
 
-    public double calculateTotalIncome() {
-        double total = 0;
-        for (Income income : incomes) {
-            total += income.getAmount();
+    // Persists and publishes a batch of transactions as one unit: one store
+    // write, then one new version.
+    public void commitBatch(List<Expense> newExpenses, List<Income> newIncomes) {
+        commitBatch(newExpenses, newIncomes, false);
+    }
+
+    // As above; a durable batch is on disk when this returns (see
+    // TransactionStore.appendBatch).
+    public synchronized void commitBatch(List<Expense> newExpenses, List<Income> newIncomes, boolean durable) {
+        checkBatch(newExpenses, newIncomes);
+        try {
+            store.appendBatch(newExpenses, newIncomes, durable);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving transactions", e);
+        }
+        for (Expense expense : newExpenses) {
+            recordExpense(expense);
+            anomalies.observe(expense);
+        }
+        for (Income income : newIncomes) {
+            recordIncome(income);
         }
-        return total;
+        publish();
+        scheduleSealing();
+        notifyCommitted(newExpenses, newIncomes);
     }
 
-    public double calculateSavings() {
-        return calculateTotalIncome() - calculateTotalExpenses();
+    // Rejects, before anything is written, a batch with a date outside
+    // FIRST_DATE..LAST_DATE or one that would take the totals past
+    // MAX_MAGNITUDE.
+    private void checkBatch(List<Expense> newExpenses, List<Income> newIncomes) {
+        long sum = magnitude;
+        for (Expense expense : newExpenses) {
+            String what = "Expense '" + expense.getDescription() + "'";
+            checkDate(expense.getDate(), what);
+            sum = addMagnitude(sum, expense.getAmountMinor(), what);
+        }
+        for (Income income : newIncomes) {
+            String what = "Income '" + income.getSource() + "'";
+            checkDate(income.getDate(), what);
+            sum = addMagnitude(sum, income.getAmountMinor(), what);
+        }
     }
 
-    public double calculateMonthlyExpenses(int month, int year) {
-        double total = 0;
-        for (Expense expense : expenses) {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(expense.getDate());
-            if (cal.get(Calendar.MONTH) == month && cal.get(Calendar.YEAR) == year) {
-                total += expense.getAmount();
-            }
+    private static void checkDate(Date date, String what) {
+        LocalDate day = LocalDate.ofEpochDay(ColumnarLedger.toEpochDay(date));
+        if (day.isBefore(FIRST_DATE) || day.isAfter(LAST_DATE)) {
+            throw new IllegalArgumentException(what + " is dated " + day + ", outside "
+                    + FIRST_DATE + " to " + LAST_DATE);
         }
-        return total;
     }
 
-    public double calculateMonthlyIncome(int month, int year) {
-        double total = 0;
-        for (Income income : incomes) {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(income.getDate());
-            if (cal.get(Calendar.MONTH) == month && cal.get(Calendar.YEAR) == year) {
-                total += income.getAmount();
+    private static long addMagnitude(long sum, long amount, String what) {
+        if (!fits(sum, amount)) {
+            throw new IllegalArgumentException(what + " of " + Money.format(amount)
+                    + " would overflow the ledger totals");
+        }
+        return sum + Math.abs(amount);
+    }
+
+    private static boolean fits(long sum, long amount) {
+        return amount != Long.MIN_VALUE && Math.abs(amount) <= MAX_MAGNITUDE - sum;
+    }
+
+    private void publish() {
+        Version previous = current.get();
+        current.set(new Version(previous == null ? 0 : previous.number + 1,
+                expenses.publish(), incomes.publish(), totalExpenses, totalIncome));
+    }
+
+    // Called under the lock after a commit: starts a sealing run once a chunk
+    // has filled up or the hot window has moved on a day.
+    private void scheduleSealing() {
+        if (hotMonths < 0) return;
+        int chunks = expenses.fullChunks() + incomes.fullChunks();
+        int cutoff = cutoffDay();
+        if ((chunks == checkedChunks && cutoff == checkedCutoff) || !sealing.compareAndSet(false, true)) return;
+        checkedChunks = chunks;
+        checkedCutoff = cutoff;
+        SEALER.execute(() -> {
+            try {
+                sealColdRows();
+            } catch (RuntimeException e) {
+                System.err.println("Error sealing ledger: " + e.getMessage());
+            } finally {
+                sealing.set(false);
             }
+        });
+    }
+
+    private int cutoffDay() {
+        return (int) LocalDate.now().minusMonths(hotMonths).toEpochDay();
+    }
+
+    // Seals the full chunks dated before the hot window and republishes the
+    // current version on them, under the same number since no transaction
+    // changed. The copying happens outside the lock; only the swap holds it.
+    void sealColdRows() {
+        int cutoff = cutoffDay();
+        Version rows = current.get();
+        List<ColumnarLedger.Segment> expenseSegments = expenses.seal(rows.expenses, cutoff);
+        List<ColumnarLedger.Segment> incomeSegments = incomes.seal(rows.incomes, cutoff);
+        if (expenseSegments.isEmpty() && incomeSegments.isEmpty()) return;
+        synchronized (this) {
+            expenses.install(expenseSegments);
+            incomes.install(incomeSegments);
+            current.set(new Version(current.get().number, expenses.publish(), incomes.publish(),
+                    totalExpenses, totalIncome));
+        }
+    }
+
+    boolean isSealing() {
+        return sealing.get();
+    }
+
+    // Rows and direct-buffer bytes in sealed chunks.
+    public long sealedRows() {
+        return expenses.sealedRows() + incomes.sealedRows();
+    }
+
+    public long sealedBytes() {
+        return expenses.sealedBytes() + incomes.sealedBytes();
+    }
+
+    // Alerts on committed expenses; replayed history is not judged.
+    public AnomalyDetector anomalies() {
+        return anomalies;
+    }
+
+    public void addCommitListener(CommitListener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyCommitted(List<Expense> newExpenses, List<Income> newIncomes) {
+        COMMITS.increment();
+        Version version = current.get();
+        for (CommitListener listener : listeners) {
+            listener.committed(newExpenses, newIncomes, version);
         }
-        return total;
+    }
+
+    // The latest committed state. Everything read from one version is
+    // mutually consistent.
+    public Version version() {
+        return current.get();
+    }
+
+    private void recordExpense(Expense expense) {
+        expenses.append(expense.getAmountMinor(), expense.getDate(), expense.getCategory(), expense.getDescription());
+        totalExpenses = Math.addExact(totalExpenses, expense.getAmountMinor());
+        magnitude += Math.abs(expense.getAmountMinor());
+        aggregates.addExpense(expense.getDate(), expense.getAmountMinor());
+    }
+
+    private void recordIncome(Income income) {
+        incomes.append(income.getAmountMinor(), income.getDate(), income.getSource(), null);
+        totalIncome = Math.addExact(totalIncome, income.getAmountMinor());
+        magnitude += Math.abs(income.getAmountMinor());
+        aggregates.addIncome(income.getDate(), income.getAmountMinor());
+    }
+
+    public double calculateTotalExpenses() {
+        return current.get().getTotalExpenses();
+    }
+
+    public double calculateTotalIncome() {
+        return current.get().getTotalIncome();
+    }
+
+    public double calculateSavings() {
+        return current.get().getSavings();
+    }
+
+    public double calculateMonthlyExpenses(int month, int year) {
+        return aggregates.monthlyExpenses(month, year);
+    }
+
+    public double calculateMonthlyIncome(int month, int year) {
+        return aggregates.monthlyIncome(month, year);
     }
 
     public double calculateMonthlySavings(int month, int year) {
-        return calculateMonthlyIncome(month, year) - calculateMonthlyExpenses(month, year);
+        return aggregates.monthlySavings(month, year);
+    }
+
+    public double calculateDailyExpenses(int day, int month, int year) {
+        return aggregates.dailyExpenses(day, month, year);
+    }
+
+    public double calculateDailyIncome(int day, int month, int year) {
+        return aggregates.dailyIncome(day, month, year);
+    }
+
+    // Any range of days in O(log D), through the day totals in aggregates.
+    // The range must pass SummaryPeriod.checkRange.
+    public double calculateExpensesBetween(LocalDate from, LocalDate to) {
+        SummaryPeriod.checkRange(from, to);
+        return Money.toMajor(aggregates.between((int) from.toEpochDay(), (int) to.toEpochDay()).expenses);
+    }
+
+    public double calculateIncomeBetween(LocalDate from, LocalDate to) {
+        SummaryPeriod.checkRange(from, to);
+        return Money.toMajor(aggregates.between((int) from.toEpochDay(), (int) to.toEpochDay()).income);
+    }
+
+    MonthlyAggregates.Totals periodTotals(SummaryPeriod period) {
+        return aggregates.between(period.fromDay(), period.toDay());
+    }
+
+    // One pass over the current version, in parallel; see ReportEngine.
+    public ReportEngine.Report report(SummaryPeriod period, ReportEngine.GroupBy groupBy) {
+        return ReportEngine.build(current.get(), period.getFrom(), period.getTo(), groupBy);
+    }
+
+    // The query first extends the indexes to the current version. The
+    // version is read under the lock, so the indexes only ever move forward.
+    public TransactionQuery.Page query(TransactionQuery query) {
+        synchronized (queryLock) {
+            return query.execute(expenses, incomes, current.get());
+        }
+    }
+
+    // Likewise, the rollups first take in the current version's rows.
+    public CategoryRollups.Summary categorySummary(CategoryRollups.Query query) {
+        synchronized (categoryRollups) {
+            ColumnarLedger.Version rows = current.get().expenses;
+            categoryRollups.catchUp(rows);
+            return categoryRollups.summarize(query, rows);
+        }
     }
 
     public List<Expense> getExpenses() {
-        return new ArrayList<>(expenses);
+        return current.get().expenses.expenseView();
     }
 
     public List<Income> getIncomes() {
-        return new ArrayList<>(incomes);
+        return current.get().incomes.incomeView();
     }
 
-    @SuppressWarnings("unchecked")
     private void loadTransactions() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(DATA_FILE))) {
-            expenses = (List<Expense>) ois.readObject();
-            incomes = (List<Income>) ois.readObject();
-        } catch (FileNotFoundException e) {
+        try {
+            store.replay(new TransactionStore.RecordHandler() {
+                // Logs written before checkBatch existed may hold rows that
+                // overflow; they are skipped so the ledger still opens.
+                @Override
+                public void onExpense(Expense expense) {
+                    if (fits(magnitude, expense.getAmountMinor())) {
+                        recordExpense(expense);
+                    } else {
+                        System.err.println("Skipping logged expense '" + expense.getDescription()
+                                + "' of " + Money.format(expense.getAmountMinor()) + ": it overflows the totals");
+                    }
+                }
+
+                @Override
+                public void onIncome(Income income) {
+                    if (fits(magnitude, income.getAmountMinor())) {
+                        recordIncome(income);
+                    } else {
+                        System.err.println("Skipping logged income '" + income.getSource()
+                                + "' of " + Money.format(income.getAmountMinor()) + ": it overflows the totals");
+                    }
+                }
+
+                @Override
+                public void onSnapshot(LedgerSnapshot snapshot) {
+                    expenses.attachSnapshot(snapshot.expenseRows(), LedgerSnapshot.EXPENSE_ROW_SIZE,
+                            snapshot.expenseText(), snapshot.expenseCount(), snapshot.categories());
+                    incomes.attachSnapshot(snapshot.incomeRows(), LedgerSnapshot.INCOME_ROW_SIZE,
+                            null, snapshot.incomeCount(), snapshot.sources());
+                    totalExpenses = Math.addExact(totalExpenses, snapshot.totalExpenseCents());
+                    totalIncome = Math.addExact(totalIncome, snapshot.totalIncomeCents());
+                    magnitude += snapshot.magnitudeCents();
+                    snapshot.addDayTotalsTo(aggregates);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error loading transactions", e);
+        }
+        if (expenses.size() == 0 && incomes.size() == 0) {
             System.out.println("No previous data found. Starting fresh.");
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Error loading transactions: " + e.getMessage());
         }
     }
 
-    private void saveTransactions() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
-            oos.writeObject(expenses);
-            oos.writeObject(incomes);
+    public void close() {
+        try {
+            store.close();
         } catch (IOException e) {
-            System.out.println("Error saving transactions: " + e.getMessage());
+            System.out.println("Error closing transaction log: " + e.getMessage());
         }
     }
 
+    public String getPeriodSummary(SummaryPeriod period) {
+        MonthlyAggregates.Totals totals = periodTotals(period);
+        return String.format("Summary for %s:\n" +
+                           "Total Income: $%.2f\n" +
+                           "Total Expenses: $%.2f\n" +
+                           "Savings: $%.2f",
+                           period.getName(),
+                           Money.toMajor(totals.income),
+                           Money.toMajor(totals.expenses),
+                           Money.toMajor(totals.income - totals.expenses));
+    }
+
     public String getMonthlySummary(int month, int year) {
-        double monthlyIncome = calculateMonthlyIncome(month, year);
-        double monthlyExpenses = calculateMonthlyExpenses(month, year);
-        double monthlySavings = calculateMonthlySavings(month, year);
+        MonthlyAggregates.Totals totals = aggregates.month(month, year);
+        double monthlyIncome = Money.toMajor(totals.income);
+        double monthlyExpenses = Money.toMajor(totals.expenses);
+        double monthlySavings = Money.toMajor(totals.income - totals.expenses);
 
         SimpleDateFormat monthFormat = new SimpleDateFormat("MMMM yyyy");
         Calendar cal = Calendar.getInstance();
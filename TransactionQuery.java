@@ -0,0 +1,289 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+// One page of a filtered, sorted listing over expenses and incomes.
+//
+// Parameters: type (all, expense, income), from / to (yyyy-MM-dd, to is
+// exclusive), category, source, minAmount / maxAmount (inclusive), sort
+// (date, -date, amount, -amount; default -date), limit and cursor.
+//
+// Entries are totally ordered by (sort key, kind, row id), so the cursor is
+// simply the last entry returned and stays valid while rows are added. Each
+// ledger is walked through the sorted index matching the sort order and the
+// two walks are merged; only the remaining filters are checked row by row.
+public class TransactionQuery {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+    static final int EXPENSE = 0;
+    static final int INCOME = 1;
+
+    private boolean includeExpenses = true;
+    private boolean includeIncomes = true;
+    private long fromDay = Integer.MIN_VALUE;
+    private long toDay = Integer.MAX_VALUE;
+    private String category;
+    private String source;
+    private long minCents = Long.MIN_VALUE;
+    private long maxCents = Long.MAX_VALUE;
+    private boolean sortByAmount;
+    private boolean descending = true;
+    private int limit = DEFAULT_LIMIT;
+    private boolean hasCursor;
+    private long cursorKey;
+    private int cursorKind;
+    private int cursorRow;
+
+    public static class Page {
+        final int[] kinds;
+        final int[] rows;
+        int size;
+        String nextCursor;
+
+        Page(int limit) {
+            kinds = new int[limit];
+            rows = new int[limit];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    public static TransactionQuery parse(String queryString) {
+        TransactionQuery query = new TransactionQuery();
+        String cursor = null;
+        for (String pair : queryString.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+            String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            switch (name) {
+                case "type":
+                    query.includeExpenses = value.equals("all") || value.equals("expense");
+                    query.includeIncomes = value.equals("all") || value.equals("income");
+                    if (!query.includeExpenses && !query.includeIncomes) {
+                        throw new IllegalArgumentException("Unknown type " + value);
+                    }
+                    break;
+                case "from":
+                    query.fromDay = parseDay(value);
+                    break;
+                case "to":
+                    query.toDay = parseDay(value);
+                    break;
+                case "category":
+                    query.category = value;
+                    break;
+                case "source":
+                    query.source = value;
+                    break;
+                case "minAmount":
+                    query.minCents = Money.toMinor(Double.parseDouble(value));
+                    break;
+                case "maxAmount":
+                    query.maxCents = Money.toMinor(Double.parseDouble(value));
+                    break;
+                case "sort":
+                    query.descending = value.startsWith("-");
+                    String field = query.descending ? value.substring(1) : value;
+                    if (!field.equals("date") && !field.equals("amount")) {
+                        throw new IllegalArgumentException("Unknown sort " + value);
+                    }
+                    query.sortByAmount = field.equals("amount");
+                    break;
+                case "limit":
+                    query.limit = Integer.parseInt(value);
+                    if (query.limit < 1 || query.limit > MAX_LIMIT) {
+                        throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+                    }
+                    break;
+                case "cursor":
+                    cursor = value;
+                    break;
+                default:
+                    // Unknown parameters (cache busters and the like) are ignored
+            }
+        }
+        // A category only exists on expenses, a source only on incomes
+        if (query.category != null) query.includeIncomes = false;
+        if (query.source != null) query.includeExpenses = false;
+        if (cursor != null && !cursor.isEmpty()) {
+            query.decodeCursor(cursor);
+        }
+        return query;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static long parseDay(String value) {
+        try {
+            return LocalDate.parse(value).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date " + value);
+        }
+    }
+
+    private String encodeCursor(long key, int kind, int row) {
+        String raw = (sortByAmount ? 'a' : 'd') + ":" + key + ":" + kind + ":" + row;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            String[] parts = raw.split(":");
+            if (parts.length != 4 || parts[0].charAt(0) != (sortByAmount ? 'a' : 'd')) {
+                throw new IllegalArgumentException("Cursor does not match this query");
+            }
+            cursorKey = Long.parseLong(parts[1]);
+            cursorKind = Integer.parseInt(parts[2]);
+            cursorRow = Integer.parseInt(parts[3]);
+            hasCursor = true;
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    // Must run under TransactionManager.queryLock, which guards the indexes,
+    // and never under the writer lock, so commits go on while the indexes
+    // catch up. Successive calls must pass versions that never go backwards;
+    // rows are read from the given version, which the indexes cover.
+    Page execute(ColumnarLedger expenses, ColumnarLedger incomes, TransactionManager.Version version) {
+        Page page = new Page(limit);
+        Scanner expenseScan = includeExpenses ? scanner(expenses, version.expenses(), EXPENSE, category) : null;
+        Scanner incomeScan = includeIncomes ? scanner(incomes, version.incomes(), INCOME, source) : null;
+        boolean expenseReady = expenseScan != null && expenseScan.seek();
+        boolean incomeReady = incomeScan != null && incomeScan.seek();
+
+        while (expenseReady || incomeReady) {
+            Scanner next;
+            if (!incomeReady) {
+                next = expenseScan;
+            } else if (!expenseReady) {
+                next = incomeScan;
+            } else {
+                int order = compare(expenseScan.key(), EXPENSE, expenseScan.row(),
+                        incomeScan.key(), INCOME, incomeScan.row());
+                next = (order < 0) != descending ? expenseScan : incomeScan;
+            }
+
+            if (page.size == limit) {
+                int last = page.size - 1;
+                ColumnarLedger.Version ledger = page.kinds[last] == EXPENSE ? version.expenses() : version.incomes();
+                long key = sortByAmount ? ledger.centsAt(page.rows[last]) : ledger.epochDayAt(page.rows[last]);
+                page.nextCursor = encodeCursor(key, page.kinds[last], page.rows[last]);
+                break;
+            }
+            page.kinds[page.size] = next.kind;
+            page.rows[page.size] = next.row();
+            page.size++;
+
+            next.advance();
+            if (next == expenseScan) {
+                expenseReady = expenseScan.seek();
+            } else {
+                incomeReady = incomeScan.seek();
+            }
+        }
+        return page;
+    }
+
+    private static int compare(long keyA, int kindA, int rowA, long keyB, int kindB, int rowB) {
+        if (keyA != keyB) return Long.compare(keyA, keyB);
+        if (kindA != kindB) return Integer.compare(kindA, kindB);
+        return Integer.compare(rowA, rowB);
+    }
+
+    private Scanner scanner(ColumnarLedger ledger, ColumnarLedger.Version rows, int kind, String label) {
+        int labelId = -1;
+        if (label != null) {
+            labelId = ledger.findLabel(label);
+            if (labelId < 0) return null;
+        }
+        SortedRowIndex index;
+        if (sortByAmount) {
+            index = ledger.amountIndex(rows);
+        } else {
+            index = labelId >= 0 ? ledger.labelDateIndex(rows, labelId) : ledger.dateIndex(rows);
+        }
+        return new Scanner(rows, kind, index, sortByAmount ? labelId : -1);
+    }
+
+    private final class Scanner {
+        final ColumnarLedger.Version ledger;
+        final int kind;
+        final SortedRowIndex index;
+        final int labelFilter;  // -1 when the index already restricts the label
+        final int low;
+        final int high;
+        int position;
+
+        Scanner(ColumnarLedger.Version ledger, int kind, SortedRowIndex index, int labelFilter) {
+            this.ledger = ledger;
+            this.kind = kind;
+            this.index = index;
+            this.labelFilter = labelFilter;
+            if (sortByAmount) {
+                low = index.lowerBound(minCents, Integer.MIN_VALUE);
+                high = maxCents == Long.MAX_VALUE ? index.size() : index.lowerBound(maxCents + 1, Integer.MIN_VALUE);
+            } else {
+                low = index.lowerBound(fromDay, Integer.MIN_VALUE);
+                high = index.lowerBound(toDay, Integer.MIN_VALUE);
+            }
+
+            int start = descending ? high : low;
+            if (hasCursor) {
+                // Continue strictly after (cursorKey, cursorKind, cursorRow)
+                int boundaryRow;
+                if (kind == cursorKind) {
+                    boundaryRow = descending ? cursorRow : cursorRow + 1;
+                } else {
+                    boundaryRow = kind > cursorKind ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+                }
+                int bound = index.lowerBound(cursorKey, boundaryRow);
+                start = descending ? Math.min(high, bound) : Math.max(low, bound);
+            }
+            position = descending ? start - 1 : start;
+        }
+
+        // Moves to the nearest matching entry; false once the range is done.
+        boolean seek() {
+            while (descending ? position >= low : position < high) {
+                if (matches(index.rowAt(position))) return true;
+                advance();
+            }
+            return false;
+        }
+
+        void advance() {
+            position += descending ? -1 : 1;
+        }
+
+        long key() {
+            return index.keyAt(position);
+        }
+
+        int row() {
+            return index.rowAt(position);
+        }
+
+        private boolean matches(int row) {
+            if (sortByAmount) {
+                int day = ledger.epochDayAt(row);
+                if (day < fromDay || day >= toDay) return false;
+                return labelFilter < 0 || ledger.labelIdAt(row) == labelFilter;
+            }
+            long cents = ledger.centsAt(row);
+            return cents >= minCents && cents <= maxCents;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+// Durable storage behind TransactionManager. Implementations persist each
+// added transaction and hand every stored record back on startup.
+public interface TransactionStore extends Closeable {
+
+    interface RecordHandler {
+        void onExpense(Expense expense);
+
+        void onIncome(Income income);
+
+        // Called once, before any other record, when the store starts from a
+        // mapped snapshot. Handlers that cannot use it get every row instead.
+        default void onSnapshot(LedgerSnapshot snapshot) {
+            snapshot.replay(this);
+        }
+    }
+
+    void replay(RecordHandler handler) throws IOException;
+
+    void appendExpense(Expense expense) throws IOException;
+
+    void appendIncome(Income income) throws IOException;
+
+    // Persists a whole batch with a single write and at most one fsync.
+    default void appendBatch(List<Expense> expenses, List<Income> incomes) throws IOException {
+        appendBatch(expenses, incomes, false);
+    }
+
+    // As above; a durable batch is forced to disk before this returns, not
+    // only when the fsync policy says so.
+    void appendBatch(List<Expense> expenses, List<Income> incomes, boolean durable) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
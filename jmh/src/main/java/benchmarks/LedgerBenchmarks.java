@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Queries, the GET /api/transactions encoder and the amount kernels over a
+// synthetic ledger opened from a snapshot; see BenchmarkWorkloads.Ledger.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LedgerBenchmarks extends WorkloadBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    @Benchmark
+    public long calculateTotalExpenses() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long calculateMonthlyExpenses() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long calculateExpensesBetween() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long getMonthlySummary() {
+        return workload.getAsLong();
+    }
+
+    // Five years by month in one pass
+    @Benchmark
+    public long report() {
+        return workload.getAsLong();
+    }
+
+    // The same five years as 60 getMonthlySummary calls
+    @Benchmark
+    public long reportByMonthlySummaries() {
+        return workload.getAsLong();
+    }
+
+    // Every transaction as JSON, into a stream that only counts bytes
+    @Benchmark
+    public long handleGetTransactions() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long sumLong() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long sumDouble() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long minMaxLong() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long minMaxDouble() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long sumCentsLedger() {
+        return workload.getAsLong();
+    }
+}
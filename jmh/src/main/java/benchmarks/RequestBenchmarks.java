@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per-request work that needs no ledger: the POST /api/transactions body
+// reader on one transaction and on an array of 100 (ops are bodies), and
+// the anomaly detector every committed expense passes through.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmarks extends WorkloadBenchmark {
+    @Benchmark
+    public long readTransactions1() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long readTransactions100() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long anomalyDetector() {
+        return workload.getAsLong();
+    }
+}
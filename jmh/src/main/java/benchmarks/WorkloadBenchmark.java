@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// Base of the benchmark classes: opens the workload named after the running
+// benchmark method, with its @Param values, from BenchmarkWorkloads in the
+// application's default package. That class is looked up reflectively once
+// per trial, since a named package cannot refer to it; the measured call is
+// a plain interface call.
+public abstract class WorkloadBenchmark {
+    protected LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void open(BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark();
+        Map<String, String> parameters = new HashMap<>();
+        for (String key : params.getParamsKeys()) {
+            parameters.put(key, params.getParam(key));
+        }
+        workload = (LongSupplier) Class.forName("BenchmarkWorkloads")
+                .getMethod("open", String.class, Map.class)
+                .invoke(null, benchmark.substring(benchmark.lastIndexOf('.') + 1), parameters);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        ((Closeable) workload).close();
+    }
+}